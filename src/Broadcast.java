@@ -11,6 +11,8 @@ import java.util.*;
 public final class Broadcast {
 
     private final Map<String, List<String>> responses;
+    // Whether the server backend sends the command's responses itself
+    private boolean deferred;
 
     // Hide constructor so Broadcasts can only be created via one of the
     // static factory methods below.
@@ -50,8 +52,10 @@ public final class Broadcast {
      */
     public static Broadcast okay(Command command, Collection<String> recipients) {
         Broadcast broadcast = new Broadcast();
+        // Format the response once, rather than once per recipient
+        String response = command.toString();
         for (String recipient : recipients) {
-            broadcast.addResponse(recipient, command.toString());
+            broadcast.addResponse(recipient, response);
         }
 
         // Need to send response to user ID associated with *new* nick
@@ -63,6 +67,19 @@ public final class Broadcast {
         return broadcast;
     }
 
+    /**
+     * Creates a {@code Broadcast} for a {@link Command} that is accepted, but whose responses the
+     * server backend sends itself, away from the model thread, such as the page of messages asked
+     * for with HISTORY.
+     *
+     * @return An empty {@code Broadcast}, marked as deferred
+     */
+    public static Broadcast deferred() {
+        Broadcast broadcast = new Broadcast();
+        broadcast.deferred = true;
+        return broadcast;
+    }
+
     /**
      * Creates a {@code Broadcast} for the case where a client's {@link Command} is invalid, and the
      * client should be informed.
@@ -73,11 +90,23 @@ public final class Broadcast {
      * @throws IllegalArgumentException if error value is {@code OKAY}
      */
     public static Broadcast error(Command command, ServerResponse error) {
+        return error(command.getSender(), error);
+    }
+
+    /**
+     * Creates a {@code Broadcast} for the case where a client's request is refused before it can
+     * be parsed into a {@link Command}, and the client should be informed.
+     *
+     * @param recipient The nickname of the client who sent the request
+     * @param error The {@link ServerResponse} that the request caused
+     * @return A {@code Broadcast} representing the response to send
+     * @throws IllegalArgumentException if error value is {@code OKAY}
+     */
+    public static Broadcast error(String recipient, ServerResponse error) {
         if (error == ServerResponse.OKAY) {
             throw new IllegalArgumentException("Invalid error type");
         }
         Broadcast broadcast = new Broadcast();
-        String recipient = command.getSender();
         int errorCode = error.getCode();
         String response = String.format(":%s ERROR %d", recipient, errorCode);
         broadcast.addResponse(recipient, response);
@@ -98,6 +127,21 @@ public final class Broadcast {
         return broadcast;
     }
 
+    /**
+     * Creates a {@code Broadcast} like {@link #connected(String)}, which also hands the client the
+     * token with which it can resume its session if its connection drops.
+     *
+     * @param recipient The automatically generated nickname for the client
+     * @param resumeToken The client's resume token
+     * @return A {@code Broadcast} to the new client
+     */
+    public static Broadcast connected(String recipient, String resumeToken) {
+        Broadcast broadcast = new Broadcast();
+        String response = String.format(":%s CONNECT %s", recipient, resumeToken);
+        broadcast.addResponse(recipient, response);
+        return broadcast;
+    }
+
     /**
      * Creates a {@code Broadcast} for the case when a user disconnects from the server and other
      * clients should be informed of this fact.
@@ -133,6 +177,24 @@ public final class Broadcast {
      *      or {@link InviteCommand}
      */
     public static Broadcast names(Command command, Collection<String> recipients, String owner) {
+        return names(command, recipients, owner, Collections.<String>emptyList());
+    }
+
+    /**
+     * Creates a {@code Broadcast} like {@link #names(Command, Collection, String)}, which also
+     * replays the channel's recent messages to the user who is added, after the NAMES response.
+     *
+     * @param command The command issued by the client (Invite or Join)
+     * @param recipients A set of nicknames of the other users in the channel which the user is
+     *                   joining, and to whom the command should be relayed.
+     * @param owner The nickname of the channel's owner
+     * @param backlog The channel's recent MESG responses, oldest first
+     * @return A {@code Broadcast} representing the responses to send
+     * @throws IllegalArgumentException if {@code command} is not an instanceof {@link JoinCommand}
+     *      or {@link InviteCommand}
+     */
+    public static Broadcast names(Command command, Collection<String> recipients, String owner,
+                                  List<String> backlog) {
         // Relay JOIN or INVITE normally
         Broadcast broadcast = Broadcast.okay(command, recipients);
 
@@ -153,6 +215,8 @@ public final class Broadcast {
         String namesResponse =
             String.format(":%s NAMES %s :%s", userToAdd, channelName, namesPayload);
         broadcast.addResponse(userToAdd, namesResponse);
+        // Repeated messages are all replayed, so skip the duplicate check
+        broadcast.responses.get(userToAdd).addAll(backlog);
         return broadcast;
     }
 
@@ -161,6 +225,15 @@ public final class Broadcast {
     // Response dispatch
     //==========================================================================
 
+    /**
+     * Checks if the command was accepted, with its responses left to the {@link ServerBackend}.
+     *
+     * @return true if the {@code Broadcast} was made by {@link #deferred()}
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
     /**
      * You should not call this method yourself. Associates the stored responses with the user IDs
      * of the recipients. This * function will be called by the {@link ServerBackend} before
@@ -180,6 +253,18 @@ public final class Broadcast {
         return userIdResponses;
     }
 
+    /**
+     * Gets the responses for one recipient, for a backend that already knows
+     * the recipient's user ID and has no model to look it up in.
+     *
+     * @param nick The nickname of the recipient
+     * @return The responses for the recipient, empty if there are none
+     */
+    List<String> getResponsesTo(String nick) {
+        List<String> userResponses = responses.get(nick);
+        return userResponses == null ? Collections.<String>emptyList() : userResponses;
+    }
+
 
     //==========================================================================
     // Private utility methods
@@ -228,7 +313,7 @@ public final class Broadcast {
             return false;
         }
         Broadcast that = (Broadcast) o;
-        return this.responses.equals(that.responses);
+        return this.deferred == that.deferred && this.responses.equals(that.responses);
     }
 
     @Override
@@ -0,0 +1,222 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the most recent messages of each channel, so that a user joining a
+ * channel can be shown what was said before.
+ *
+ * Each channel's history is a ring of encoded response lines in a slab of
+ * {@code bytesPerChannel} bytes; when the slab is full, or the channel holds
+ * as many lines as it may, the oldest line is dropped. Slabs are taken from a
+ * shared pool, and returned to it when a channel is deleted, so no more than
+ * {@code totalBytes} are ever held. When every slab is in use, the channel
+ * that least recently had a message loses its history to make room.
+ *
+ * A {@code ChannelHistory} is not thread-safe; it belongs to the model
+ * thread, like the {@link ServerModel} it is attached to.
+ */
+final class ChannelHistory {
+
+    // The bytes taken by the length of each line in a ring
+    private static final int HEADER = 4;
+
+    private final int bytesPerChannel;
+    private final int maxSlabs;
+    private final int defaultLines;
+
+    // Channels in order of their last message, least recent first
+    private final LinkedHashMap<String, Ring> rings;
+    private final Deque<byte[]> freeSlabs;
+    private int allocatedSlabs;
+
+    /**
+     * Constructs an empty {@code ChannelHistory}.
+     *
+     * @param bytesPerChannel The size of each channel's ring, in bytes
+     * @param totalBytes The most bytes held across all channels, which is
+     *                   rounded up to at least one ring
+     * @param defaultLines The number of lines kept for a channel whose owner
+     *                     has not chosen another number
+     * @throws IllegalArgumentException if a ring cannot hold a line
+     */
+    public ChannelHistory(int bytesPerChannel, long totalBytes, int defaultLines) {
+        if (bytesPerChannel <= HEADER || defaultLines < 0) {
+            throw new IllegalArgumentException("Invalid history settings");
+        }
+        this.bytesPerChannel = bytesPerChannel;
+        this.maxSlabs = (int) Math.max(1,
+                Math.min(Integer.MAX_VALUE, totalBytes / bytesPerChannel));
+        this.defaultLines = defaultLines;
+        rings = new LinkedHashMap<>(16, 0.75f, true);
+        freeSlabs = new ArrayDeque<>();
+        allocatedSlabs = 0;
+    }
+
+    /**
+     * Adds a line to the end of a channel's history.
+     *
+     * @param channel The channel the line was sent to
+     * @param line The response line, as relayed to the channel's members
+     * @param maxLines The number of lines the channel keeps, or -1 for the
+     *                 default
+     */
+    public void record(String channel, String line, int maxLines) {
+        int limit = maxLines < 0 ? defaultLines : maxLines;
+        if (limit == 0) {
+            remove(channel);
+            return;
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (HEADER + bytes.length > bytesPerChannel) {
+            // Too long to ever fit; the history just skips it
+            return;
+        }
+        Ring ring = rings.get(channel);
+        if (ring == null) {
+            ring = new Ring(takeSlab());
+            rings.put(channel, ring);
+        }
+        ring.add(bytes, limit);
+    }
+
+    /**
+     * Gets the most recent lines of a channel's history.
+     *
+     * @param channel The channel
+     * @param maxLines The number of lines the channel keeps, or -1 for the
+     *                 default
+     * @return The lines, oldest first
+     */
+    public List<String> recent(String channel, int maxLines) {
+        int limit = maxLines < 0 ? defaultLines : maxLines;
+        Ring ring = rings.get(channel);
+        if (ring == null || limit == 0) {
+            return Collections.emptyList();
+        }
+        return ring.lines(limit);
+    }
+
+    /**
+     * Forgets a channel's history and returns its slab to the pool.
+     *
+     * @param channel The channel
+     */
+    public void remove(String channel) {
+        Ring ring = rings.remove(channel);
+        if (ring != null) {
+            freeSlabs.push(ring.slab);
+        }
+    }
+
+    /**
+     * Gets the number of channels that currently have history.
+     *
+     * @return The number of channels
+     */
+    public int size() {
+        return rings.size();
+    }
+
+    private byte[] takeSlab() {
+        if (!freeSlabs.isEmpty()) {
+            return freeSlabs.pop();
+        }
+        if (allocatedSlabs < maxSlabs) {
+            allocatedSlabs++;
+            return new byte[bytesPerChannel];
+        }
+        Iterator<Map.Entry<String, Ring>> leastActive = rings.entrySet().iterator();
+        byte[] slab = leastActive.next().getValue().slab;
+        leastActive.remove();
+        return slab;
+    }
+
+    /**
+     * A ring of length-prefixed lines in a slab. The oldest line starts at
+     * {@code head}, and the next line is written at {@code tail}.
+     */
+    private static final class Ring {
+        private final byte[] slab;
+        private int head;
+        private int tail;
+        private int used;
+        private int count;
+
+        private Ring(byte[] slab) {
+            this.slab = slab;
+            head = 0;
+            tail = 0;
+            used = 0;
+            count = 0;
+        }
+
+        private void add(byte[] line, int limit) {
+            int needed = HEADER + line.length;
+            while (count > 0 && (count >= limit || slab.length - used < needed)) {
+                dropOldest();
+            }
+            byte[] header = {
+                (byte) (line.length >>> 24), (byte) (line.length >>> 16),
+                (byte) (line.length >>> 8), (byte) line.length
+            };
+            tail = put(tail, header, HEADER);
+            tail = put(tail, line, line.length);
+            used += needed;
+            count++;
+        }
+
+        private List<String> lines(int limit) {
+            List<String> lines = new ArrayList<>(Math.min(limit, count));
+            int position = head;
+            byte[] header = new byte[HEADER];
+            for (int i = 0; i < count; i++) {
+                position = get(position, header, HEADER);
+                int length = lengthOf(header);
+                if (i >= count - limit) {
+                    byte[] line = new byte[length];
+                    get(position, line, length);
+                    lines.add(new String(line, StandardCharsets.UTF_8));
+                }
+                position = (position + length) % slab.length;
+            }
+            return lines;
+        }
+
+        private void dropOldest() {
+            byte[] header = new byte[HEADER];
+            get(head, header, HEADER);
+            int length = HEADER + lengthOf(header);
+            head = (head + length) % slab.length;
+            used -= length;
+            count--;
+        }
+
+        // Copies bytes into the slab at a position, wrapping around its end
+        private int put(int position, byte[] bytes, int length) {
+            int first = Math.min(length, slab.length - position);
+            System.arraycopy(bytes, 0, slab, position, first);
+            System.arraycopy(bytes, first, slab, 0, length - first);
+            return (position + length) % slab.length;
+        }
+
+        // Copies bytes out of the slab from a position, wrapping around its end
+        private int get(int position, byte[] bytes, int length) {
+            int first = Math.min(length, slab.length - position);
+            System.arraycopy(slab, position, bytes, 0, first);
+            System.arraycopy(slab, 0, bytes, first, length - first);
+            return (position + length) % slab.length;
+        }
+
+        private static int lengthOf(byte[] header) {
+            return (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16
+                    | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+        }
+    }
+}
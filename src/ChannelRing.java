@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The recent MESG responses of one channel, in a fixed-size ring that the
+ * model thread publishes each message to once, and that every member's
+ * connection reads through a cursor of its own. Publishing a message
+ * therefore costs the same whatever the size of the channel.
+ *
+ * Entries are numbered from 0 in the order they were published. Once a
+ * ring is full each new entry overwrites the oldest, so a reader more than
+ * {@code capacity} entries behind finds a later entry than the one it asked
+ * for, and has lost messages. Each entry also carries a stamp, given by the
+ * publisher, so that a reader of several rings can merge them in the order
+ * they were published.
+ *
+ * A {@code ChannelRing} has a single writer, the model thread, and any
+ * number of readers on any threads.
+ */
+final class ChannelRing {
+
+    /**
+     * A published response, with its number in the ring and its stamp.
+     */
+    static final class Entry {
+        private final long sequence;
+        private final long stamp;
+        private final String response;
+
+        private Entry(long sequence, long stamp, String response) {
+            this.sequence = sequence;
+            this.stamp = stamp;
+            this.response = response;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        public String getResponse() {
+            return response;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    // The number of entries published; written only by the writer
+    private volatile long published;
+    private volatile boolean closed;
+
+    /**
+     * Constructs an empty {@code ChannelRing}.
+     *
+     * @param capacity The number of entries kept
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public ChannelRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid ring size");
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Gets the number of the next entry to be published, which is where a
+     * reader that starts now begins.
+     *
+     * @return The number of entries published so far
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Publishes a response. Only the ring's writer may call this.
+     *
+     * @param response The encoded response
+     * @param stamp The response's place among everything the writer
+     *              publishes, across all rings
+     * @throws IllegalStateException if the ring is closed
+     */
+    public void publish(String response, long stamp) {
+        if (closed) {
+            throw new IllegalStateException("Ring is closed");
+        }
+        long sequence = published;
+        slots.set((int) (sequence % slots.length()), new Entry(sequence, stamp, response));
+        published = sequence + 1;
+    }
+
+    /**
+     * Gets an entry, if it has been published.
+     *
+     * @param sequence The number of the entry
+     * @return The entry, null if it has not been published yet, or a later
+     *         entry if the one asked for has been overwritten
+     */
+    public Entry get(long sequence) {
+        if (sequence >= published) {
+            return null;
+        }
+        return slots.get((int) (sequence % slots.length()));
+    }
+
+    /**
+     * Marks the ring as finished, as when its channel is gone. Readers may
+     * still read what was published before.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -15,9 +15,11 @@ public abstract class Command {
     private final int senderId;
 
     /**
-     * The current nickname in use by the sender of the {@code Command}.
+     * The current nickname in use by the sender of the {@code Command}. This
+     * is {@code null} until the backend binds it, for commands parsed on a
+     * connection thread before the sender's nickname is known.
      */
-    private final String sender;
+    private String sender;
 
     /**
      * Constructor, initializes the private fields of the object. 
@@ -45,6 +47,48 @@ public abstract class Command {
         return sender;
     }
 
+    /**
+     * Gets the protocol type of the {@code Command}.
+     *
+     * @return The type of this command
+     */
+    public abstract CommandType getType();
+
+    /**
+     * Gets the channel the {@code Command} acts on. A sharded
+     * {@link ServerBackend} applies the command on the model thread that
+     * owns this channel.
+     *
+     * @return The channel's name, or null if the command is not about a
+     *      single channel
+     */
+    public String getChannel() {
+        return null;
+    }
+
+    /**
+     * Binds the nickname of the sender. The {@link ServerBackend} parses
+     * commands on connection threads, where the nickname is not known, and
+     * binds it on the model thread just before the command is applied.
+     *
+     * @param sender The current nickname of the client who issued this command
+     */
+    void bindSender(String sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Checks the parts of the command that do not depend on the server state,
+     * such as the syntax of the names it carries. This does not touch the
+     * model, so it is safe to call on any thread.
+     *
+     * @return {@link ServerResponse#OKAY} if the command is well-formed,
+     *      otherwise the error that should be reported to the sender
+     */
+    public ServerResponse validate() {
+        return ServerResponse.OKAY;
+    }
+
     /**
      * Processes the command and updates the server model accordingly.
      *
@@ -53,7 +97,24 @@ public abstract class Command {
      * @return A {@link Broadcast} object, informing clients about changes
      *      resulting from the command.
      */
-    public abstract Broadcast updateServerModel(ServerModel model);
+    public final Broadcast updateServerModel(ServerModel model) {
+        ServerResponse error = validate();
+        if (error != ServerResponse.OKAY) {
+            return Broadcast.error(this, error);
+        }
+        return applyToModel(model);
+    }
+
+    /**
+     * Updates the server model for a command that has already passed
+     * {@link #validate()}. Only the checks that depend on the server state
+     * are made here.
+     *
+     * @param model The current state of the server
+     * @return A {@link Broadcast} object, informing clients about changes
+     *      resulting from the command.
+     */
+    abstract Broadcast applyToModel(ServerModel model);
 
     /**
      * Returns {@code true} if two {@code Command}s are equal; that is, if
@@ -95,11 +156,23 @@ class NicknameCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.NICK;
+    }
+
+    @Override
+    public ServerResponse validate() {
         if (!ServerModel.isValidName(newNickname)) {
-            return Broadcast.error(this, ServerResponse.INVALID_NAME);
+            return ServerResponse.INVALID_NAME;
         }
+        return ServerResponse.OKAY;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         if (model.nicknameInUse(newNickname)) {
+            // Restored and parked users are taken back with RESUME and their
+            // token, never by claiming their nickname
             return Broadcast.error(this, ServerResponse.NAME_ALREADY_IN_USE);
         }
         model.changeName(getSenderId(), newNickname);
@@ -118,6 +191,50 @@ class NicknameCommand extends Command {
     }
 }
 
+/**
+ * Represents a {@link Command} issued by a newly connected client to take
+ * back the session of a user who dropped off, with the resume token it was
+ * given when that user connected.
+ */
+class ResumeCommand extends Command {
+    private final String token;
+
+    public ResumeCommand(int senderId, String sender, String token) {
+        super(senderId, sender);
+        this.token = token;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.RESUME;
+    }
+
+    /**
+     * Hands the parked user's nickname, memberships and ownerships to the
+     * sender. Only the sender is told, with a NICK response for the
+     * nickname it now has; other members never saw the user leave.
+     */
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        String nickname = model.resumeUser(token, getSenderId());
+        if (nickname == null) {
+            return Broadcast.error(this, ServerResponse.INVALID_RESUME_TOKEN);
+        }
+        Command renamed = new NicknameCommand(getSenderId(), getSender(), nickname);
+        return Broadcast.okay(renamed, Collections.singleton(nickname));
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public String toString() {
+        // The token is a credential, so it is never echoed
+        return String.format(":%s RESUME", getSender());
+    }
+}
+
 /**
  * Represents a {@link Command} issued by a client to create a new channel.
  */
@@ -132,11 +249,20 @@ class CreateCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.CREATE;
+    }
+
+    @Override
+    public ServerResponse validate() {
         if (!ServerModel.isValidName(channel)) {
-            return Broadcast.error(this, ServerResponse.INVALID_NAME);
+            return ServerResponse.INVALID_NAME;
         }
-        
+        return ServerResponse.OKAY;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         Iterator<String> itr = model.getChannels().iterator();
         while (itr.hasNext()) {
             if (channel.equals(itr.next())) {
@@ -179,7 +305,12 @@ class JoinCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.JOIN;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         if (!model.doesChannelExist(channel)) {
             return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
         }
@@ -190,7 +321,8 @@ class JoinCommand extends Command {
         Collection<String> recipients = model.getUsersInChannel(channel);
         recipients.add(getSender());
         model.addGroup(getSenderId(), channel);
-        return Broadcast.names(this, recipients, model.getOwner(channel));
+        return Broadcast.names(this, recipients, model.getOwner(channel),
+                model.getBacklogMessages(channel));
     }
 
     public String getChannel() {
@@ -219,17 +351,42 @@ class MessageCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
-        if (!model.doesChannelExist(channel)) {
-            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+    public CommandType getType() {
+        return CommandType.MESG;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        ServerResponse response = admit(model);
+        if (response != ServerResponse.OKAY) {
+            return Broadcast.error(this, response);
         }
-        Collection<String> members = model.getUsersInChannel(channel); 
-        
-        if (!members.contains(getSender())) {
-            return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
-        }    
         return Broadcast.okay(this, model.getUsersInChannel(channel));
     }
+
+    /**
+     * Checks that the message may be sent, and charges and records it,
+     * without building a broadcast to the channel's members. This does not
+     * depend on the size of the channel, for a backend that publishes the
+     * message to the channel once rather than to each member.
+     *
+     * @param model The model to apply the message to
+     * @return OKAY if the message is to be sent, or the error to send back
+     */
+    ServerResponse admit(ServerModel model) {
+        ModelView view = model.snapshot();
+        if (!view.doesChannelExist(channel)) {
+            return ServerResponse.NO_SUCH_CHANNEL;
+        }
+        if (!view.isMember(channel, getSender())) {
+            return ServerResponse.USER_NOT_IN_CHANNEL;
+        }
+        if (!model.admitMessage(channel, view.getMemberCount(channel))) {
+            return ServerResponse.RATE_LIMITED;
+        }
+        model.recordMessage(channel, toString());
+        return ServerResponse.OKAY;
+    }
     
     public String getChannel() {
         return channel;
@@ -241,6 +398,50 @@ class MessageCommand extends Command {
     }
 }
 
+/**
+ * Represents a {@link Command} issued by a client to send a message to one
+ * other user, without a channel.
+ */
+class PrivateMessageCommand extends Command {
+    private final String target;
+    private final String message;
+
+    public PrivateMessageCommand(int senderId, String sender, String target, String message) {
+        super(senderId, sender);
+        this.target = target;
+        this.message = message;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.PRIVMSG;
+    }
+
+    /**
+     * Sends the message to the target alone, so no channel is consulted.
+     */
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        int targetId = model.getUserId(target);
+        if (targetId < 0) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_RECIPIENT);
+        }
+        if (model.isDetached(targetId)) {
+            return Broadcast.error(this, ServerResponse.RECIPIENT_NOT_CONNECTED);
+        }
+        return Broadcast.okay(this, Collections.singleton(target));
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s PRIVMSG %s :%s", getSender(), target, message);
+    }
+}
+
 /**
  * Represents a {@link Command} issued by a client to leave a channel.
  */
@@ -253,7 +454,12 @@ class LeaveCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.LEAVE;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         if (!model.doesChannelExist(channel)) {
             return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
         }
@@ -295,7 +501,12 @@ class InviteCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.INVITE;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         if (model.getUserId(userToInvite) == -1) {
             return Broadcast.error(this, ServerResponse.NO_SUCH_USER);
         }
@@ -313,7 +524,8 @@ class InviteCommand extends Command {
         model.addGroup(model.getUserId(userToInvite), channel);
         Collection<String> members = model.getUsersInChannel(channel);
         
-        return Broadcast.names(this, members, getSender());
+        return Broadcast.names(this, members, getSender(),
+                model.getBacklogMessages(channel));
     }
 
     public String getChannel() {
@@ -347,7 +559,12 @@ class KickCommand extends Command {
     }
 
     @Override
-    public Broadcast updateServerModel(ServerModel model) {
+    public CommandType getType() {
+        return CommandType.KICK;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
         if (model.getUserId(userToKick) == -1) {
             return Broadcast.error(this, ServerResponse.NO_SUCH_USER);
         }
@@ -371,6 +588,14 @@ class KickCommand extends Command {
         return Broadcast.okay(this, members);
     }
 
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getUserToKick() {
+        return userToKick;
+    }
+
     @Override
     public String toString() {
         return String.format(":%s KICK %s %s", getSender(), channel, userToKick);
@@ -378,3 +603,259 @@ class KickCommand extends Command {
     
 }
 
+/**
+ * Represents a {@link Command} issued by a client to limit how many messages
+ * per minute may be sent to a channel owned by the sender. A limit of 0 turns
+ * slow mode off.
+ */
+class SlowCommand extends Command {
+    private final String channel;
+    private final int messagesPerMinute;
+
+    public SlowCommand(int senderId, String sender, String channel, int messagesPerMinute) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.messagesPerMinute = messagesPerMinute;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.SLOW;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        if (!model.doesChannelExist(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!getSender().equals(model.getOwner(channel))) {
+            return Broadcast.error(this, ServerResponse.USER_NOT_OWNER);
+        }
+        model.setSlowMode(channel, messagesPerMinute);
+        return Broadcast.okay(this, Collections.singleton(getSender()));
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int getMessagesPerMinute() {
+        return messagesPerMinute;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s SLOW %s %d", getSender(), channel, messagesPerMinute);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to choose how many recent
+ * messages of a channel owned by the sender are replayed to users who join
+ * it. A backlog of 0 keeps no history for the channel.
+ */
+class BacklogCommand extends Command {
+    private final String channel;
+    private final int lines;
+
+    public BacklogCommand(int senderId, String sender, String channel, int lines) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.lines = lines;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.BACKLOG;
+    }
+
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        if (!model.doesChannelExist(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!getSender().equals(model.getOwner(channel))) {
+            return Broadcast.error(this, ServerResponse.USER_NOT_OWNER);
+        }
+        model.setBacklog(channel, lines);
+        return Broadcast.okay(this, Collections.singleton(getSender()));
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s BACKLOG %s %d", getSender(), channel, lines);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to page through the logged
+ * messages of a channel that the sender is a member of. The command only
+ * checks membership; the messages are read from the {@link MessageLog} and
+ * sent by the {@link ServerBackend} away from the model thread.
+ */
+class HistoryCommand extends Command {
+    private final String channel;
+    private final long beforeSequence;
+    private final int count;
+
+    public HistoryCommand(int senderId, String sender, String channel,
+                          long beforeSequence, int count) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.beforeSequence = beforeSequence;
+        this.count = count;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.HISTORY;
+    }
+
+    /**
+     * Checks that the sender may read the channel's history.
+     *
+     * @return An error {@link Broadcast}, or a deferred one if the backend
+     *      should send the requested messages
+     */
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        if (!model.hasMessageLog()) {
+            return Broadcast.error(this, ServerResponse.FEATURE_DISABLED);
+        }
+        if (!model.doesChannelExist(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!model.getTMap().get(getSenderId()).isAMemberof(channel)) {
+            return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.deferred();
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getBeforeSequence() {
+        return beforeSequence;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s HISTORY %s %d %d", getSender(), channel,
+                beforeSequence, count);
+    }
+}
+
+/**
+ * Represents a {@link Command} for finding messages in a channel that contain
+ * every word of a query.
+ */
+class SearchCommand extends Command {
+    private final String channel;
+    private final String terms;
+
+    public SearchCommand(int senderId, String sender, String channel, String terms) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.terms = terms;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.SEARCH;
+    }
+
+    /**
+     * Checks that the sender may search the channel.
+     *
+     * @return An error {@link Broadcast}, or a deferred one if the backend
+     *      should send the matching messages
+     */
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        if (!model.hasMessageIndex()) {
+            return Broadcast.error(this, ServerResponse.FEATURE_DISABLED);
+        }
+        if (!model.doesChannelExist(channel)) {
+            return Broadcast.error(this, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!model.getTMap().get(getSenderId()).isAMemberof(channel)) {
+            return Broadcast.error(this, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.deferred();
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getTerms() {
+        return terms;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s SEARCH %s :%s", getSender(), channel, terms);
+    }
+}
+
+/**
+ * Represents a {@link Command} by an operator to send a notice to every
+ * connected user, whatever channels they are in. The operator proves who
+ * they are with the server's operator key, which the backend checks before
+ * the command reaches the model.
+ */
+class AnnounceCommand extends Command {
+    private final String key;
+    private final String message;
+
+    public AnnounceCommand(int senderId, String sender, String key, String message) {
+        super(senderId, sender);
+        this.key = key;
+        this.message = message;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.ANNOUNCE;
+    }
+
+    /**
+     * Announcements do not change the model.
+     *
+     * @return A deferred {@link Broadcast}, for the backend to send the
+     *      announcement
+     */
+    @Override
+    Broadcast applyToModel(ServerModel model) {
+        return Broadcast.deferred();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the line sent to every user, which leaves out the key.
+     */
+    @Override
+    public String toString() {
+        return String.format(":%s ANNOUNCE :%s", getSender(), message);
+    }
+}
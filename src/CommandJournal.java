@@ -0,0 +1,681 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only journal of the changes made to a {@link ServerModel} by
+ * accepted commands, from which the model can be rebuilt after a restart.
+ *
+ * The journal records each change the model makes, rather than the command
+ * text that caused it, so that replaying it needs no parsing, no validation
+ * and no broadcasts. Each record is an opcode byte followed by its fields,
+ * written with {@link DataOutputStream}.
+ *
+ * Records are appended to an in-memory buffer by the model thread, and a
+ * flusher thread writes the buffer out and syncs it to disk every few
+ * milliseconds (group commit). The model thread therefore never waits for
+ * the disk, at the cost of losing the last few milliseconds of changes if the
+ * machine crashes. It only waits if the disk falls so far behind that the
+ * buffer holds more than {@link #MAX_PENDING_BYTES}.
+ *
+ * Records are addressed by their position, the number of record bytes
+ * written before them since the journal was created. A {@link ModelSnapshot}
+ * notes the position it was taken at; once it is on disk, the records before
+ * that position are dropped with {@link #truncateBefore}, and on startup
+ * only the records after it are replayed.
+ */
+final class CommandJournal implements Closeable {
+
+    // Opcodes of the records, named after the command that usually causes them
+    static final byte REGISTER = 1;
+    static final byte DEREGISTER = 2;
+    static final byte NICK = 3;
+    static final byte JOIN = 4;
+    static final byte CREATE = 5;
+    static final byte LEAVE = 6;
+    static final byte DELETE = 7;
+    static final byte SLOW = 8;
+    static final byte ADOPT = 9;
+    static final byte BACKLOG = 10;
+    static final byte TOKEN = 11;
+
+    // "PPJ1", written at the start of every journal file, followed by the
+    // position of the file's first record
+    private static final int MAGIC = 0x50504A31;
+    private static final int HEADER_LENGTH = 12;
+
+    /**
+     * The number of unwritten bytes at which the model thread waits for the
+     * flusher to catch up.
+     */
+    static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final Path path;
+    private final long flushMillis;
+    private final Thread flusher;
+    // Held while the file is written, so batches reach it in order
+    private final Object writeLock;
+    // Guarded by writeLock. The file holds the records from fileStart on.
+    private FileChannel file;
+    private long fileStart;
+
+    // Guarded by this. Records are written to pending, which is swapped with
+    // the empty spare buffer when it is written out. Positions in the journal
+    // count record bytes since the journal was created; written is the
+    // position of the first byte in pending.
+    private ByteArrayOutputStream pending;
+    private DataOutputStream out;
+    private ByteArrayOutputStream spare;
+    private long written;
+    private boolean closed;
+    private IOException failure;
+
+    // Told about each batch of records once it is on disk; null if none
+    private volatile BatchListener listener;
+
+    private CommandJournal(Path path, FileChannel file, long start, long position,
+            long flushMillis) {
+        this.path = path;
+        this.file = file;
+        fileStart = start;
+        this.flushMillis = flushMillis;
+        writeLock = new Object();
+        pending = new ByteArrayOutputStream(64 * 1024);
+        out = new DataOutputStream(pending);
+        spare = new ByteArrayOutputStream(64 * 1024);
+        written = position;
+        closed = false;
+        failure = null;
+        listener = null;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "Journal flusher");
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens a journal for appending, creating it if needed. A record left
+     * incomplete at the end of the file by a crash is cut off.
+     *
+     * @param path The journal file
+     * @param flushMillis How often buffered records are written and synced
+     * @return The open journal
+     * @throws IOException if the file cannot be opened or is not a journal
+     */
+    public static CommandJournal open(Path path, long flushMillis) throws IOException {
+        return open(path, flushMillis, 0);
+    }
+
+    /**
+     * Opens a journal for appending after a snapshot was loaded. If the file
+     * ends before the snapshot's position, because records the snapshot
+     * already holds were lost, the journal is started afresh at that position.
+     *
+     * @param path The journal file
+     * @param flushMillis How often buffered records are written and synced
+     * @param snapshotPosition The journal position of the loaded snapshot
+     * @return The open journal
+     * @throws IOException if the file cannot be opened or is not a journal
+     */
+    public static CommandJournal open(Path path, long flushMillis, long snapshotPosition)
+            throws IOException {
+        long[] extent = Files.exists(path) ? scan(path, -1, null) : null;
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long start;
+        long end;
+        if (extent == null || extent[1] < snapshotPosition) {
+            start = snapshotPosition;
+            end = snapshotPosition;
+            file.truncate(0);
+            writeHeader(file, end);
+        } else {
+            start = extent[0];
+            end = extent[1];
+            file.truncate(HEADER_LENGTH + end - start);
+            file.position(HEADER_LENGTH + end - start);
+        }
+        CommandJournal journal = new CommandJournal(path, file, start, end, flushMillis);
+        journal.flusher.start();
+        return journal;
+    }
+
+    private static void writeHeader(FileChannel file, long start) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putLong(start);
+        header.flip();
+        while (header.hasRemaining()) {
+            file.write(header);
+        }
+    }
+
+    /**
+     * Rebuilds a model by applying every complete record in a journal file.
+     * The model should be empty and must not have a journal attached.
+     *
+     * @param path The journal file
+     * @param model The model to apply the records to
+     * @return The number of records applied
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static long replay(Path path, ServerModel model) throws IOException {
+        return replay(path, model, 0);
+    }
+
+    /**
+     * Brings a model loaded from a snapshot up to date by applying the
+     * complete records of a journal file that follow the snapshot.
+     *
+     * @param path The journal file
+     * @param model The model to apply the records to
+     * @param snapshotPosition The journal position of the loaded snapshot
+     * @return The number of records applied
+     * @throws IOException if the file cannot be read, is not a journal, or
+     *         has been truncated past the snapshot
+     */
+    public static long replay(Path path, ServerModel model, long snapshotPosition)
+            throws IOException {
+        long[] count = new long[1];
+        scan(path, snapshotPosition, new RecordSink() {
+            @Override
+            public void accept(DataInputStream in) throws IOException {
+                apply(in, model);
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Reads the complete records of a journal file from a position on,
+     * passing each to a sink. A position of -1 stands for the start of the
+     * file, wherever that is.
+     *
+     * @return The positions of the start of the file and of the end of its
+     *         last complete record, or null if the file has no header
+     */
+    private static long[] scan(Path path, long from, RecordSink sink) throws IOException {
+        try (InputStream raw = Files.newInputStream(path)) {
+            CountingInputStream counted = new CountingInputStream(
+                    new BufferedInputStream(raw, 64 * 1024));
+            DataInputStream in = new DataInputStream(counted);
+            long start = 0;
+            long valid = HEADER_LENGTH;
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(path + " is not a journal");
+                }
+                start = in.readLong();
+                if (from >= 0 && from < start) {
+                    throw new IOException(path + " starts after position " + from);
+                }
+                while (counted.count - HEADER_LENGTH + start < from) {
+                    skip(in);
+                    valid = counted.count;
+                }
+                while (true) {
+                    if (sink == null) {
+                        skip(in);
+                    } else {
+                        sink.accept(in);
+                    }
+                    valid = counted.count;
+                }
+            } catch (EOFException eofx) {
+                // Whatever follows the last complete record was torn by a crash
+                if (counted.count < HEADER_LENGTH) {
+                    return null;
+                }
+                return new long[] {start, start + valid - HEADER_LENGTH};
+            }
+        }
+    }
+
+    /**
+     * Reads one record and applies it to a model.
+     *
+     * @param in The stream positioned at the start of a record
+     * @param model The model to apply the record to
+     * @throws IOException if the record cannot be read
+     */
+    static void apply(DataInputStream in, ServerModel model) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case REGISTER:
+                model.restoreUser(in.readInt(), in.readUTF());
+                break;
+            case DEREGISTER:
+                model.removeUser(in.readInt());
+                break;
+            case NICK:
+                model.changeName(in.readInt(), in.readUTF());
+                break;
+            case JOIN:
+                model.addGroup(in.readInt(), in.readUTF());
+                break;
+            case CREATE:
+                model.addBoss(in.readInt(), in.readUTF(), in.readBoolean());
+                break;
+            case LEAVE:
+                model.removeGroup(in.readInt(), in.readUTF());
+                break;
+            case DELETE:
+                model.deleteChannel(in.readUTF());
+                break;
+            case SLOW:
+                model.setSlowMode(in.readUTF(), in.readInt());
+                break;
+            case ADOPT:
+                model.adoptUser(in.readInt(), in.readInt());
+                break;
+            case BACKLOG:
+                model.setBacklog(in.readUTF(), in.readInt());
+                break;
+            case TOKEN:
+                model.setResumeDigest(in.readInt(), in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    /**
+     * Applies a batch of complete records, such as one received from a
+     * primary server, to a model.
+     *
+     * @param records The buffer holding the records
+     * @param offset The position in the buffer of the first record
+     * @param length The length of the records
+     * @param model The model to apply the records to
+     * @return The number of records applied
+     * @throws IOException if the batch does not hold complete records
+     */
+    static int applyAll(byte[] records, int offset, int length, ServerModel model)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(records, offset, length));
+        int count = 0;
+        while (in.available() > 0) {
+            apply(in, model);
+            count++;
+        }
+        return count;
+    }
+
+    private static void skip(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case REGISTER:
+            case NICK:
+            case JOIN:
+            case LEAVE:
+            case TOKEN:
+                in.readInt();
+                in.readUTF();
+                break;
+            case DEREGISTER:
+                in.readInt();
+                break;
+            case CREATE:
+                in.readInt();
+                in.readUTF();
+                in.readBoolean();
+                break;
+            case DELETE:
+                in.readUTF();
+                break;
+            case SLOW:
+            case BACKLOG:
+                in.readUTF();
+                in.readInt();
+                break;
+            case ADOPT:
+                in.readInt();
+                in.readInt();
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+
+    //==========================================================================
+    // Recording, called by the model
+    //==========================================================================
+
+    public void recordRegister(int userId, String nickname) {
+        record(REGISTER, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(nickname);
+        });
+    }
+
+    public void recordDeregister(int userId) {
+        record(DEREGISTER, fields -> fields.writeInt(userId));
+    }
+
+    public void recordNick(int userId, String nickname) {
+        record(NICK, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(nickname);
+        });
+    }
+
+    public void recordJoin(int userId, String channel) {
+        record(JOIN, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(channel);
+        });
+    }
+
+    public void recordCreate(int userId, String channel, boolean inviteOnly) {
+        record(CREATE, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(channel);
+            fields.writeBoolean(inviteOnly);
+        });
+    }
+
+    public void recordLeave(int userId, String channel) {
+        record(LEAVE, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(channel);
+        });
+    }
+
+    public void recordDelete(String channel) {
+        record(DELETE, fields -> fields.writeUTF(channel));
+    }
+
+    public void recordSlow(String channel, int messagesPerMinute) {
+        record(SLOW, fields -> {
+            fields.writeUTF(channel);
+            fields.writeInt(messagesPerMinute);
+        });
+    }
+
+    public void recordBacklog(String channel, int lines) {
+        record(BACKLOG, fields -> {
+            fields.writeUTF(channel);
+            fields.writeInt(lines);
+        });
+    }
+
+    public void recordToken(int userId, String digest) {
+        record(TOKEN, fields -> {
+            fields.writeInt(userId);
+            fields.writeUTF(digest);
+        });
+    }
+
+    public void recordAdopt(int detachedId, int userId) {
+        record(ADOPT, fields -> {
+            fields.writeInt(detachedId);
+            fields.writeInt(userId);
+        });
+    }
+
+    private synchronized void record(byte op, RecordFields fields) {
+        try {
+            out.writeByte(op);
+            fields.writeTo(out);
+        } catch (IOException iox) {
+            // Writes to a ByteArrayOutputStream cannot fail
+            throw new IllegalStateException(iox);
+        }
+        committed();
+    }
+
+    /**
+     * Called with the lock held after each record. Wakes the flusher early
+     * if the buffer is getting large, and waits if it is full.
+     */
+    private void committed() {
+        if (pending.size() >= MAX_PENDING_BYTES / 2) {
+            notifyAll();
+        }
+        while (pending.size() >= MAX_PENDING_BYTES && !closed && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    //==========================================================================
+    // Flushing
+    //==========================================================================
+
+    /**
+     * Gets the current position in the journal, which a snapshot taken now
+     * on the model thread holds every record before.
+     *
+     * @return The position after the last record
+     */
+    public synchronized long position() {
+        return written + pending.size();
+    }
+
+    /**
+     * Drops the records before a position, once a snapshot holding them has
+     * been safely written. The records after it are copied to a new file,
+     * which then replaces the journal file.
+     *
+     * @param position A position returned by {@link #position()}
+     * @throws IOException if the journal could not be rewritten
+     */
+    public void truncateBefore(long position) throws IOException {
+        synchronized (writeLock) {
+            writeOut();
+            if (position <= fileStart) {
+                return;
+            }
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(copy, position);
+                long from = HEADER_LENGTH + position - fileStart;
+                long remaining = file.size() - from;
+                while (remaining > 0) {
+                    long n = file.transferTo(from, remaining, copy);
+                    from += n;
+                    remaining -= n;
+                }
+                copy.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            file.close();
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            file.position(file.size());
+            fileStart = position;
+        }
+    }
+
+    /**
+     * Sets the listener told about each batch of records once it has been
+     * written and synced. The listener is called on the thread writing the
+     * batch, in journal order, and should not block.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setBatchListener(BatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Writes out and syncs everything recorded so far, waiting for the disk.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public void flush() throws IOException {
+        writeOut();
+    }
+
+    /**
+     * Flushes the journal and closes its file.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            try {
+                writeOut();
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                if (closed || failure != null) {
+                    return;
+                }
+                try {
+                    wait(flushMillis);
+                } catch (InterruptedException ix) {
+                    return;
+                }
+            }
+            try {
+                writeOut();
+            } catch (IOException iox) {
+                synchronized (this) {
+                    failure = iox;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swaps the buffers and writes the full one to disk. The lock is only
+     * held for the swap, so the model thread can go on recording into the
+     * other buffer while the disk is busy.
+     */
+    private void writeOut() throws IOException {
+        synchronized (writeLock) {
+            ByteArrayOutputStream full;
+            long start;
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                full = pending;
+                start = written;
+                written += full.size();
+                pending = spare;
+                out = new DataOutputStream(pending);
+                notifyAll();
+            }
+            byte[] records = full.toByteArray();
+            ByteBuffer bytes = ByteBuffer.wrap(records);
+            while (bytes.hasRemaining()) {
+                file.write(bytes);
+            }
+            file.force(false);
+            BatchListener batchListener = listener;
+            if (batchListener != null) {
+                batchListener.written(start, records);
+            }
+            full.reset();
+            synchronized (this) {
+                spare = full;
+            }
+        }
+    }
+
+    /**
+     * Is told about the records of a journal as they reach the disk.
+     */
+    interface BatchListener {
+        /**
+         * Called once a batch of complete records has been synced.
+         *
+         * @param position The journal position of the first record
+         * @param records The records, which must not be modified
+         */
+        void written(long position, byte[] records);
+    }
+
+    /**
+     * Writes the fields of a record, after its opcode.
+     */
+    private interface RecordFields {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Receives records as a journal is scanned.
+     */
+    private interface RecordSink {
+        void accept(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Counts the bytes read through it, so that the end of the last complete
+     * record is known.
+     */
+    private static final class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
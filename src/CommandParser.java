@@ -14,6 +14,9 @@ public final class CommandParser {
      * @throws IllegalArgumentException if the commandString is syntactically invalid, meaning that
      *      it is of an unrecognized type or its components do not match its type.
      *
+     * Parsing only depends on the command string, so the {@link ServerBackend} calls this on the
+     * connection threads with a {@code null} sender, and binds the sender on the model thread.
+     *
      * You do not need to modify this file.
      */
     public static Command parse(int senderId, String sender, String commandString) {
@@ -50,14 +53,29 @@ public final class CommandParser {
 
         if (commandType == null) {
             throw new IllegalArgumentException("Unknown command type");
-        } else if (parameters.size() > 2) {
+        } else if (parameters.size() > 3) {
             throw new IllegalArgumentException("Too many parameters");
+        } else if (parameters.size() != commandType.getArity()) {
+            throw new IllegalArgumentException("Wrong number of parameters");
+        } else if ((commandType == CommandType.MESG || commandType == CommandType.SEARCH
+                || commandType == CommandType.ANNOUNCE || commandType == CommandType.PRIVMSG)
+                && payload == null) {
+            throw new IllegalArgumentException("Missing payload");
         }
 
         String param0 = parameters.size() >= 1 ? parameters.get(0) : null;
         String param1 = parameters.size() >= 2 ? parameters.get(1) : null;
+        String param2 = parameters.size() >= 3 ? parameters.get(2) : null;
 
         switch (commandType) {
+            case ANNOUNCE:
+                return new AnnounceCommand(senderId, sender, param0, payload);
+            case BACKLOG:
+                int lines = Integer.parseInt(param1);
+                if (lines < 0) {
+                    throw new IllegalArgumentException("Negative backlog");
+                }
+                return new BacklogCommand(senderId, sender, param0, lines);
             case CREATE:
                 boolean isInviteOnly;
                 if ("1".equals(param1)) {
@@ -68,6 +86,13 @@ public final class CommandParser {
                     return null;
                 }
                 return new CreateCommand(senderId, sender, param0, isInviteOnly);
+            case HISTORY:
+                long beforeSequence = Long.parseLong(param1);
+                int count = Integer.parseInt(param2);
+                if (beforeSequence < 0 || count <= 0) {
+                    throw new IllegalArgumentException("Invalid history page");
+                }
+                return new HistoryCommand(senderId, sender, param0, beforeSequence, count);
             case INVITE:
                 return new InviteCommand(senderId, sender, param0, param1);
             case JOIN:
@@ -80,15 +105,23 @@ public final class CommandParser {
                 return new MessageCommand(senderId, sender, param0, payload);
             case NICK:
                 return new NicknameCommand(senderId, sender, param0);
+            case PRIVMSG:
+                return new PrivateMessageCommand(senderId, sender, param0, payload);
+            case RESUME:
+                return new ResumeCommand(senderId, sender, param0);
+            case SEARCH:
+                return new SearchCommand(senderId, sender, param0, payload);
+            case SLOW:
+                int messagesPerMinute = Integer.parseInt(param1);
+                if (messagesPerMinute < 0) {
+                    throw new IllegalArgumentException("Negative rate");
+                }
+                return new SlowCommand(senderId, sender, param0, messagesPerMinute);
             default:
                 return null;
         }
     }
 
-    private enum CommandType {
-        CREATE, INVITE, JOIN, KICK, LEAVE, MESG, NICK
-    }
-
     // Prevents the instantiation of any CommandParser objects,
     // which would be nonsensical.
     private CommandParser() {
@@ -0,0 +1,40 @@
+/**
+ * The types of {@link Command} that a client can issue, as named in the
+ * protocol.
+ */
+enum CommandType {
+    ANNOUNCE(1, false),
+    BACKLOG(2, false),
+    CREATE(2, false),
+    HISTORY(3, false),
+    INVITE(2, false),
+    JOIN(1, false),
+    KICK(2, true),
+    LEAVE(1, true),
+    MESG(1, false),
+    NICK(1, true),
+    PRIVMSG(1, false),
+    RESUME(1, true),
+    SEARCH(1, false),
+    SLOW(2, false);
+
+    // The number of space-separated parameters the command takes
+    private final int arity;
+
+    // Whether the command changes who is in a channel or who a user is, and
+    // should therefore be run ahead of bulk chat traffic
+    private final boolean control;
+
+    CommandType(int arity, boolean control) {
+        this.arity = arity;
+        this.control = control;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public boolean isControl() {
+        return control;
+    }
+}
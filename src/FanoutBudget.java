@@ -0,0 +1,44 @@
+/**
+ * Limits the number of message deliveries the server makes per second,
+ * across all channels. A message to a channel with {@code n} members costs
+ * {@code n} deliveries, but is only admitted while the budget holds at least
+ * twice that (or is full), so that as the budget runs down the largest
+ * channels are throttled first while small channels keep flowing.
+ *
+ * A {@code FanoutBudget} is thread-safe, so that the channel actors of an
+ * ACTOR mode backend can share one.
+ */
+final class FanoutBudget {
+
+    private final TokenBucket bucket;
+    private final int burst;
+
+    /**
+     * Constructs a full {@code FanoutBudget}.
+     *
+     * @param limit The sustained deliveries per second, and the number of
+     *              deliveries that may be made at once
+     * @param now The current value of {@link System#nanoTime()}
+     */
+    public FanoutBudget(RateLimit limit, long now) {
+        bucket = new TokenBucket(limit, now);
+        burst = limit.getBurst();
+    }
+
+    /**
+     * Admits a message if the budget allows it, charging the budget for its
+     * deliveries.
+     *
+     * @param recipients The number of users the message will be delivered to
+     * @param now The current value of {@link System#nanoTime()}
+     * @return true if the message may be delivered
+     */
+    public synchronized boolean tryAdmit(int recipients, long now) {
+        double needed = Math.min(2.0 * recipients, burst);
+        if (bucket.available(now) < needed) {
+            return false;
+        }
+        bucket.take(recipients);
+        return true;
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Writes broadcasts to their recipients on a fixed set of writer threads, so
+ * that the thread that made a broadcast to a large channel is not held up
+ * for the whole of its write loop.
+ *
+ * Each recipient belongs to one writer thread, chosen from its user id, and
+ * each writer thread writes what it is handed in order. A broadcast with at
+ * least the threshold number of recipients is split into one chunk per
+ * writer thread, and the chunks are written in parallel. A smaller broadcast
+ * is written on the calling thread, except to recipients whose writer thread
+ * still has work queued, whose part is queued behind that work, unless the
+ * caller asks for it to be queued whatever its size. Either way a recipient
+ * receives broadcasts in the order they were dispatched.
+ *
+ * Each writer thread queues a bounded number of chunks; a thread that
+ * dispatches a large broadcast while its writer threads are that far behind
+ * waits for them.
+ */
+final class FanoutDispatcher {
+
+    // The chunks each writer thread may have queued before dispatch waits
+    static final int LANE_CAPACITY = 256;
+
+    // Queued to stop a writer thread
+    private static final Map<Integer, List<String>> STOP = new HashMap<>();
+
+    private final Lane[] lanes;
+    private final int threshold;
+    private final Consumer<Map<Integer, List<String>>> writer;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a {@code FanoutDispatcher} and starts its writer threads.
+     *
+     * @param threads The number of writer threads
+     * @param threshold The number of recipients from which a broadcast is
+     *                  split across the writer threads
+     * @param writer Writes responses to their recipients; it is called on the
+     *               writer threads and on the threads calling
+     *               {@link #dispatch}, but never on two threads at once for
+     *               the same recipient
+     * @throws IllegalArgumentException if threads or threshold is not
+     *                                  positive
+     */
+    public FanoutDispatcher(int threads, int threshold,
+            Consumer<Map<Integer, List<String>>> writer) {
+        if (threads <= 0 || threshold <= 0) {
+            throw new IllegalArgumentException("Threads and threshold must be positive");
+        }
+        if (writer == null) {
+            throw new NullPointerException();
+        }
+        this.threshold = threshold;
+        this.writer = writer;
+        lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new Lane("Fanout writer " + i);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Writes responses to their recipients, or queues them to be written.
+     * May wait if the writer threads are far behind.
+     *
+     * @param responses The responses to each recipient, by user id
+     */
+    public void dispatch(Map<Integer, List<String>> responses) {
+        dispatch(responses, false);
+    }
+
+    /**
+     * Writes responses to their recipients, or queues them to be written.
+     * May wait if the writer threads are far behind.
+     *
+     * @param responses The responses to each recipient, by user id
+     * @param forceAsync Whether to queue the responses to the writer threads
+     *                   even if there are fewer recipients than the threshold
+     */
+    public void dispatch(Map<Integer, List<String>> responses, boolean forceAsync) {
+        if (closed) {
+            writer.accept(responses);
+            return;
+        }
+        boolean large = forceAsync || responses.size() >= threshold;
+        List<Map<Integer, List<String>>> chunks = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            chunks.add(null);
+        }
+        Map<Integer, List<String>> inline = null;
+        for (Map.Entry<Integer, List<String>> entry : responses.entrySet()) {
+            int index = Math.floorMod(entry.getKey(), lanes.length);
+            if (!large && lanes[index].pending.get() == 0) {
+                if (inline == null) {
+                    inline = new HashMap<>();
+                }
+                inline.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            Map<Integer, List<String>> chunk = chunks.get(index);
+            if (chunk == null) {
+                chunk = new HashMap<>();
+                chunks.set(index, chunk);
+            }
+            chunk.put(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if (chunks.get(i) != null) {
+                lanes[i].submit(chunks.get(i));
+            }
+        }
+        if (inline != null) {
+            writer.accept(inline);
+        }
+    }
+
+    /**
+     * Writes everything already queued, then stops the writer threads.
+     * Broadcasts dispatched afterwards are written on the calling thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              writer threads
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.queue.put(STOP);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.join();
+        }
+    }
+
+    /**
+     * One writer thread and the chunks queued for it.
+     */
+    private final class Lane implements Runnable {
+        private final BlockingQueue<Map<Integer, List<String>>> queue;
+        // Chunks queued and not yet written; only ever 0 when the queue is
+        // empty and nothing is being written
+        private final AtomicInteger pending;
+        private final Thread thread;
+
+        private Lane(String name) {
+            queue = new ArrayBlockingQueue<>(LANE_CAPACITY);
+            pending = new AtomicInteger();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        private void submit(Map<Integer, List<String>> chunk) {
+            pending.incrementAndGet();
+            try {
+                queue.put(chunk);
+            } catch (InterruptedException ix) {
+                // Nothing is waiting on this chunk; write it here rather
+                // than lose it
+                pending.decrementAndGet();
+                Thread.currentThread().interrupt();
+                writer.accept(chunk);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Map<Integer, List<String>> chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException ix) {
+                    return;
+                }
+                if (chunk == STOP) {
+                    // Write anything queued while the dispatcher closed
+                    while ((chunk = queue.poll()) != null) {
+                        writer.accept(chunk);
+                    }
+                    return;
+                }
+                try {
+                    writer.accept(chunk);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues incoming tasks per connection and hands them to a single consumer
+ * thread in round-robin order. Each connection with pending tasks gets a turn
+ * of at most {@code quantum} tasks, so a client pipelining thousands of
+ * commands cannot push every other client's commands to the back of a shared
+ * queue. Tasks from the same connection are always taken in the order they
+ * were submitted.
+ *
+ * Connections wait for their turn in one of two lanes. A connection whose
+ * next task is urgent (a connection or disconnection, or a control command),
+ * or which is closing, waits in the urgent lane, which is always served
+ * before the bulk lane. Because a connection's tasks are never reordered, an
+ * urgent task queued behind bulk tasks of the same connection still waits for
+ * them; only other connections' bulk traffic is overtaken.
+ *
+ * The scheduler holds a bounded number of tasks, and of bytes of request
+ * text, submitted through {@link #put}. A thread putting a task while the
+ * scheduler is full blocks until the consumer catches up; for a connection
+ * thread, that means the connection stops being read, and TCP flow control
+ * pushes back on the client. Connections and disconnections are submitted
+ * without counting against the bounds, so they are never held back or lost.
+ *
+ * Any number of threads may submit tasks, but {@link #take} must only be
+ * called from one consumer thread.
+ *
+ * @param <T> The type of task being scheduled
+ */
+final class InboundScheduler<T> {
+
+    private final int quantum;
+    private final Map<Integer, Inbox<T>> inboxes;
+    private final Queue<Inbox<T>> urgentLane;
+    private final Queue<Inbox<T>> bulkLane;
+    private final Semaphore readyInboxes;
+    private final AtomicInteger pending;
+    private final Semaphore taskCapacity;
+    private final Semaphore byteCapacity;
+    private final int maxBytes;
+
+    // The inbox whose turn it is, the lane it was taken from, and the tasks
+    // left in its turn. Only the consumer thread touches these.
+    private Inbox<T> current;
+    private boolean currentUrgent;
+    private int remaining;
+
+    /**
+     * Constructs an empty {@code InboundScheduler}.
+     *
+     * @param quantum The maximum number of tasks taken from one connection
+     *                before moving on to the next
+     * @param maxTasks The maximum number of tasks waiting at once
+     * @param maxBytes The maximum number of bytes of request text waiting at
+     *                 once
+     */
+    public InboundScheduler(int quantum, int maxTasks, int maxBytes) {
+        if (quantum <= 0 || maxTasks <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Quantum and bounds must be positive");
+        }
+        this.quantum = quantum;
+        inboxes = new ConcurrentHashMap<>();
+        urgentLane = new ConcurrentLinkedQueue<>();
+        bulkLane = new ConcurrentLinkedQueue<>();
+        readyInboxes = new Semaphore(0);
+        pending = new AtomicInteger();
+        taskCapacity = new Semaphore(maxTasks);
+        byteCapacity = new Semaphore(maxBytes);
+        this.maxBytes = maxBytes;
+        current = null;
+        currentUrgent = false;
+        remaining = 0;
+    }
+
+    /**
+     * Adds a task to the end of the given connection's inbox, waiting for
+     * room if the scheduler already holds as many tasks or bytes as it may.
+     *
+     * @param connectionId The connection that the task came from
+     * @param task The task to schedule
+     * @param urgent Whether the task should run ahead of bulk traffic from
+     *               other connections
+     * @param bytes The size of the request text the task was made from
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public void put(int connectionId, T task, boolean urgent, int bytes)
+            throws InterruptedException {
+        // A single task larger than the whole bound still gets in alone
+        int permits = Math.min(Math.max(bytes, 0), maxBytes);
+        taskCapacity.acquire();
+        try {
+            byteCapacity.acquire(permits);
+        } catch (InterruptedException ix) {
+            taskCapacity.release();
+            throw ix;
+        }
+        enqueue(connectionId, new Entry<T>(task, urgent, permits));
+    }
+
+    /**
+     * Adds a task to the end of the given connection's inbox without waiting
+     * and without counting it against the bounds. This is meant for the
+     * connection and disconnection tasks, which must never be held back.
+     *
+     * @param connectionId The connection that the task came from
+     * @param task The task to schedule
+     * @param urgent Whether the task should run ahead of bulk traffic from
+     *               other connections
+     */
+    public void submit(int connectionId, T task, boolean urgent) {
+        enqueue(connectionId, new Entry<T>(task, urgent, Entry.UNCOUNTED));
+    }
+
+    /**
+     * Adds the last task of a connection to its inbox. From then on, all of
+     * the connection's remaining tasks are served in the urgent lane, so that
+     * a departed client's state is torn down promptly.
+     *
+     * @param connectionId The connection that is closing
+     * @param task The task that closes the connection
+     */
+    public void submitLast(int connectionId, T task) {
+        Inbox<T> inbox = inboxes.computeIfAbsent(connectionId, id -> new Inbox<T>());
+        inbox.closing = true;
+        // If the inbox is waiting in the bulk lane, move it to the urgent lane
+        if (bulkLane.remove(inbox)) {
+            urgentLane.add(inbox);
+        }
+        submit(connectionId, task, true);
+    }
+
+    private void enqueue(int connectionId, Entry<T> entry) {
+        Inbox<T> inbox = inboxes.computeIfAbsent(connectionId, id -> new Inbox<T>());
+        pending.incrementAndGet();
+        inbox.tasks.add(entry);
+        if (inbox.scheduled.compareAndSet(false, true)) {
+            schedule(inbox);
+        }
+    }
+
+    /**
+     * Takes the next task, blocking until one is available. Must only be
+     * called from the consumer thread.
+     *
+     * @return The next task in round-robin order
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        while (true) {
+            if (current != null) {
+                Entry<T> entry = current.tasks.peek();
+                if (entry != null && remaining > 0 && continuesTurn(entry)) {
+                    current.tasks.poll();
+                    remaining--;
+                    pending.decrementAndGet();
+                    if (entry.bytes != Entry.UNCOUNTED) {
+                        byteCapacity.release(entry.bytes);
+                        taskCapacity.release();
+                    }
+                    return entry.task;
+                }
+                endTurn();
+            }
+            readyInboxes.acquire();
+            // Each permit stands for one inbox in a lane, but submitLast may
+            // briefly have that inbox in flight between the two lanes
+            do {
+                current = urgentLane.poll();
+                currentUrgent = current != null;
+                if (current == null) {
+                    current = bulkLane.poll();
+                }
+            } while (current == null);
+            remaining = quantum;
+        }
+    }
+
+    /**
+     * Forgets the inbox of a connection that has disconnected. No more tasks
+     * should be submitted for the connection afterwards.
+     *
+     * @param connectionId The connection to forget
+     */
+    public void close(int connectionId) {
+        inboxes.remove(connectionId);
+    }
+
+    /**
+     * Checks whether any submitted task has not yet been taken.
+     *
+     * @return true if there are no pending tasks
+     */
+    public boolean isEmpty() {
+        return pending.get() == 0;
+    }
+
+    /**
+     * Decides whether the current turn may go on with the given task. A turn
+     * in the urgent lane ends once the inbox reaches bulk tasks, and a turn in
+     * the bulk lane ends as soon as another connection has urgent work.
+     */
+    private boolean continuesTurn(Entry<T> next) {
+        if (currentUrgent) {
+            return next.urgent || current.closing;
+        }
+        return urgentLane.isEmpty();
+    }
+
+    /**
+     * Ends the current inbox's turn, sending it to the back of a lane if it
+     * still has tasks.
+     */
+    private void endTurn() {
+        Inbox<T> inbox = current;
+        current = null;
+        if (inbox.tasks.isEmpty()) {
+            inbox.scheduled.set(false);
+            // A task may have been submitted between the check and clearing
+            // the flag, in which case its submitter did not schedule it
+            if (inbox.tasks.isEmpty() || !inbox.scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        schedule(inbox);
+    }
+
+    /**
+     * Puts an inbox with pending tasks at the back of the lane matching its
+     * next task.
+     */
+    private void schedule(Inbox<T> inbox) {
+        Entry<T> next = inbox.tasks.peek();
+        if (inbox.closing || (next != null && next.urgent)) {
+            urgentLane.add(inbox);
+        } else {
+            bulkLane.add(inbox);
+        }
+        readyInboxes.release();
+    }
+
+    /**
+     * A task together with its priority and the capacity it holds.
+     */
+    private static final class Entry<T> {
+        // Marks a task that does not count against the bounds
+        private static final int UNCOUNTED = -1;
+
+        private final T task;
+        private final boolean urgent;
+        private final int bytes;
+
+        private Entry(T task, boolean urgent, int bytes) {
+            this.task = task;
+            this.urgent = urgent;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The pending tasks of one connection. The inbox is in a lane, or is the
+     * current inbox, exactly when {@code scheduled} is set.
+     */
+    private static final class Inbox<T> {
+        private final Queue<Entry<T>> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closing;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a byte stream into lines, like {@link java.io.BufferedReader#readLine},
+ * but never holds more than a fixed number of bytes of any one line. The
+ * bytes of a line longer than the limit are discarded as they arrive, up to
+ * the end of the line, and the line is reported as oversized.
+ *
+ * Lines may end with a line feed, a carriage return, or both.
+ */
+final class LineReader {
+
+    private final InputStream in;
+    private final Charset charset;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    private final int maxLineLength;
+    private byte[] line;
+    private int lineLength;
+    private boolean oversized;
+    private boolean skipLineFeed;
+
+    /**
+     * Constructs a {@code LineReader}.
+     *
+     * @param in The stream to read from
+     * @param charset The encoding of the stream
+     * @param maxLineLength The longest line, in bytes, that will be returned
+     */
+    public LineReader(InputStream in, Charset charset, int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("Line length must be positive");
+        }
+        this.in = in;
+        this.charset = charset;
+        this.maxLineLength = maxLineLength;
+        buffer = new byte[8192];
+        position = 0;
+        limit = 0;
+        line = new byte[Math.min(maxLineLength, 256)];
+        lineLength = 0;
+        oversized = false;
+        skipLineFeed = false;
+    }
+
+    /**
+     * Reads the next line, without its terminator. If the line was longer
+     * than the limit, an empty string is returned and {@link #isOversized()}
+     * is true until the next call.
+     *
+     * @return The next line, or null at the end of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public String readLine() throws IOException {
+        lineLength = 0;
+        oversized = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (lineLength == 0 && !oversized) {
+                        return null;
+                    }
+                    return finishLine();
+                }
+            }
+            byte b = buffer[position++];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n') {
+                return finishLine();
+            } else if (b == '\r') {
+                skipLineFeed = true;
+                return finishLine();
+            } else if (!oversized) {
+                append(b);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the last line read was longer than the limit.
+     *
+     * @return true if the last line was discarded for being too long
+     */
+    public boolean isOversized() {
+        return oversized;
+    }
+
+    /**
+     * Gets the size of the last line read, as it arrived on the stream, so
+     * that it can be counted in bytes rather than in decoded characters.
+     *
+     * @return The number of bytes in the last line, without its terminator,
+     *         or 0 if the line was oversized
+     */
+    public int getLineBytes() {
+        return oversized ? 0 : lineLength;
+    }
+
+    private void append(byte b) {
+        if (lineLength == maxLineLength) {
+            oversized = true;
+            lineLength = 0;
+            return;
+        }
+        if (lineLength == line.length) {
+            byte[] grown = new byte[Math.min(maxLineLength, line.length * 2)];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        line[lineLength++] = b;
+    }
+
+    private String finishLine() {
+        if (oversized) {
+            return "";
+        }
+        return new String(line, 0, lineLength, charset);
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory inverted index of the words in each channel's messages, used
+ * to answer SEARCH requests with the sequence numbers of matching messages
+ * in the {@link MessageLog}.
+ *
+ * Messages are handed over on the model thread with {@link #offer}, which
+ * only puts them on a bounded queue; a single indexer thread splits them
+ * into words and adds them to the index. If the indexer falls behind and
+ * the queue fills, further messages are left out of the index rather than
+ * holding up the model thread.
+ *
+ * Each channel's index is split into segments of {@code SEGMENT_SPAN}
+ * consecutive sequence numbers. A segment maps each word to a posting list
+ * of the sequence numbers it appears in, stored as varint-encoded gaps.
+ * When the index is over its byte budget, the oldest segments across all
+ * channels are dropped, so old messages can no longer be found by search,
+ * although they can still be read with HISTORY.
+ */
+final class MessageIndex {
+
+    // The number of sequence numbers covered by each segment
+    static final int SEGMENT_SPAN = 4096;
+
+    // Words longer than this are cut short, so a long token cannot bloat a segment
+    private static final int MAX_WORD_LENGTH = 32;
+
+    // An estimate of the bookkeeping bytes of each word in a segment
+    private static final int WORD_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final ServerLog log;
+    private final BlockingQueue<Runnable> tasks;
+    private final Map<String, ChannelIndex> channels;
+    private final AtomicLong bytes;
+    private final AtomicLong dropped;
+
+    // Segments in the order they were started, oldest first; indexer only
+    private final Deque<Segment> segmentsByAge;
+
+    private final Thread indexer;
+    private volatile boolean open;
+
+    /**
+     * Constructs a {@code MessageIndex} and starts its indexer thread.
+     *
+     * @param maxBytes The most bytes the index should hold
+     * @param queueCapacity The most messages waiting to be indexed
+     * @param log Where dropped messages and failures are reported
+     */
+    public MessageIndex(long maxBytes, int queueCapacity, ServerLog log) {
+        if (maxBytes <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid index settings");
+        }
+        this.maxBytes = maxBytes;
+        this.log = log;
+        tasks = new ArrayBlockingQueue<>(queueCapacity);
+        channels = new ConcurrentHashMap<>();
+        bytes = new AtomicLong();
+        dropped = new AtomicLong();
+        segmentsByAge = new ArrayDeque<>();
+        open = true;
+        indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                index();
+            }
+        }, "Message indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queues a message to be indexed. Never blocks; if the queue is full,
+     * the message is not indexed.
+     *
+     * @param channel The channel the message was sent to
+     * @param sequence The message's sequence number in the message log
+     * @param response The MESG response relayed to the channel
+     */
+    public void offer(String channel, long sequence, String response) {
+        final ChannelIndex channelIndex = channelIndex(channel);
+        final long messageSequence = sequence;
+        final String line = response;
+        boolean queued = tasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                add(channelIndex, messageSequence, payloadOf(line));
+            }
+        });
+        if (!queued && dropped.getAndIncrement() % 1000 == 0) {
+            log.log(ServerLog.Level.WARN, "index-behind", -1,
+                    dropped.get() + " messages not indexed");
+        }
+    }
+
+    /**
+     * Queues the messages already in a message log to be indexed, oldest
+     * first, such as after a restart. Messages offered while this runs are
+     * not indexed twice.
+     *
+     * @param messageLog The message log
+     * @param channelNames The channels to index
+     * @param charset The charset of the message log
+     */
+    public void backfill(final MessageLog messageLog, Collection<String> channelNames,
+            final Charset charset) {
+        for (final String channel : channelNames) {
+            final ChannelIndex channelIndex = channelIndex(channel);
+            tasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        backfillChannel(messageLog, channel, channelIndex, charset);
+                    } catch (IOException iox) {
+                        log.log(ServerLog.Level.WARN, "index-failed", -1, iox);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds the messages of a channel that contain every word of a query.
+     *
+     * @param channel The channel
+     * @param query The words to look for
+     * @param limit The most messages to find
+     * @return The sequence numbers of the latest matching messages, oldest
+     *         first
+     */
+    public List<Long> search(String channel, String query, int limit) {
+        ChannelIndex channelIndex = channels.get(channel);
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(wordsOf(query)));
+        if (channelIndex == null || words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Long> found = channelIndex.search(words, limit);
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Forgets a channel's index, when the channel is deleted. Messages of
+     * the channel still waiting to be indexed are skipped.
+     *
+     * @param channel The channel
+     */
+    public void remove(String channel) {
+        ChannelIndex channelIndex = channels.remove(channel);
+        if (channelIndex != null) {
+            channelIndex.clear(bytes);
+        }
+    }
+
+    /**
+     * Gets the estimated size of the index.
+     *
+     * @return The size, in bytes
+     */
+    public long size() {
+        return bytes.get();
+    }
+
+    /**
+     * Waits until every message queued so far has been indexed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitIdle() throws InterruptedException {
+        final CountDownLatch reached = new CountDownLatch(1);
+        tasks.put(new Runnable() {
+            @Override
+            public void run() {
+                reached.countDown();
+            }
+        });
+        reached.await();
+    }
+
+    /**
+     * Stops the indexer thread. Messages still queued are not indexed.
+     */
+    public void close() {
+        open = false;
+        indexer.interrupt();
+    }
+
+    private ChannelIndex channelIndex(String channel) {
+        ChannelIndex channelIndex = channels.get(channel);
+        if (channelIndex == null) {
+            channelIndex = new ChannelIndex();
+            ChannelIndex raced = channels.putIfAbsent(channel, channelIndex);
+            if (raced != null) {
+                channelIndex = raced;
+            }
+        }
+        return channelIndex;
+    }
+
+    private void index() {
+        while (open) {
+            Runnable task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException ix) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException rx) {
+                log.log(ServerLog.Level.ERROR, "index-failed", -1, rx);
+            }
+        }
+    }
+
+    private void backfillChannel(MessageLog messageLog, String channel,
+            ChannelIndex channelIndex, Charset charset) throws IOException {
+        long first = messageLog.firstSequence(channel);
+        List<MessageLog.Entry> last = messageLog.read(channel, 0, 1);
+        if (first == 0 || last.isEmpty()) {
+            return;
+        }
+        long end = last.get(0).getSequence() + 1;
+        for (long start = first; start < end; start += SEGMENT_SPAN) {
+            long pageEnd = Math.min(end, start + SEGMENT_SPAN);
+            for (MessageLog.Entry entry : messageLog.read(channel, pageEnd,
+                    (int) (pageEnd - start))) {
+                CharBuffer line = charset.decode(entry.getLine());
+                add(channelIndex, entry.getSequence(), payloadOf(line.toString()));
+            }
+        }
+    }
+
+    /**
+     * Adds a message to a channel's index, then drops the oldest segments
+     * while the index is over budget. Runs on the indexer thread.
+     */
+    private void add(ChannelIndex channelIndex, long sequence, String text) {
+        Segment started = channelIndex.add(sequence, wordsOf(text), bytes);
+        if (started != null) {
+            segmentsByAge.addLast(started);
+        }
+        while (bytes.get() > maxBytes && segmentsByAge.size() > 1) {
+            Segment oldest = segmentsByAge.pollFirst();
+            oldest.owner.evict(oldest, bytes);
+        }
+    }
+
+    // Responses are of the form ":<sender> MESG <channel> :<message>"
+    private static String payloadOf(String response) {
+        int payloadStart = response.indexOf(" :", 1);
+        return payloadStart < 0 ? "" : response.substring(payloadStart + 2);
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits.
+     */
+    static List<String> wordsOf(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                int end = Math.min(i, start + MAX_WORD_LENGTH);
+                words.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * The segments of one channel's index, newest last. Locked while a
+     * message is added or a search runs.
+     */
+    private static final class ChannelIndex {
+        private final List<Segment> segments = new ArrayList<>();
+        private long lastSequence = 0;
+        private boolean removed = false;
+
+        private synchronized Segment add(long sequence, List<String> words, AtomicLong bytes) {
+            // Messages already indexed by a backfill are skipped
+            if (removed || sequence <= lastSequence) {
+                return null;
+            }
+            lastSequence = sequence;
+            long base = sequence - sequence % SEGMENT_SPAN;
+            Segment started = null;
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.base != base) {
+                segment = new Segment(this, base);
+                segments.add(segment);
+                started = segment;
+            }
+            Set<String> distinct = new LinkedHashSet<>(words);
+            for (String word : distinct) {
+                bytes.addAndGet(segment.add(word, sequence));
+            }
+            return started;
+        }
+
+        private synchronized List<Long> search(List<String> words, int limit) {
+            List<Long> found = new ArrayList<>();
+            for (int i = segments.size() - 1; i >= 0 && found.size() < limit; i--) {
+                long[] matches = segments.get(i).match(words);
+                for (int m = matches.length - 1; m >= 0 && found.size() < limit; m--) {
+                    found.add(matches[m]);
+                }
+            }
+            return found;
+        }
+
+        private synchronized void evict(Segment segment, AtomicLong bytes) {
+            if (segments.remove(segment)) {
+                bytes.addAndGet(-segment.bytes);
+            }
+        }
+
+        private synchronized void clear(AtomicLong bytes) {
+            removed = true;
+            for (Segment segment : segments) {
+                bytes.addAndGet(-segment.bytes);
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * The posting lists of one span of a channel's sequence numbers.
+     */
+    private static final class Segment {
+        private final ChannelIndex owner;
+        private final long base;
+        private final Map<String, Postings> words;
+        private long bytes;
+
+        private Segment(ChannelIndex owner, long base) {
+            this.owner = owner;
+            this.base = base;
+            words = new HashMap<>();
+            bytes = 0;
+        }
+
+        /**
+         * Adds a sequence number to a word's posting list.
+         *
+         * @return The number of bytes the segment grew by
+         */
+        private long add(String word, long sequence) {
+            Postings postings = words.get(word);
+            long grown = 0;
+            if (postings == null) {
+                postings = new Postings(base);
+                words.put(word, postings);
+                grown += WORD_OVERHEAD + 2L * word.length();
+            }
+            grown += postings.add(sequence);
+            bytes += grown;
+            return grown;
+        }
+
+        /**
+         * Finds the sequence numbers in every given word's posting list.
+         */
+        private long[] match(List<String> query) {
+            long[] result = null;
+            for (String word : query) {
+                Postings postings = words.get(word);
+                if (postings == null) {
+                    return new long[0];
+                }
+                long[] sequences = postings.decode();
+                result = result == null ? sequences : intersect(result, sequences);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            return result == null ? new long[0] : result;
+        }
+
+        private static long[] intersect(long[] a, long[] b) {
+            long[] both = new long[Math.min(a.length, b.length)];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    both[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(both, n);
+        }
+    }
+
+    /**
+     * A posting list: ascending sequence numbers, each stored as a varint of
+     * its gap from the one before, the first from the segment's base.
+     */
+    private static final class Postings {
+        private final long base;
+        private byte[] data;
+        private int length;
+        private int count;
+        private long last;
+
+        private Postings(long base) {
+            this.base = base;
+            data = new byte[4];
+            length = 0;
+            count = 0;
+            last = base;
+        }
+
+        /**
+         * @return The number of bytes the list's array grew by
+         */
+        private int add(long sequence) {
+            int grown = 0;
+            if (length + 10 > data.length) {
+                int capacity = Math.max(data.length * 2, length + 10);
+                grown = capacity - data.length;
+                data = Arrays.copyOf(data, capacity);
+            }
+            long gap = sequence - last;
+            while ((gap & ~0x7FL) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = sequence;
+            count++;
+            return grown;
+        }
+
+        private long[] decode() {
+            long[] sequences = new long[count];
+            long sequence = base;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                sequence += gap;
+                sequences[i] = sequence;
+            }
+            return sequences;
+        }
+    }
+}
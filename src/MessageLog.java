@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A durable log of the messages sent to each channel, which can be paged
+ * through with the HISTORY command.
+ *
+ * Each channel has a directory of segment files, each holding the messages
+ * from a starting sequence number on. Segments are mapped into memory, so an
+ * append is a copy into the mapping and a read is a view of it; the
+ * operating system writes the pages out. When a segment is full, a new one is
+ * started, and old segments are deleted once they are older than the
+ * retention time or the channel's log is over its size limit.
+ *
+ * Each record is its length, its sequence number, the time it was written,
+ * and the response line relayed to the channel, encoded in the charset the
+ * server speaks. Sequence numbers start at 1 for each channel.
+ *
+ * Messages are appended on the model thread and read on other threads; each
+ * channel's log is locked for the duration of an append or of finding the
+ * records of a read, but not while those records are sent.
+ */
+final class MessageLog {
+
+    // The record header: length, sequence number and time
+    private static final int HEADER = 4 + 8 + 8;
+
+    private final Path directory;
+    private final Charset charset;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long maxBytesPerChannel;
+    private final ServerLog log;
+    private final Map<String, ChannelLog> channels;
+
+    /**
+     * Constructs a {@code MessageLog} over a directory, creating it if needed.
+     *
+     * @param directory The directory holding a subdirectory for each channel
+     * @param charset The charset response lines are stored in
+     * @param segmentBytes The size of each segment file
+     * @param retentionMillis How long messages are kept, or 0 for no limit
+     * @param maxBytesPerChannel The most bytes of segments kept per channel,
+     *                           or 0 for no limit
+     * @param log Where failures to write the log are reported
+     * @throws IOException if the directory cannot be created
+     */
+    public MessageLog(Path directory, Charset charset, int segmentBytes,
+            long retentionMillis, long maxBytesPerChannel, ServerLog log) throws IOException {
+        if (segmentBytes < 64 * 1024 || retentionMillis < 0 || maxBytesPerChannel < 0) {
+            throw new IllegalArgumentException("Invalid message log settings");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.charset = charset;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.maxBytesPerChannel = maxBytesPerChannel;
+        this.log = log;
+        channels = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Appends a message to a channel's log. A failure to write is reported
+     * to the server log rather than thrown, so that the message is still
+     * delivered.
+     *
+     * @param channel The channel the message was sent to
+     * @param response The MESG response relayed to the channel
+     * @return The sequence number of the message, or -1 if it was not logged
+     */
+    public long append(String channel, String response) {
+        try {
+            return channelLog(channel).append(response.getBytes(charset),
+                    System.currentTimeMillis());
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.ERROR, "message-log-failed", -1, iox);
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a page of a channel's messages.
+     *
+     * @param channel The channel
+     * @param beforeSequence Read messages before this sequence number, or 0
+     *                       for the latest messages
+     * @param count The most messages to read
+     * @return The messages, oldest first
+     * @throws IOException if the channel's log cannot be opened
+     */
+    public List<Entry> read(String channel, long beforeSequence, int count) throws IOException {
+        ChannelLog channelLog = channels.get(channel);
+        if (channelLog == null) {
+            if (!Files.isDirectory(directory.resolve(channel))) {
+                return Collections.emptyList();
+            }
+            channelLog = channelLog(channel);
+        }
+        return channelLog.read(beforeSequence, count);
+    }
+
+    /**
+     * Gets the sequence number of the oldest message kept in a channel's log.
+     *
+     * @param channel The channel
+     * @return The sequence number, or 0 if the channel has no log
+     * @throws IOException if the channel's log cannot be opened
+     */
+    public long firstSequence(String channel) throws IOException {
+        ChannelLog channelLog = channels.get(channel);
+        if (channelLog == null) {
+            if (!Files.isDirectory(directory.resolve(channel))) {
+                return 0;
+            }
+            channelLog = channelLog(channel);
+        }
+        return channelLog.firstSequence();
+    }
+
+    /**
+     * Deletes a channel's log, when the channel is deleted.
+     *
+     * @param channel The channel
+     */
+    public void delete(String channel) {
+        ChannelLog channelLog = channels.remove(channel);
+        try {
+            if (channelLog != null) {
+                channelLog.deleteAll();
+            } else {
+                deleteDirectory(directory.resolve(channel));
+            }
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.WARN, "message-log-failed", -1, iox);
+        }
+    }
+
+    /**
+     * Deletes the logs of every channel not in the given collection, such as
+     * those of channels that did not survive a restart.
+     *
+     * @param live The channels whose logs are kept
+     * @throws IOException if the directory cannot be listed
+     */
+    public void retainOnly(Collection<String> live) throws IOException {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory)) {
+            for (Path dir : dirs) {
+                String channel = dir.getFileName().toString();
+                if (!live.contains(channel)) {
+                    delete(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments that have passed the retention time or put their
+     * channel over its size limit. Meant to be called periodically from a
+     * timer thread.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (ChannelLog channelLog : channels.values()) {
+            try {
+                channelLog.sweep(now);
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.WARN, "message-log-failed", -1, iox);
+            }
+        }
+    }
+
+    private ChannelLog channelLog(String channel) throws IOException {
+        ChannelLog channelLog = channels.get(channel);
+        if (channelLog == null) {
+            synchronized (channels) {
+                channelLog = channels.get(channel);
+                if (channelLog == null) {
+                    channelLog = new ChannelLog(directory.resolve(channel));
+                    channels.put(channel, channelLog);
+                }
+            }
+        }
+        return channelLog;
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * One message read from the log.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final ByteBuffer line;
+
+        private Entry(long sequence, ByteBuffer line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the stored response line, as a read-only view of the log.
+         *
+         * @return The encoded line, positioned at its start
+         */
+        public ByteBuffer getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * The segments of one channel's log.
+     */
+    private final class ChannelLog {
+        private final Path dir;
+        private final List<Segment> segments;
+        private long nextSequence;
+
+        private ChannelLog(Path dir) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            segments = new ArrayList<>();
+            nextSequence = 1;
+            Path[] files;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.seg")) {
+                List<Path> found = new ArrayList<>();
+                for (Path file : stream) {
+                    found.add(file);
+                }
+                files = found.toArray(new Path[0]);
+            }
+            // Names are zero-padded sequence numbers, so they sort in order
+            Arrays.sort(files);
+            for (Path file : files) {
+                Segment segment = Segment.open(file);
+                segments.add(segment);
+                nextSequence = segment.baseSequence + segment.count;
+            }
+        }
+
+        private synchronized long append(byte[] line, long now) throws IOException {
+            if (HEADER + line.length > segmentBytes) {
+                return -1;
+            }
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last == null || !last.hasRoom(line.length)) {
+                last = Segment.create(dir.resolve(String.format("%020d.seg", nextSequence)),
+                        nextSequence, segmentBytes);
+                segments.add(last);
+                sweep(now);
+            }
+            long sequence = nextSequence++;
+            last.append(sequence, now, line);
+            return sequence;
+        }
+
+        private synchronized List<Entry> read(long beforeSequence, int count) {
+            if (segments.isEmpty() || count <= 0) {
+                return Collections.emptyList();
+            }
+            long end = beforeSequence <= 0 || beforeSequence > nextSequence
+                    ? nextSequence : beforeSequence;
+            long start = Math.max(segments.get(0).baseSequence, end - count);
+            List<Entry> entries = new ArrayList<>((int) Math.max(0, end - start));
+            int index = segmentIndex(start);
+            for (long sequence = start; sequence < end; sequence++) {
+                Segment segment = segments.get(index);
+                if (sequence >= segment.baseSequence + segment.count) {
+                    segment = segments.get(++index);
+                }
+                entries.add(new Entry(sequence, segment.line(sequence)));
+            }
+            return entries;
+        }
+
+        private synchronized long firstSequence() {
+            return segments.isEmpty() ? 0 : segments.get(0).baseSequence;
+        }
+
+        private int segmentIndex(long sequence) {
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (segments.get(mid).baseSequence <= sequence) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Deletes old segments, never the one being appended to.
+         */
+        private synchronized void sweep(long now) throws IOException {
+            long total = (long) segments.size() * segmentBytes;
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                boolean expired = retentionMillis > 0 && oldest.lastTime < now - retentionMillis;
+                boolean oversized = maxBytesPerChannel > 0 && total > maxBytesPerChannel;
+                if (!expired && !oversized) {
+                    break;
+                }
+                segments.remove(0);
+                total -= segmentBytes;
+                // Readers may still hold views of the mapping, which stays
+                // valid after the file is deleted
+                Files.deleteIfExists(oldest.path);
+            }
+        }
+
+        private synchronized void deleteAll() throws IOException {
+            segments.clear();
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * One mapped segment file, with the offsets of its records.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final long baseSequence;
+        private final MappedByteBuffer buffer;
+        private int[] offsets;
+        private int count;
+        private int end;
+        private long lastTime;
+
+        private Segment(Path path, long baseSequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+            offsets = new int[64];
+            count = 0;
+            end = 0;
+            lastTime = 0;
+        }
+
+        private static Segment create(Path path, long baseSequence, int size) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(path, baseSequence,
+                        file.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        /**
+         * Maps an existing segment and finds its records. The unused end of a
+         * segment is zero-filled, and a record's length is never zero.
+         */
+        private static Segment open(Path path) throws IOException {
+            String name = path.getFileName().toString();
+            long baseSequence = Long.parseLong(name.substring(0, name.indexOf('.')));
+            Segment segment;
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                segment = new Segment(path, baseSequence,
+                        file.map(FileChannel.MapMode.READ_WRITE, 0, file.size()));
+            }
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                long sequence = buffer.getLong(position + 4);
+                if (length <= 0 || position + HEADER + length > buffer.capacity()
+                        || sequence != baseSequence + segment.count) {
+                    break;
+                }
+                segment.addOffset(position);
+                segment.lastTime = buffer.getLong(position + 12);
+                position += HEADER + length;
+            }
+            segment.end = position;
+            return segment;
+        }
+
+        private boolean hasRoom(int length) {
+            return end + HEADER + length <= buffer.capacity();
+        }
+
+        private void append(long sequence, long time, byte[] line) {
+            // Only absolute puts and puts through a duplicate, so that
+            // readers' views are never disturbed
+            buffer.putLong(end + 4, sequence);
+            buffer.putLong(end + 12, time);
+            ByteBuffer view = buffer.duplicate();
+            view.position(end + HEADER);
+            view.put(line);
+            // The length goes last, so a torn record reads as the end
+            buffer.putInt(end, line.length);
+            addOffset(end);
+            end += HEADER + line.length;
+            lastTime = time;
+        }
+
+        private void addOffset(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        private ByteBuffer line(long sequence) {
+            int offset = offsets[(int) (sequence - baseSequence)];
+            int length = buffer.getInt(offset);
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + HEADER + length);
+            view.position(offset + HEADER);
+            return view.slice().asReadOnlyBuffer();
+        }
+    }
+}
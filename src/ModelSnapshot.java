@@ -0,0 +1,237 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of the users and channels of a {@link ServerModel}, taken
+ * at a known position in its {@link CommandJournal}, which can be written to
+ * and loaded from a compact binary file.
+ *
+ * A snapshot is captured on the model thread, which only has to copy the
+ * model's names and flags; it is then written out on another thread while
+ * the model thread goes on serving. Once the file is safely in place, the
+ * journal records it holds can be dropped.
+ *
+ * The file holds a header, then for each user their id, nickname, the digest
+ * of their resume token, the channels they are a member of, and the channels
+ * they own with the invite-only flag, slow mode limit and backlog of each. Strings are stored as a
+ * length followed by their UTF-8 bytes. Loading maps the file into memory
+ * and reads it in one pass.
+ */
+final class ModelSnapshot {
+
+    // "PPS2", written at the start of every snapshot file
+    private static final int MAGIC = 0x50505332;
+
+    private final long journalPosition;
+    private final List<UserState> users;
+
+    private ModelSnapshot(long journalPosition, List<UserState> users) {
+        this.journalPosition = journalPosition;
+        this.users = users;
+    }
+
+    /**
+     * Copies the state of a model. Must be called on the model thread.
+     *
+     * @param model The model to copy
+     * @param journalPosition The position of the model's journal, which the
+     *                        snapshot holds every record before
+     * @return The snapshot
+     */
+    public static ModelSnapshot capture(ServerModel model, long journalPosition) {
+        List<UserState> users = new ArrayList<>(model.getTMap().size());
+        for (Map.Entry<Integer, User> entry : model.getTMap().entrySet()) {
+            User user = entry.getValue();
+            String[] groups = user.getGroupChats().toArray(new String[0]);
+            String[] owned = user.getBossSet().toArray(new String[0]);
+            boolean[] inviteOnly = new boolean[owned.length];
+            int[] slowMode = new int[owned.length];
+            int[] backlog = new int[owned.length];
+            for (int i = 0; i < owned.length; i++) {
+                inviteOnly[i] = user.getInvite(owned[i]);
+                slowMode[i] = user.getSlowMode(owned[i]);
+                backlog[i] = user.getBacklog(owned[i]);
+            }
+            String digest = model.getResumeDigest(entry.getKey());
+            users.add(new UserState(entry.getKey(), user.getUserName(),
+                    digest == null ? "" : digest, groups, owned, inviteOnly,
+                    slowMode, backlog));
+        }
+        return new ModelSnapshot(journalPosition, users);
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing it only once the new contents
+     * are safely on disk, so that a crash leaves either the old snapshot or
+     * the new one.
+     *
+     * @param path The snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void write(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(file, 64 * 1024));
+            writeTo(out);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the snapshot to a stream, in the same format as a snapshot
+     * file, such as to send it to a standby server.
+     *
+     * @param out The stream
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(journalPosition);
+        out.writeInt(users.size());
+        for (UserState user : users) {
+            out.writeInt(user.id);
+            writeString(out, user.nickname);
+            writeString(out, user.digest);
+            out.writeInt(user.groups.length);
+            for (String group : user.groups) {
+                writeString(out, group);
+            }
+            out.writeInt(user.owned.length);
+            for (int i = 0; i < user.owned.length; i++) {
+                writeString(out, user.owned[i]);
+                out.writeBoolean(user.inviteOnly[i]);
+                out.writeInt(user.slowMode[i]);
+                out.writeInt(user.backlog[i]);
+            }
+        }
+    }
+
+    /**
+     * Loads a snapshot file into a model. The model should be empty and must
+     * not have a journal attached. Every user loaded is detached, as after a
+     * journal replay.
+     *
+     * @param path The snapshot file
+     * @param model The model to load the snapshot into
+     * @return The journal position of the snapshot, from which the journal
+     *         should be replayed
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static long load(Path path, ServerModel model) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            return load(in, model, path.toString());
+        }
+    }
+
+    /**
+     * Loads a snapshot held in a buffer into a model, like
+     * {@link #load(Path, ServerModel)}.
+     *
+     * @param in The buffer, positioned at the start of the snapshot
+     * @param model The model to load the snapshot into
+     * @param source Where the snapshot came from, for error messages
+     * @return The journal position of the snapshot
+     * @throws IOException if the buffer does not hold a whole snapshot
+     */
+    public static long load(ByteBuffer in, ServerModel model, String source)
+            throws IOException {
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException(source + " is not a snapshot");
+            }
+            long journalPosition = in.getLong();
+            int userCount = in.getInt();
+            byte[] scratch = new byte[256];
+            for (int u = 0; u < userCount; u++) {
+                int id = in.getInt();
+                model.restoreUser(id, readString(in, scratch));
+                String digest = readString(in, scratch);
+                if (!digest.isEmpty()) {
+                    model.setResumeDigest(id, digest);
+                }
+                int groupCount = in.getInt();
+                for (int g = 0; g < groupCount; g++) {
+                    model.addGroup(id, readString(in, scratch));
+                }
+                int ownedCount = in.getInt();
+                for (int o = 0; o < ownedCount; o++) {
+                    String channel = readString(in, scratch);
+                    model.addBoss(id, channel, in.get() != 0);
+                    int slowMode = in.getInt();
+                    if (slowMode != 0) {
+                        model.setSlowMode(channel, slowMode);
+                    }
+                    int backlog = in.getInt();
+                    if (backlog >= 0) {
+                        model.setBacklog(channel, backlog);
+                    }
+                }
+            }
+            return journalPosition;
+        } catch (BufferUnderflowException bux) {
+            throw new IOException(source + " is truncated", bux);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in, byte[] scratch) {
+        int length = in.getInt();
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The copied state of one user.
+     */
+    private static final class UserState {
+        private final int id;
+        private final String nickname;
+        private final String digest;
+        private final String[] groups;
+        private final String[] owned;
+        private final boolean[] inviteOnly;
+        private final int[] slowMode;
+        private final int[] backlog;
+
+        private UserState(int id, String nickname, String digest, String[] groups,
+                String[] owned, boolean[] inviteOnly, int[] slowMode, int[] backlog) {
+            this.id = id;
+            this.nickname = nickname;
+            this.digest = digest;
+            this.groups = groups;
+            this.owned = owned;
+            this.inviteOnly = inviteOnly;
+            this.slowMode = slowMode;
+            this.backlog = backlog;
+        }
+    }
+}
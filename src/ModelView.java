@@ -0,0 +1,254 @@
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable, consistent view of the users and channels of a
+ * {@link ServerModel} at one moment, taken with
+ * {@link ServerModel#snapshot()}. Taking a view costs nothing: the model
+ * keeps its state in {@link PersistentMap}s and publishes a new view after
+ * every change, sharing everything the change did not touch with the view
+ * before it. A view can therefore be read on any thread, for as long as
+ * needed, without copying the model or holding up the model thread.
+ *
+ * A view holds what the protocol shows: nicknames, which channels exist,
+ * their owners and members, and whether they are invite-only. Slow mode,
+ * backlogs, history and resume state are only kept in the model.
+ */
+public final class ModelView {
+
+    static final ModelView EMPTY = new ModelView(PersistentMap.<Integer, String>empty(),
+            PersistentMap.<String, Integer>empty(), PersistentMap.<String, Channel>empty(),
+            PersistentMap.<String, PersistentMap<Integer, Boolean>>empty());
+
+    /**
+     * The owner of a channel, and whether it is invite-only.
+     */
+    static final class Channel {
+        private final int ownerId;
+        private final boolean inviteOnly;
+
+        Channel(int ownerId, boolean inviteOnly) {
+            this.ownerId = ownerId;
+            this.inviteOnly = inviteOnly;
+        }
+    }
+
+    private final PersistentMap<Integer, String> nicknames;
+    private final PersistentMap<String, Integer> userIds;
+    private final PersistentMap<String, Channel> channels;
+    // The members of each channel; a user can be a member of a channel
+    // that has no owner yet, as while a CREATE is applied
+    private final PersistentMap<String, PersistentMap<Integer, Boolean>> members;
+
+    private ModelView(PersistentMap<Integer, String> nicknames,
+            PersistentMap<String, Integer> userIds, PersistentMap<String, Channel> channels,
+            PersistentMap<String, PersistentMap<Integer, Boolean>> members) {
+        this.nicknames = nicknames;
+        this.userIds = userIds;
+        this.channels = channels;
+        this.members = members;
+    }
+
+    /**
+     * Gets the user ID holding a nickname.
+     *
+     * @param nickname The nickname
+     * @return The user's ID, or -1 if no user holds it
+     */
+    public int getUserId(String nickname) {
+        Integer userId = userIds.get(nickname);
+        return userId == null ? -1 : userId;
+    }
+
+    /**
+     * Gets the nickname of a user.
+     *
+     * @param userId The user's ID
+     * @return The nickname, or null if there is no such user
+     */
+    public String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+
+    public int getUserCount() {
+        return nicknames.size();
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Gets the nicknames of every user.
+     *
+     * @return A sorted copy of the nicknames
+     */
+    public Collection<String> getRegisteredUsers() {
+        final Set<String> users = new TreeSet<>();
+        nicknames.forEach((userId, nickname) -> users.add(nickname));
+        return users;
+    }
+
+    /**
+     * Gets the names of every channel.
+     *
+     * @return A sorted copy of the names
+     */
+    public Collection<String> getChannels() {
+        final Set<String> names = new TreeSet<>();
+        channels.forEach((name, channel) -> names.add(name));
+        return names;
+    }
+
+    public boolean doesChannelExist(String channel) {
+        return channels.containsKey(channel);
+    }
+
+    /**
+     * Gets the nicknames of the members of a channel.
+     *
+     * @param channel The channel's name
+     * @return A sorted copy of the nicknames, empty if there is no such
+     *         channel
+     */
+    public Collection<String> getUsersInChannel(String channel) {
+        final Set<String> users = new TreeSet<>();
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        if (channelMembers != null) {
+            channelMembers.forEach((userId, member) -> users.add(nicknames.get(userId)));
+        }
+        return users;
+    }
+
+    /**
+     * Gets the number of members of a channel, including its owner.
+     *
+     * @param channel The channel's name
+     * @return The number of members, 0 if there is no such channel
+     */
+    public int getMemberCount(String channel) {
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        return channelMembers == null ? 0 : channelMembers.size();
+    }
+
+    /**
+     * Checks whether a user is a member of a channel.
+     *
+     * @param channel The channel's name
+     * @param nickname The user's nickname
+     * @return true if the user is a member or the owner of the channel
+     */
+    public boolean isMember(String channel, String nickname) {
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        Integer userId = userIds.get(nickname);
+        return channelMembers != null && userId != null && channelMembers.containsKey(userId);
+    }
+
+    /**
+     * Gets the nickname of the owner of a channel.
+     *
+     * @param channel The channel's name
+     * @return The owner's nickname, or null if there is no such channel
+     */
+    public String getOwner(String channel) {
+        Channel state = channels.get(channel);
+        return state == null ? null : nicknames.get(state.ownerId);
+    }
+
+    /**
+     * Gets the IDs of the members and the owner of a channel.
+     */
+    Collection<Integer> getMemberIds(String channel) {
+        final Set<Integer> ids = new TreeSet<>();
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        if (channelMembers != null) {
+            channelMembers.forEach((userId, member) -> ids.add(userId));
+        }
+        Channel state = channels.get(channel);
+        if (state != null) {
+            ids.add(state.ownerId);
+        }
+        return ids;
+    }
+
+    public boolean isInviteOnly(String channel) {
+        Channel state = channels.get(channel);
+        return state != null && state.inviteOnly;
+    }
+
+    // Changes, each giving a new view; only the model makes them
+
+    ModelView withUser(int userId, String nickname) {
+        return new ModelView(nicknames.plus(userId, nickname),
+                userIds.plus(nickname, userId), channels, members);
+    }
+
+    ModelView withoutUser(int userId) {
+        String nickname = nicknames.get(userId);
+        if (nickname == null) {
+            return this;
+        }
+        return new ModelView(nicknames.minus(userId), unmap(nickname, userId),
+                channels, members);
+    }
+
+    ModelView renamed(int userId, String nickname) {
+        String previous = nicknames.get(userId);
+        PersistentMap<String, Integer> ids = previous == null ? userIds : unmap(previous, userId);
+        return new ModelView(nicknames.plus(userId, nickname), ids.plus(nickname, userId),
+                channels, members);
+    }
+
+    private PersistentMap<String, Integer> unmap(String nickname, int userId) {
+        Integer holder = userIds.get(nickname);
+        return holder != null && holder == userId ? userIds.minus(nickname) : userIds;
+    }
+
+    ModelView withChannel(String channel, int ownerId, boolean inviteOnly) {
+        return new ModelView(nicknames, userIds,
+                channels.plus(channel, new Channel(ownerId, inviteOnly)), members)
+                .withMember(channel, ownerId);
+    }
+
+    ModelView withoutChannel(String channel) {
+        return new ModelView(nicknames, userIds, channels.minus(channel),
+                members.minus(channel));
+    }
+
+    ModelView withMember(String channel, int userId) {
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        if (channelMembers == null) {
+            channelMembers = PersistentMap.empty();
+        }
+        return new ModelView(nicknames, userIds, channels,
+                members.plus(channel, channelMembers.plus(userId, Boolean.TRUE)));
+    }
+
+    ModelView withoutMember(String channel, int userId) {
+        PersistentMap<Integer, Boolean> channelMembers = members.get(channel);
+        if (channelMembers == null || !channelMembers.containsKey(userId)) {
+            return this;
+        }
+        channelMembers = channelMembers.minus(userId);
+        return new ModelView(nicknames, userIds, channels, channelMembers.isEmpty()
+                ? members.minus(channel) : members.plus(channel, channelMembers));
+    }
+
+    /**
+     * Moves the memberships and channels of one user ID to another.
+     */
+    ModelView moved(int fromId, int toId, Collection<String> joined) {
+        ModelView view = this;
+        for (String channel : joined) {
+            view = view.withoutMember(channel, fromId).withMember(channel, toId);
+            Channel state = view.channels.get(channel);
+            if (state != null && state.ownerId == fromId) {
+                view = new ModelView(view.nicknames, view.userIds,
+                        view.channels.plus(channel, new Channel(toId, state.inviteOnly)),
+                        view.members);
+            }
+        }
+        return view;
+    }
+}
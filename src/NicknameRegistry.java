@@ -0,0 +1,164 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The nicknames of every connected user, shared by the model threads of a
+ * sharded {@link ServerBackend}. Each shard keeps its own copy of every
+ * user, so nickname uniqueness cannot be decided by any one shard; it is
+ * decided here instead, on the connection thread, before the change is
+ * handed to the shards.
+ *
+ * Claiming a nickname is a single {@link ConcurrentMap#putIfAbsent}, so of
+ * two users claiming the same nickname at once exactly one succeeds. A
+ * nickname stays claimed until {@link #release} is called, which the
+ * backend only does once every shard has forgotten the user, or once every
+ * shard has moved the user off it.
+ *
+ * In ACTOR mode the registry also keeps the channels each user is in, as
+ * reported by the channel actors, so that a NICK or a disconnection can be
+ * handed to exactly the channels that know the user.
+ */
+final class NicknameRegistry {
+
+    private final ConcurrentMap<String, Integer> owners;
+    private final ConcurrentMap<Integer, String> nicknames;
+    private final ConcurrentMap<Integer, Set<String>> channels;
+    private final Set<Integer> departing;
+
+    /**
+     * Constructs an empty {@code NicknameRegistry}.
+     */
+    public NicknameRegistry() {
+        owners = new ConcurrentHashMap<>();
+        nicknames = new ConcurrentHashMap<>();
+        channels = new ConcurrentHashMap<>();
+        departing = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Claims a default nickname for a newly connected user, of the form
+     * "UserX", where X is the smallest non-negative integer that was free.
+     *
+     * @param userId The id of the new user
+     * @return The nickname claimed
+     */
+    public String register(int userId) {
+        for (int suffix = 0; ; suffix++) {
+            String nickname = "User" + suffix;
+            if (owners.putIfAbsent(nickname, userId) == null) {
+                nicknames.put(userId, nickname);
+                return nickname;
+            }
+        }
+    }
+
+    /**
+     * Moves a user to a new nickname, if no one holds it. The user keeps
+     * their previous nickname claimed until it is released with
+     * {@link #release(int, String)}.
+     *
+     * @param userId The id of the user
+     * @param nickname The nickname wanted
+     * @return The user's previous nickname, or null if the nickname is in
+     *         use, including by the user themselves
+     */
+    public String rename(int userId, String nickname) {
+        if (owners.putIfAbsent(nickname, userId) != null) {
+            return null;
+        }
+        return nicknames.put(userId, nickname);
+    }
+
+    /**
+     * Frees a nickname a user has moved off.
+     *
+     * @param userId The id of the user
+     * @param nickname The user's previous nickname
+     */
+    public void release(int userId, String nickname) {
+        owners.remove(nickname, userId);
+    }
+
+    /**
+     * Frees the nickname of a user who has gone.
+     *
+     * @param userId The id of the user
+     */
+    public void release(int userId) {
+        channels.remove(userId);
+        departing.remove(userId);
+        String nickname = nicknames.remove(userId);
+        if (nickname != null) {
+            owners.remove(nickname, userId);
+        }
+    }
+
+    /**
+     * Marks a user as leaving. The user keeps their nickname until it is
+     * released, but can no longer be found by it.
+     *
+     * @param userId The id of the user
+     */
+    public void depart(int userId) {
+        departing.add(userId);
+    }
+
+    /**
+     * Gets the id of the user holding a nickname.
+     *
+     * @param nickname The nickname
+     * @return The user's id, or -1 if no one holds it or its holder is
+     *         leaving
+     */
+    public int getUserId(String nickname) {
+        Integer userId = owners.get(nickname);
+        return userId == null || departing.contains(userId) ? -1 : userId;
+    }
+
+    /**
+     * Records that a user is in a channel.
+     *
+     * @param userId The id of the user
+     * @param channel The channel's name
+     */
+    public void joined(int userId, String channel) {
+        channels.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(channel);
+    }
+
+    /**
+     * Records that a user is no longer in a channel.
+     *
+     * @param userId The id of the user
+     * @param channel The channel's name
+     */
+    public void left(int userId, String channel) {
+        Set<String> joined = channels.get(userId);
+        if (joined != null) {
+            joined.remove(channel);
+        }
+    }
+
+    /**
+     * Gets the channels a user is in.
+     *
+     * @param userId The id of the user
+     * @return A copy of the channels' names
+     */
+    public Set<String> getChannels(int userId) {
+        Set<String> joined = channels.get(userId);
+        return joined == null ? Collections.<String>emptySet() : new HashSet<>(joined);
+    }
+
+    /**
+     * Gets the current nickname of a user.
+     *
+     * @param userId The id of the user
+     * @return The nickname, or null if the user is not registered
+     */
+    public String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+}
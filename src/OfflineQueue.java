@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds the INVITE and KICK notices sent to users who are not connected, so
+ * that they are delivered when the user next resumes their session.
+ *
+ * Each nickname with pending notices has a file in the queue's directory,
+ * holding the notices as the lines they would have been sent as, so that
+ * the whole file can be written to the client in one go. The files outlive
+ * restarts, and each holds at most {@code maxNotices} notices; later ones
+ * are dropped.
+ *
+ * An {@code OfflineQueue} is not thread-safe; it belongs to the model thread,
+ * which only keeps count of the notices. The files are read and written on
+ * a writer thread of the queue's own, in the order the calls were made, so
+ * the model thread never waits on the disk.
+ */
+final class OfflineQueue {
+
+    private static final String SUFFIX = ".queue";
+
+    private final Path directory;
+    private final int maxNotices;
+    private final Charset charset;
+    private final byte[] newline;
+    private final ServerLog log;
+
+    // The number of notices pending for each nickname that has any
+    private final Map<String, Integer> counts;
+    private final ExecutorService writer;
+
+    /**
+     * Constructs an {@code OfflineQueue} over a directory, creating it if
+     * needed, and picks up the notices already queued in it.
+     *
+     * @param directory The directory holding a file for each nickname
+     * @param maxNotices The most notices queued for one nickname
+     * @param charset The charset notices are stored and sent in
+     * @param log Where dropped notices and failures are reported
+     * @throws IOException if the directory cannot be created or read
+     */
+    public OfflineQueue(Path directory, int maxNotices, Charset charset, ServerLog log)
+            throws IOException {
+        if (maxNotices <= 0) {
+            throw new IllegalArgumentException("Invalid queue size");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxNotices = maxNotices;
+        this.charset = charset;
+        newline = System.lineSeparator().getBytes(charset);
+        this.log = log;
+        counts = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int lines = 0;
+                for (byte b : Files.readAllBytes(file)) {
+                    if (b == '\n') {
+                        lines++;
+                    }
+                }
+                counts.put(name.substring(0, name.length() - SUFFIX.length()), lines);
+            }
+        }
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Offline queue writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a notice for a nickname, unless its queue is full.
+     *
+     * @param nickname The nickname of the user the notice was meant for
+     * @param notice The response line
+     * @return true if the notice was queued
+     */
+    public boolean add(String nickname, String notice) {
+        Integer count = counts.get(nickname);
+        if (count != null && count >= maxNotices) {
+            log.log(ServerLog.Level.WARN, "offline-queue-full", -1, nickname);
+            return false;
+        }
+        byte[] line = notice.getBytes(charset);
+        byte[] record = new byte[line.length + newline.length];
+        System.arraycopy(line, 0, record, 0, line.length);
+        System.arraycopy(newline, 0, record, line.length, newline.length);
+        Path file = fileOf(nickname);
+        writer.execute(() -> {
+            try {
+                Files.write(file, record, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.ERROR, "offline-queue-failed", -1, iox);
+            }
+        });
+        counts.put(nickname, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    /**
+     * Takes every notice queued for a nickname. The notices are read on the
+     * queue's writer thread, after every notice queued before this call has
+     * been written, and handed to the sink there.
+     *
+     * @param nickname The nickname
+     * @param sink Receives the notices as encoded lines, ready to be written
+     *             to the client
+     * @return true if any notices were queued, false if none were and the
+     *         sink will not be called
+     */
+    public boolean drain(String nickname, Consumer<byte[]> sink) {
+        if (counts.remove(nickname) == null) {
+            return false;
+        }
+        Path file = fileOf(nickname);
+        writer.execute(() -> {
+            byte[] notices;
+            try {
+                notices = Files.readAllBytes(file);
+                Files.delete(file);
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.ERROR, "offline-queue-failed", -1, iox);
+                return;
+            }
+            sink.accept(notices);
+        });
+        return true;
+    }
+
+    /**
+     * Drops the notices queued for a nickname, such as when the user it
+     * belonged to is gone for good.
+     *
+     * @param nickname The nickname
+     */
+    public void discard(String nickname) {
+        if (counts.remove(nickname) == null) {
+            return;
+        }
+        delete(fileOf(nickname));
+    }
+
+    /**
+     * Drops the notices of every nickname not in the given collection.
+     *
+     * @param nicknames The nicknames whose notices are kept
+     */
+    public void retainOnly(Collection<String> nicknames) {
+        Iterator<String> iterator = counts.keySet().iterator();
+        while (iterator.hasNext()) {
+            String nickname = iterator.next();
+            if (!nicknames.contains(nickname)) {
+                iterator.remove();
+                delete(fileOf(nickname));
+            }
+        }
+    }
+
+    /**
+     * Gets the number of notices queued for a nickname.
+     *
+     * @param nickname The nickname
+     * @return The number of notices
+     */
+    public int size(String nickname) {
+        Integer count = counts.get(nickname);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Waits for the files to be brought up to date, and stops the writer
+     * thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void delete(Path file) {
+        writer.execute(() -> {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.WARN, "offline-queue-failed", -1, iox);
+            }
+        });
+    }
+
+    private Path fileOf(String nickname) {
+        return directory.resolve(nickname + SUFFIX);
+    }
+}
@@ -0,0 +1,355 @@
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable map, stored as a hash array mapped trie. Adding or removing
+ * a key copies only the path from the root to the key, at most seven small
+ * nodes, and shares the rest of the trie with the map it came from. Any
+ * number of versions can therefore be kept, and handed to other threads,
+ * without copying the whole map or locking it.
+ *
+ * Each level of the trie takes the next five bits of the key's hash. A node
+ * holds a bitmap of which of its 32 slots are used, and a packed array of
+ * only those slots, each either an entry or a child node. Keys whose whole
+ * hashes are equal share a collision node.
+ *
+ * Keys must not be null, and must not change their hash while in the map.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public final class PersistentMap<K, V> {
+
+    private static final PersistentMap<Object, Object> EMPTY =
+            new PersistentMap<>(null, 0);
+
+    // Null when the map is empty
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Gets the empty map.
+     *
+     * @return The empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key The key
+     * @return The value, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        return (V) root.get(key, key.hashCode(), 0);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Gets a map with a key set to a value.
+     *
+     * @param key The key
+     * @param value The value, which must not be null
+     * @return The new map, or this one if the key already had the value
+     */
+    public PersistentMap<K, V> plus(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int[] added = new int[1];
+        Node node = root == null
+                ? new BitmapNode(0, new Object[0]).plus(key, key.hashCode(), value, 0, added)
+                : root.plus(key, key.hashCode(), value, 0, added);
+        return node == root ? this : new PersistentMap<K, V>(node, size + added[0]);
+    }
+
+    /**
+     * Gets a map without a key.
+     *
+     * @param key The key
+     * @return The new map, or this one if the key was not in it
+     */
+    public PersistentMap<K, V> minus(Object key) {
+        if (root == null || key == null) {
+            return this;
+        }
+        Node node = root.minus(key, key.hashCode(), 0);
+        if (node == root) {
+            return this;
+        }
+        return size == 1 ? PersistentMap.<K, V>empty() : new PersistentMap<K, V>(node, size - 1);
+    }
+
+    /**
+     * Calls an action with every entry, in no particular order.
+     *
+     * @param action The action
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    /**
+     * A key and its value, with the key's hash.
+     */
+    private static final class Entry {
+        private final Object key;
+        private final int hash;
+        private final Object value;
+
+        private Entry(Object key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private abstract static class Node {
+        abstract Object get(Object key, int hash, int shift);
+
+        /**
+         * Gets a node with the key set, setting {@code added[0]} to 1 if the
+         * key is new.
+         */
+        abstract Node plus(Object key, int hash, Object value, int shift, int[] added);
+
+        /**
+         * Gets a node without the key, or null if it would be empty.
+         */
+        abstract Node minus(Object key, int hash, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+        // An Entry or a Node for each bit set in the bitmap, in bit order
+        private final Object[] slots;
+
+        private BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).get(key, hash, shift + 5);
+            }
+            Entry entry = (Entry) slot;
+            return entry.hash == hash && entry.key.equals(key) ? entry.value : null;
+        }
+
+        @Override
+        Node plus(Object key, int hash, Object value, int shift, int[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, index);
+                copy[index] = new Entry(key, hash, value);
+                System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+                added[0] = 1;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object slot = slots[index];
+            Object replacement;
+            if (slot instanceof Node) {
+                Node child = (Node) slot;
+                Node updated = child.plus(key, hash, value, shift + 5, added);
+                if (updated == child) {
+                    return this;
+                }
+                replacement = updated;
+            } else {
+                Entry entry = (Entry) slot;
+                if (entry.hash == hash && entry.key.equals(key)) {
+                    if (entry.value == value) {
+                        return this;
+                    }
+                    replacement = new Entry(key, hash, value);
+                } else {
+                    added[0] = 1;
+                    replacement = split(entry, new Entry(key, hash, value), shift + 5);
+                }
+            }
+            Object[] copy = slots.clone();
+            copy[index] = replacement;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        /**
+         * Makes a node holding two entries that shared a slot.
+         */
+        private static Node split(Entry first, Entry second, int shift) {
+            if (first.hash == second.hash) {
+                return new CollisionNode(first.hash, new Entry[] {first, second});
+            }
+            int firstBit = bit(first.hash, shift);
+            int secondBit = bit(second.hash, shift);
+            if (firstBit == secondBit) {
+                return new BitmapNode(firstBit,
+                        new Object[] {split(first, second, shift + 5)});
+            }
+            Object[] pair = Integer.compareUnsigned(firstBit, secondBit) < 0
+                    ? new Object[] {first, second} : new Object[] {second, first};
+            return new BitmapNode(firstBit | secondBit, pair);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object slot = slots[index];
+            if (slot instanceof Node) {
+                Node child = (Node) slot;
+                Node updated = child.minus(key, hash, shift + 5);
+                if (updated == child) {
+                    return this;
+                }
+                if (updated != null) {
+                    Object[] copy = slots.clone();
+                    copy[index] = updated;
+                    return new BitmapNode(bitmap, copy);
+                }
+            } else {
+                Entry entry = (Entry) slot;
+                if (entry.hash != hash || !entry.key.equals(key)) {
+                    return this;
+                }
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 1, copy, index, slots.length - index - 1);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).forEach(action);
+                } else {
+                    Entry entry = (Entry) slot;
+                    action.accept(entry.key, entry.value);
+                }
+            }
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Entry[] entries;
+
+        private CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            int index = hash == this.hash ? find(key) : -1;
+            return index < 0 ? null : entries[index].value;
+        }
+
+        @Override
+        Node plus(Object key, int hash, Object value, int shift, int[] added) {
+            if (hash != this.hash) {
+                // Push this node down a level, next to the new entry
+                BitmapNode parent = new BitmapNode(BitmapNode.bit(this.hash, shift),
+                        new Object[] {this});
+                return parent.plus(key, hash, value, shift, added);
+            }
+            int index = find(key);
+            if (index >= 0 && entries[index].value == value) {
+                return this;
+            }
+            Entry[] copy;
+            if (index >= 0) {
+                copy = entries.clone();
+                copy[index] = new Entry(key, hash, value);
+            } else {
+                copy = Arrays.copyOf(entries, entries.length + 1);
+                copy[entries.length] = new Entry(key, hash, value);
+                added[0] = 1;
+            }
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            int index = hash == this.hash ? find(key) : -1;
+            if (index < 0) {
+                return this;
+            }
+            if (entries.length == 1) {
+                return null;
+            }
+            Entry[] copy = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, copy, 0, index);
+            System.arraycopy(entries, index + 1, copy, index, entries.length - index - 1);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Entry entry : entries) {
+                action.accept(entry.key, entry.value);
+            }
+        }
+    }
+}
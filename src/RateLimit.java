@@ -0,0 +1,59 @@
+/**
+ * An immutable rate limit: a sustained number of events per second, and the
+ * number of events that may be let through at once after a quiet period.
+ */
+public final class RateLimit {
+
+    private final double perSecond;
+    private final int burst;
+
+    /**
+     * Constructs a {@code RateLimit}.
+     *
+     * @param perSecond The sustained rate, in events per second
+     * @param burst The largest number of events let through at once
+     * @throws IllegalArgumentException if either value is not positive
+     */
+    public RateLimit(double perSecond, int burst) {
+        if (!(perSecond > 0) || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Parses a rate limit written as {@code <per-second>/<burst>}, such as
+     * {@code 10/20}. A limit written without a burst has a burst of one
+     * second's worth of events.
+     *
+     * @param text The text to parse
+     * @return The rate limit, or null if the text is empty or "none"
+     * @throws IllegalArgumentException if the text is not a valid rate limit
+     */
+    public static RateLimit parse(String text) {
+        if (text.isEmpty() || text.equalsIgnoreCase("none")) {
+            return null;
+        }
+        int slash = text.indexOf('/');
+        if (slash < 0) {
+            double perSecond = Double.parseDouble(text);
+            return new RateLimit(perSecond, (int) Math.max(1, Math.ceil(perSecond)));
+        }
+        return new RateLimit(Double.parseDouble(text.substring(0, slash)),
+                Integer.parseInt(text.substring(slash + 1)));
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public String toString() {
+        return perSecond + "/s (burst " + burst + ")";
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Applies the rate limits of a {@link ServerConfig} to the requests of one
+ * connection. Each connection thread owns its own {@code RateLimiter}, so
+ * checking a request costs one clock read and a little arithmetic, with no
+ * locking or shared counters.
+ */
+final class RateLimiter {
+
+    private final TokenBucket userBucket;
+    private final Map<CommandType, TokenBucket> typeBuckets;
+
+    /**
+     * Constructs a {@code RateLimiter} with full buckets.
+     *
+     * @param config The configuration holding the limits to apply
+     */
+    public RateLimiter(ServerConfig config) {
+        long now = System.nanoTime();
+        RateLimit userLimit = config.getUserRateLimit();
+        userBucket = userLimit == null ? null : new TokenBucket(userLimit, now);
+        typeBuckets = new EnumMap<>(CommandType.class);
+        for (CommandType type : CommandType.values()) {
+            RateLimit limit = config.getCommandRateLimit(type);
+            if (limit != null) {
+                typeBuckets.put(type, new TokenBucket(limit, now));
+            }
+        }
+    }
+
+    /**
+     * Checks whether any limits are configured at all.
+     *
+     * @param config The configuration to check
+     * @return true if a {@code RateLimiter} for the configuration would ever
+     *      hold back a request
+     */
+    public static boolean isNeeded(ServerConfig config) {
+        if (config.getUserRateLimit() != null) {
+            return true;
+        }
+        for (CommandType type : CommandType.values()) {
+            if (config.getCommandRateLimit(type) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tries to admit a request of the given type. The request is admitted
+     * only if both the per-user and the per-type bucket have a token, in
+     * which case a token is taken from each.
+     *
+     * @param type The type of the request
+     * @return 0 if the request was admitted, otherwise the number of
+     *      nanoseconds until it could be
+     */
+    public long tryAcquire(CommandType type) {
+        long now = System.nanoTime();
+        TokenBucket typeBucket = typeBuckets.get(type);
+        long wait = 0;
+        if (userBucket != null) {
+            wait = userBucket.nanosUntilToken(now);
+        }
+        if (typeBucket != null) {
+            wait = Math.max(wait, typeBucket.nanosUntilToken(now));
+        }
+        if (wait == 0) {
+            if (userBucket != null) {
+                userBucket.take();
+            }
+            if (typeBucket != null) {
+                typeBucket.take();
+            }
+        }
+        return wait;
+    }
+}
@@ -0,0 +1,444 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The primary's end of replication: streams the records of a
+ * {@link CommandJournal} to standby servers, which apply them to their own
+ * models so that one of them can take over if the primary dies.
+ *
+ * A standby connects to the replication port and first sends the shared
+ * replication key, as a string in {@link DataOutputStream#writeUTF} form,
+ * the empty string if none is set. A standby that sends the wrong key, or
+ * none within {@link #HANDSHAKE_MILLIS}, is disconnected before it is
+ * attached, so it never costs the model thread a snapshot. An attached
+ * standby is first sent a {@link ModelSnapshot} captured on the model
+ * thread, then every batch of
+ * records journaled after it, as soon as the batch is on the primary's disk.
+ * While there is nothing to send, a heartbeat is sent every
+ * {@link #HEARTBEAT_MILLIS}, so a standby can tell a quiet primary from a
+ * dead one. The standby acknowledges each batch with the journal position
+ * it has applied up to, from which the replication lag is measured.
+ *
+ * Each frame sent starts with its type:
+ *
+ * <pre>
+ *     SNAPSHOT  [int length][snapshot bytes]
+ *     RECORDS   [long position][int length][record bytes]
+ *     HEARTBEAT [long position]
+ *     RESYNC
+ * </pre>
+ *
+ * A standby that falls more than {@link #MAX_QUEUED_BYTES} behind is sent
+ * RESYNC and disconnected; it then reconnects and starts over from a new
+ * snapshot, rather than holding up the primary.
+ */
+final class ReplicationSource implements CommandJournal.BatchListener, Closeable {
+
+    static final byte SNAPSHOT = 1;
+    static final byte RECORDS = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte RESYNC = 4;
+
+    static final int HEARTBEAT_MILLIS = 500;
+    static final int HANDSHAKE_MILLIS = 2000;
+    static final int MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Asks for a standby that has just connected to be attached, with a
+     * snapshot captured on the model thread.
+     */
+    interface AttachRequest {
+        void attach(Socket standby);
+    }
+
+    private final ServerSocket serverSocket;
+    private final CommandJournal journal;
+    private final ServerLog log;
+    private final byte[] key;
+    private final List<Session> sessions;
+    private final Thread acceptor;
+    private volatile boolean open;
+
+    /**
+     * Starts accepting standbys.
+     *
+     * @param serverSocket The bound replication socket
+     * @param journal The journal whose records are streamed
+     * @param log Where standbys coming and going are reported
+     * @param key The key a standby must send before it is attached, or null
+     *            if it need send none
+     * @param attachRequest Called on the acceptor thread for each standby,
+     *                      and should arrange for {@link #attach} to be
+     *                      called on the model thread
+     */
+    public ReplicationSource(ServerSocket serverSocket, CommandJournal journal, ServerLog log,
+            String key, final AttachRequest attachRequest) {
+        this.serverSocket = serverSocket;
+        this.journal = journal;
+        this.log = log;
+        this.key = (key == null ? "" : key).getBytes(StandardCharsets.UTF_8);
+        sessions = new CopyOnWriteArrayList<>();
+        open = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (open) {
+                    try {
+                        Socket standby = ReplicationSource.this.serverSocket.accept();
+                        standby.setTcpNoDelay(true);
+                        if (authenticate(standby)) {
+                            attachRequest.attach(standby);
+                        }
+                    } catch (IOException iox) {
+                        if (open) {
+                            ReplicationSource.this.log.log(ServerLog.Level.WARN,
+                                    "replication-failed", -1, iox);
+                        }
+                    }
+                }
+            }
+        }, "Replication acceptor");
+        acceptor.setDaemon(true);
+        journal.setBatchListener(this);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts streaming to a standby. Must be called on the model thread, with
+     * a snapshot just captured there, so that no record is missed or sent
+     * twice.
+     *
+     * @param standby The standby's connection
+     * @param snapshot The snapshot to send first
+     */
+    public void attach(Socket standby, ModelSnapshot snapshot) {
+        if (!open) {
+            closeQuietly(standby);
+            return;
+        }
+        Session session = new Session(standby, snapshot);
+        sessions.add(session);
+        session.start();
+        log.log(ServerLog.Level.INFO, "standby-attached", -1,
+                standby.getRemoteSocketAddress().toString());
+    }
+
+    @Override
+    public void written(long position, byte[] records) {
+        for (Session session : sessions) {
+            session.enqueue(position, records);
+        }
+    }
+
+    /**
+     * Gets how far the furthest-behind standby is from the primary's disk.
+     *
+     * @return The number of journal bytes written but not yet applied, or 0
+     *         if no standby is attached
+     */
+    public long getLagBytes() {
+        long lag = 0;
+        for (Session session : sessions) {
+            lag = Math.max(lag, session.lagBytes());
+        }
+        return lag;
+    }
+
+    /**
+     * Gets how long the oldest batch not yet applied by every standby has
+     * been waiting since it reached the primary's disk.
+     *
+     * @return The lag, in milliseconds, or 0 if every standby is caught up
+     */
+    public long getLagMillis() {
+        long now = System.nanoTime();
+        long lag = 0;
+        for (Session session : sessions) {
+            lag = Math.max(lag, session.lagNanos(now) / 1000000);
+        }
+        return lag;
+    }
+
+    public int getStandbyCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops accepting standbys and disconnects the attached ones.
+     */
+    @Override
+    public void close() {
+        open = false;
+        journal.setBatchListener(null);
+        try {
+            serverSocket.close();
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.WARN, "close-failed", -1, iox);
+        }
+        for (Session session : sessions) {
+            session.stop();
+        }
+    }
+
+    /**
+     * Reads the key a standby sends on connecting, and disconnects it if the
+     * key is wrong or does not arrive in time.
+     *
+     * @param standby The standby's connection
+     * @return true if the standby may be attached
+     */
+    private boolean authenticate(Socket standby) {
+        boolean accepted = false;
+        try {
+            standby.setSoTimeout(HANDSHAKE_MILLIS);
+            // Unbuffered, so nothing past the key is read
+            String sent = new DataInputStream(standby.getInputStream()).readUTF();
+            standby.setSoTimeout(0);
+            accepted = MessageDigest.isEqual(key, sent.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException iox) {
+            // Rejected below
+        }
+        if (!accepted) {
+            log.log(ServerLog.Level.WARN, "standby-rejected", -1,
+                    String.valueOf(standby.getRemoteSocketAddress()));
+            closeQuietly(standby);
+        }
+        return accepted;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException iox) {
+            // Already gone
+        }
+    }
+
+    /**
+     * A batch waiting to be sent, and when it reached the disk.
+     */
+    private static final class Batch {
+        private final long position;
+        private final byte[] records;
+        private final int offset;
+        private final long writtenNanos;
+
+        private Batch(long position, byte[] records, int offset, long writtenNanos) {
+            this.position = position;
+            this.records = records;
+            this.offset = offset;
+            this.writtenNanos = writtenNanos;
+        }
+
+        private long end() {
+            return position + records.length - offset;
+        }
+    }
+
+    /**
+     * The stream to one standby, with a sender thread and a thread reading
+     * its acknowledgements.
+     */
+    private final class Session {
+        private final Socket socket;
+        private final ModelSnapshot snapshot;
+        private final Thread sender;
+        private final Thread receiver;
+
+        // Guarded by this
+        private final Deque<Batch> queue;
+        private final Deque<Batch> unacknowledged;
+        private int queuedBytes;
+        private long sent;
+        private long acknowledged;
+        private boolean overflowed;
+        private boolean stopped;
+
+        private Session(Socket socket, ModelSnapshot snapshot) {
+            this.socket = socket;
+            this.snapshot = snapshot;
+            queue = new ArrayDeque<>();
+            unacknowledged = new ArrayDeque<>();
+            queuedBytes = 0;
+            sent = snapshot.getJournalPosition();
+            acknowledged = sent;
+            overflowed = false;
+            stopped = false;
+            sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, "Replication sender");
+            sender.setDaemon(true);
+            receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "Replication receiver");
+            receiver.setDaemon(true);
+        }
+
+        private void start() {
+            sender.start();
+            receiver.start();
+        }
+
+        /**
+         * Queues the part of a batch that follows the snapshot. Called by
+         * the journal's writer, so it never blocks.
+         */
+        private synchronized void enqueue(long position, byte[] records) {
+            long start = snapshot.getJournalPosition();
+            if (stopped || overflowed || position + records.length <= start) {
+                return;
+            }
+            int offset = (int) Math.max(0, start - position);
+            if (queuedBytes + records.length - offset > MAX_QUEUED_BYTES) {
+                overflowed = true;
+            } else {
+                queue.addLast(new Batch(Math.max(position, start), records, offset,
+                        System.nanoTime()));
+                queuedBytes += records.length - offset;
+            }
+            notifyAll();
+        }
+
+        private void send() {
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                ByteArrayOutputStream image = new ByteArrayOutputStream();
+                snapshot.writeTo(new DataOutputStream(image));
+                out.writeByte(SNAPSHOT);
+                out.writeInt(image.size());
+                image.writeTo(out);
+                out.flush();
+                while (true) {
+                    List<Batch> batches = new ArrayList<>();
+                    boolean resync;
+                    long position;
+                    synchronized (this) {
+                        if (queue.isEmpty() && !overflowed && !stopped) {
+                            wait(HEARTBEAT_MILLIS);
+                        }
+                        if (stopped) {
+                            return;
+                        }
+                        resync = overflowed;
+                        batches.addAll(queue);
+                        queue.clear();
+                        queuedBytes = 0;
+                        unacknowledged.addAll(batches);
+                        position = sent;
+                    }
+                    if (resync) {
+                        out.writeByte(RESYNC);
+                        out.flush();
+                        log.log(ServerLog.Level.WARN, "standby-behind", -1,
+                                socket.getRemoteSocketAddress().toString());
+                        return;
+                    }
+                    if (batches.isEmpty()) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeLong(position);
+                    }
+                    for (Batch batch : batches) {
+                        out.writeByte(RECORDS);
+                        out.writeLong(batch.position);
+                        out.writeInt(batch.records.length - batch.offset);
+                        out.write(batch.records, batch.offset, batch.records.length - batch.offset);
+                        position = batch.end();
+                    }
+                    out.flush();
+                    synchronized (this) {
+                        sent = position;
+                    }
+                }
+            } catch (IOException | InterruptedException x) {
+                if (!stoppedQuietly()) {
+                    log.log(ServerLog.Level.WARN, "standby-detached", -1, x.toString());
+                }
+            } finally {
+                stop();
+            }
+        }
+
+        private void receive() {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    long applied = in.readLong();
+                    synchronized (this) {
+                        acknowledged = Math.max(acknowledged, applied);
+                        while (!unacknowledged.isEmpty()
+                                && unacknowledged.peekFirst().end() <= acknowledged) {
+                            unacknowledged.pollFirst();
+                        }
+                    }
+                }
+            } catch (EOFException eofx) {
+                // The standby went away; the sender notices too
+            } catch (IOException iox) {
+                if (!stoppedQuietly()) {
+                    log.log(ServerLog.Level.WARN, "standby-detached", -1, iox.toString());
+                }
+            } finally {
+                stop();
+            }
+        }
+
+        private synchronized boolean stoppedQuietly() {
+            return stopped;
+        }
+
+        private synchronized long lagBytes() {
+            long end = acknowledged;
+            for (Batch batch : unacknowledged) {
+                end = Math.max(end, batch.end());
+            }
+            for (Batch batch : queue) {
+                end = Math.max(end, batch.end());
+            }
+            return end - acknowledged;
+        }
+
+        private synchronized long lagNanos(long now) {
+            Batch oldest = unacknowledged.isEmpty() ? queue.peekFirst() : unacknowledged.peekFirst();
+            return oldest == null ? 0 : now - oldest.writtenNanos;
+        }
+
+        private void stop() {
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                stopped = true;
+                notifyAll();
+            }
+            sessions.remove(this);
+            closeQuietly(socket);
+        }
+    }
+}
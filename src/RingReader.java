@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread that writes ring messages out to the connections assigned to it,
+ * along with everything else handed to them. Publishing a message wakes at
+ * most one reader per thread, however many members its channel has; each
+ * reader then drains the connections it has reading that ring. Wakes that
+ * arrive while a reader is busy are merged.
+ */
+final class RingReader implements Runnable {
+    private final Thread thread;
+    // The connections on this reader that read each ring
+    private final ConcurrentMap<ChannelRing, Set<RingSubscriber>> listeners;
+    // Rings published to since they were last read, and connections handed
+    // something since they were last drained; guarded by this
+    private final Set<ChannelRing> published;
+    private final Set<RingSubscriber> handedOff;
+    private boolean stopped;
+
+    /**
+     * Constructs a {@code RingReader}. Its thread is not started.
+     *
+     * @param name The name of the reader's thread
+     */
+    public RingReader(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        listeners = new ConcurrentHashMap<>();
+        published = new LinkedHashSet<>();
+        handedOff = new LinkedHashSet<>();
+    }
+
+    /**
+     * Starts the reader's thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    void listen(ChannelRing ring, final RingSubscriber subscriber) {
+        listeners.compute(ring, (key, set) -> {
+            Set<RingSubscriber> listening = set == null
+                    ? ConcurrentHashMap.<RingSubscriber>newKeySet() : set;
+            listening.add(subscriber);
+            return listening;
+        });
+    }
+
+    void unlisten(ChannelRing ring, final RingSubscriber subscriber) {
+        listeners.computeIfPresent(ring, (key, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Wakes the reader to drain the connections reading a ring that has
+     * just been published to. Called on the model thread.
+     *
+     * @param ring The ring
+     */
+    public void wake(ChannelRing ring) {
+        if (!listeners.containsKey(ring)) {
+            return;
+        }
+        synchronized (this) {
+            published.add(ring);
+            notify();
+        }
+    }
+
+    /**
+     * Wakes the reader to drain a connection it has been handed something
+     * for. Once the reader has stopped, the connection is drained on the
+     * calling thread instead.
+     *
+     * @param subscriber The connection
+     */
+    void wake(RingSubscriber subscriber) {
+        synchronized (this) {
+            if (!stopped) {
+                handedOff.add(subscriber);
+                notify();
+                return;
+            }
+        }
+        subscriber.drain();
+    }
+
+    /**
+     * Drains what is already published, then stops the thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              thread
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<ChannelRing> ready;
+            List<RingSubscriber> handed;
+            synchronized (this) {
+                while (published.isEmpty() && handedOff.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ix) {
+                        return;
+                    }
+                }
+                if (published.isEmpty() && handedOff.isEmpty()) {
+                    return;
+                }
+                ready = new ArrayList<>(published);
+                published.clear();
+                handed = new ArrayList<>(handedOff);
+                handedOff.clear();
+            }
+            for (RingSubscriber subscriber : handed) {
+                subscriber.drain();
+            }
+            for (ChannelRing ring : ready) {
+                Set<RingSubscriber> listening = listeners.get(ring);
+                if (listening == null) {
+                    continue;
+                }
+                for (RingSubscriber subscriber : listening) {
+                    subscriber.drain();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The rings one connection reads, and how far it has read each. The model
+ * thread keeps which ring each of the user's channels has, and hands every
+ * change, and every response to the connection, to its {@link RingReader},
+ * which alone writes to the socket. The cursors are guarded by the socket,
+ * which is held while reading so that ring messages and other responses are
+ * written in order.
+ *
+ * Everything handed over carries a stamp, the stamp of the last message
+ * published to any ring when it was made, and is done after the messages
+ * published up to that stamp and before those published after it.
+ */
+final class RingSubscriber {
+
+    /**
+     * What another thread hands the ring reader to do under the socket:
+     * start and stop reading rings, or write responses or queued notices.
+     */
+    private static final class Handoff {
+        private final long stamp;
+        // The rings to start reading, from the given sequences, and to stop
+        // reading; both null unless the user's channels changed
+        private final Map<ChannelRing, Long> joined;
+        private final Collection<ChannelRing> left;
+        private final List<String> responses;
+        private final byte[] notices;
+
+        Handoff(long stamp, Map<ChannelRing, Long> joined, Collection<ChannelRing> left) {
+            this.stamp = stamp;
+            this.joined = joined;
+            this.left = left;
+            responses = null;
+            notices = null;
+        }
+
+        Handoff(long stamp, List<String> responses, byte[] notices) {
+            this.stamp = stamp;
+            joined = null;
+            left = null;
+            this.responses = responses;
+            this.notices = notices;
+        }
+    }
+
+    private final int userId;
+    private final Socket clientSocket;
+    private final RingReader reader;
+    private final ServerLog log;
+    // The ring of each channel the user is in; only touched on the model
+    // thread
+    private final Map<String, ChannelRing> channelRings;
+    // The next sequence to read from each ring read
+    private final Map<ChannelRing, Long> cursors;
+    // Handed over by other threads and not yet done, in stamp order
+    private final Queue<Handoff> handoffs;
+    // Set once the connection has gone or been disconnected
+    private volatile boolean closed;
+    // When the write in progress started, by System.nanoTime(), or 0 if none
+    // is; read by the timer thread without the socket
+    private volatile long writingSince;
+
+    /**
+     * Constructs a {@code RingSubscriber} that reads no rings yet.
+     *
+     * @param userId The id of the connection's user
+     * @param clientSocket The connection's socket
+     * @param reader The ring reader that writes to the connection
+     * @param log The log to record responses and slow consumers in
+     */
+    public RingSubscriber(int userId, Socket clientSocket, RingReader reader, ServerLog log) {
+        this.userId = userId;
+        this.clientSocket = clientSocket;
+        this.reader = reader;
+        this.log = log;
+        channelRings = new HashMap<>();
+        cursors = new HashMap<>();
+        handoffs = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Starts reading the rings of channels the user has joined, from the
+     * next message, and stops reading those of channels the user has left,
+     * after writing what was published to them before. Runs on the model
+     * thread, which only hands the change to the ring reader.
+     *
+     * @param channels The channels the user is now in
+     * @param ringOf Gets the ring of a channel, making one if it has none
+     * @param stamp The stamp of the last message published
+     * @return The channels the user is no longer in
+     */
+    public Collection<String> settle(Set<String> channels,
+            Function<String, ChannelRing> ringOf, long stamp) {
+        List<String> left = new ArrayList<>();
+        List<ChannelRing> leftRings = new ArrayList<>();
+        Iterator<Map.Entry<String, ChannelRing>> iterator = channelRings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ChannelRing> entry = iterator.next();
+            if (!channels.contains(entry.getKey())) {
+                left.add(entry.getKey());
+            } else if (!entry.getValue().isClosed()) {
+                continue;
+            }
+            // A closed ring is of a channel that is gone, even if the user
+            // is in a new one of the same name
+            leftRings.add(entry.getValue());
+            iterator.remove();
+        }
+        Map<ChannelRing, Long> joined = new HashMap<>();
+        for (String channel : channels) {
+            if (!channelRings.containsKey(channel)) {
+                ChannelRing ring = ringOf.apply(channel);
+                channelRings.put(channel, ring);
+                joined.put(ring, ring.getPublished());
+            }
+        }
+        if (!leftRings.isEmpty() || !joined.isEmpty()) {
+            hand(new Handoff(stamp, joined, leftRings));
+        }
+        return left;
+    }
+
+    /**
+     * Hands responses to the ring reader to write. Never blocks.
+     *
+     * @param stamp The stamp of the last message published
+     * @param responses The responses
+     */
+    public void send(long stamp, List<String> responses) {
+        hand(new Handoff(stamp, responses, null));
+    }
+
+    /**
+     * Hands notices kept for the user while they were away to the ring
+     * reader to write. Never blocks.
+     *
+     * @param stamp The stamp of the last message published
+     * @param notices The notices, as encoded lines
+     */
+    public void sendNotices(long stamp, byte[] notices) {
+        hand(new Handoff(stamp, null, notices));
+    }
+
+    private void hand(Handoff handoff) {
+        if (closed) {
+            return;
+        }
+        handoffs.add(handoff);
+        reader.wake(this);
+    }
+
+    /**
+     * Has the ring reader let go of the rings of a connection that has gone.
+     * Runs on the model thread.
+     */
+    public void drop() {
+        closed = true;
+        reader.wake(this);
+    }
+
+    /**
+     * Writes everything published to the rings this connection reads since
+     * it last read them, merged in the order it was published, and does what
+     * was handed over in its place in that order. Takes the socket, and runs
+     * on the ring reader unless it has stopped.
+     */
+    void drain() {
+        synchronized (clientSocket) {
+            if (closed) {
+                close();
+                return;
+            }
+            PrintWriter pw = null;
+            try {
+                while (true) {
+                    ChannelRing next = null;
+                    ChannelRing.Entry first = null;
+                    Iterator<Map.Entry<ChannelRing, Long>> iterator = cursors.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        Map.Entry<ChannelRing, Long> cursor = iterator.next();
+                        ChannelRing ring = cursor.getKey();
+                        ChannelRing.Entry entry = ring.get(cursor.getValue());
+                        if (entry == null) {
+                            if (ring.isClosed()) {
+                                // Read to the end of a channel that is gone
+                                iterator.remove();
+                                reader.unlisten(ring, this);
+                            }
+                            continue;
+                        }
+                        if (entry.getSequence() != cursor.getValue()) {
+                            lapped(ring);
+                            return;
+                        }
+                        if (first == null || entry.getStamp() < first.getStamp()) {
+                            first = entry;
+                            next = ring;
+                        }
+                    }
+                    // Once a message is seen, so is any handoff made before
+                    // it was published
+                    Handoff handoff = handoffs.peek();
+                    boolean handoffFirst = handoff != null
+                            && (first == null || handoff.stamp < first.getStamp());
+                    if (!handoffFirst && next == null) {
+                        break;
+                    }
+                    if (pw == null) {
+                        pw = new PrintWriter(clientSocket.getOutputStream());
+                    }
+                    writingSince = System.nanoTime() | 1;
+                    if (handoffFirst) {
+                        handoffs.poll();
+                        take(handoff, pw);
+                        continue;
+                    }
+                    pw.println(first.getResponse());
+                    cursors.put(next, first.getSequence() + 1);
+                    log.sample(ServerLog.Level.INFO, "response", userId, null,
+                            first.getResponse().length(), first.getResponse());
+                }
+                if (pw != null) {
+                    writingSince = System.nanoTime() | 1;
+                    pw.flush();
+                    if (pw.checkError()) {
+                        throw new IOException("Write failed");
+                    }
+                }
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.WARN, "send-failed", userId, iox.toString());
+                disconnect();
+            } finally {
+                writingSince = 0;
+            }
+        }
+    }
+
+    /**
+     * Does one handoff. Must be called holding the socket.
+     */
+    private void take(Handoff handoff, PrintWriter pw) throws IOException {
+        if (handoff.left != null) {
+            for (ChannelRing ring : handoff.left) {
+                if (cursors.remove(ring) != null) {
+                    reader.unlisten(ring, this);
+                }
+            }
+            for (Map.Entry<ChannelRing, Long> cursor : handoff.joined.entrySet()) {
+                cursors.put(cursor.getKey(), cursor.getValue());
+                reader.listen(cursor.getKey(), this);
+            }
+        }
+        if (handoff.responses != null) {
+            for (String response : handoff.responses) {
+                pw.println(response);
+                log.sample(ServerLog.Level.INFO, "response", userId, null,
+                        response.length(), ServerBackend.redact(response));
+            }
+        }
+        if (handoff.notices != null) {
+            pw.flush();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(handoff.notices);
+        }
+    }
+
+    /**
+     * Fails the write to the connection if it has been blocked for longer
+     * than a timeout, so that the reader holding the socket disconnects it.
+     * Runs on the timer thread, which cannot take the socket, nor close it,
+     * since Socket.close() needs the same lock; shutting down its output
+     * does not.
+     *
+     * @param now The time now, by System.nanoTime()
+     * @param timeout The longest a write may be blocked, in nanoseconds
+     */
+    public void checkStalled(long now, long timeout) {
+        long since = writingSince;
+        if (since == 0 || now - since <= timeout) {
+            return;
+        }
+        log.log(ServerLog.Level.WARN, "slow-consumer", userId,
+                "Blocked a ring write for more than "
+                + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+        try {
+            clientSocket.shutdownOutput();
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.WARN, "close-failed", userId, iox);
+        }
+    }
+
+    /**
+     * Disconnects a connection that fell more than a ring behind, rather
+     * than let it hold up its reader or skip messages without saying so.
+     */
+    private void lapped(ChannelRing ring) {
+        log.log(ServerLog.Level.WARN, "slow-consumer", userId,
+                "Fell more than " + ring.getCapacity() + " messages behind");
+        disconnect();
+    }
+
+    /**
+     * Stops reading every ring and closes the socket, so that the
+     * connection's thread sees it go. Must be called holding the socket.
+     */
+    private void disconnect() {
+        closed = true;
+        close();
+        try {
+            clientSocket.close();
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.WARN, "close-failed", userId, iox);
+        }
+    }
+
+    /**
+     * Stops reading every ring, and drops whatever is still handed over.
+     * Must be called holding the socket.
+     */
+    private void close() {
+        for (ChannelRing ring : cursors.keySet()) {
+            reader.unlisten(ring, this);
+        }
+        cursors.clear();
+        handoffs.clear();
+    }
+}
@@ -1,105 +1,368 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * The {@code ServerBackend} handles networking and communication with clients,
  * and is responsible for managing the server state and executing tasks. To
  * run the server, you should see the {@link ServerMain} class.
  *
- * You do not need to modify this file.
+ * How commands are applied depends on the {@link ServerConfig.BackendMode}.
+ * In SINGLE mode one model thread owns the {@link ServerModel} and takes
+ * every task, whether a client's request, a connection or disconnection, or
+ * a timer event, from one {@link InboundScheduler}. In SHARDED mode each
+ * model thread is a {@code Shard} with a model and scheduler of its own;
+ * changes to a user are {@code Coordinated} across every shard. In ACTOR mode
+ * there is no model thread: each channel is a {@code ChannelActor} on a
+ * fork-join pool, and nicknames live in a {@link NicknameRegistry}.
+ *
+ * The thread that calls {@link #run} accepts connections, and each one is
+ * read by a {@code ConnectionWorker}, which parses requests and hands them to
+ * the model threads or actors; it never touches a model. Broadcasts are
+ * written on the thread that made them, or on the {@link FanoutDispatcher}'s
+ * writer threads, and MESG lines to channels with rings are written by
+ * {@link RingReader}s. Announcements, HISTORY and SEARCH pages, notices from
+ * the {@link OfflineQueue}, snapshots and standby servers each have threads
+ * of their own, so that neither the disk nor a slow socket holds up a model
+ * thread.
+ *
+ * A model, and the journal, the offline queue and the channel rings map
+ * attached to it, only ever belong to the model thread that owns them.
+ * Other threads read the model through {@link ServerModel#snapshot()}, or
+ * hand the model thread a task. A socket is written to under its own lock,
+ * except that a connection reading channel rings is only written to by its
+ * ring reader, which others hand their responses to.
  */
 final class ServerBackend implements Runnable {
 
+    // The most connections one task writes an announcement to, when there
+    // are no fanout threads
+    private static final int ANNOUNCE_CHUNK = 512;
+
     // The ServerModel is NOT thread-safe; it should only be touched on the
     // model thread after being initialized.
     private final ServerModel model;
 
-    private final BlockingQueue<Task> taskQueue;
+    private final ServerConfig config;
+    private final InboundScheduler<Task> taskQueue;
+    private final ServerLog log;
+
+    // The model threads. There is one in SINGLE mode, which owns the model
+    // and task queue above; in SHARDED mode those belong to the first shard.
+    // There are none in ACTOR mode.
+    private final Shard[] shards;
+    private final AtomicInteger shardsRunning;
+    // Decides nickname uniqueness across shards or actors; null in SINGLE
+    // mode
+    private final NicknameRegistry nicknames;
+
+    // The channel actors and the pool they run on; null unless in ACTOR mode
+    private final ForkJoinPool actorPool;
+    private final ConcurrentMap<String, ChannelActor> actors;
+    // One permit for each request that may wait in the actors' mailboxes
+    private final Semaphore mailboxPermits;
+    // Shared by every actor's model; null if there is no fanout budget
+    private final FanoutBudget actorBudget;
+    // Writes large broadcasts off the thread that made them; null if every
+    // broadcast is written inline
+    private final FanoutDispatcher fanout;
+
+    // The ring each channel's messages are published to, the connections
+    // reading them, and the threads that read them out; all null unless
+    // channel rings are on. The rings map belongs to the model thread
+    private final Map<String, ChannelRing> rings;
+    private final ConcurrentMap<Integer, RingSubscriber> subscribers;
+    private final RingReader[] ringReaders;
+    // Orders messages across rings, and the responses handed to their
+    // readers among them; only written on the model thread
+    private volatile long ringStamp;
+
+    // Null if the server keeps no journal
+    private CommandJournal journal;
+    private Path snapshotPath;
+    // Runs timed tasks and writes snapshots
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicBoolean snapshotInProgress;
+    private final SecureRandom tokenSource;
+
+    // Null if the server keeps no message log
+    private MessageLog messageLog;
+    // Null if SEARCH is off
+    private MessageIndex messageIndex;
+    // Reads message log pages for HISTORY requests off the model thread
+    private final ExecutorService historyReaders;
+    // Writes ANNOUNCE lines when there are no fanout threads, so that blocking
+    // writes stay off the model thread and the common fork-join pool
+    private final ExecutorService announcers;
+    // Null if notices to users who are not connected are dropped
+    private OfflineQueue offlineQueue;
+    // Null if no standby servers are fed
+    private volatile ReplicationSource replication;
 
     private volatile ServerSocket serverSocket;
     private final Map<Integer, Socket> openSockets;
 
     private volatile boolean running;
-    private volatile Thread modelThread;
+    private final CountDownLatch listening;
+    private final CountDownLatch terminated;
 
     public ServerBackend(ServerModel model) {
-        if (model == null) {
+        this(model, new ServerConfig());
+    }
+
+    public ServerBackend(ServerModel model, ServerConfig config) {
+        if (model == null || config == null) {
             throw new NullPointerException();
         }
         this.model = model;
-        taskQueue = new LinkedBlockingQueue<>();
+        this.config = config;
+        ServerConfig.BackendMode mode = config.getBackendMode();
+        int threads = config.getModelShards() > 0
+                ? config.getModelShards() : Runtime.getRuntime().availableProcessors();
+        int shardCount = mode == ServerConfig.BackendMode.SINGLE ? 1
+                : mode == ServerConfig.BackendMode.SHARDED ? threads : 0;
+        taskQueue = new InboundScheduler<>(config.getSchedulerQuantum(),
+                config.getMaxQueuedTasks(), config.getMaxQueuedBytes());
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ServerModel shardModel = i == 0 ? model : new ServerModel();
+            configureModel(shardModel, shardCount);
+            shards[i] = new Shard(shardCount == 1 ? "Model thread" : "Model thread " + i,
+                    shardModel, i == 0 ? taskQueue
+                    : new InboundScheduler<Task>(config.getSchedulerQuantum(),
+                            config.getMaxQueuedTasks(), config.getMaxQueuedBytes()));
+        }
+        shardsRunning = new AtomicInteger();
+        nicknames = mode == ServerConfig.BackendMode.SINGLE ? null : new NicknameRegistry();
+        if (mode == ServerConfig.BackendMode.ACTOR) {
+            actorPool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("Channel actor " + thread.getPoolIndex());
+                    return thread;
+                }
+            }, null, true);
+            actors = new ConcurrentHashMap<>();
+            mailboxPermits = new Semaphore(config.getMaxQueuedTasks());
+            RateLimit budget = config.getFanoutBudget();
+            actorBudget = budget == null ? null : new FanoutBudget(budget, System.nanoTime());
+        } else {
+            actorPool = null;
+            actors = null;
+            mailboxPermits = null;
+            actorBudget = null;
+        }
+        log = ServerLog.fromConfig(config);
+        fanout = config.getFanoutThreads() == 0 ? null
+                : new FanoutDispatcher(config.getFanoutThreads(), config.getFanoutThreshold(),
+                        responses -> write(responses, false));
+        if (config.getChannelRingSize() > 0) {
+            rings = new HashMap<>();
+            subscribers = new ConcurrentHashMap<>();
+            ringReaders = new RingReader[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < ringReaders.length; i++) {
+                ringReaders[i] = new RingReader("Ring reader " + i);
+            }
+        } else {
+            rings = null;
+            subscribers = null;
+            ringReaders = null;
+        }
+        journal = null;
+        snapshotPath = null;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Server timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        snapshotInProgress = new AtomicBoolean();
+        tokenSource = new SecureRandom();
+        messageLog = null;
+        messageIndex = null;
+        offlineQueue = null;
+        replication = null;
+        historyReaders = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "History reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        announcers = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Announcer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         serverSocket = null;
         openSockets = Collections.synchronizedMap(new HashMap<Integer, Socket>());
         running = false;
-        modelThread = null;
+        listening = new CountDownLatch(1);
+        terminated = new CountDownLatch(1);
+    }
+
+    /**
+     * Applies the configured fanout budget and history to the model of one
+     * shard. When there are several shards, each gets an even share of the
+     * budget and of the history bytes.
+     */
+    private void configureModel(ServerModel shardModel, int shardCount) {
+        RateLimit budget = config.getFanoutBudget();
+        if (budget != null && shardCount > 1) {
+            budget = new RateLimit(budget.getPerSecond() / shardCount,
+                    Math.max(1, budget.getBurst() / shardCount));
+        }
+        shardModel.setFanoutBudget(budget);
+        if (config.getHistoryTotalBytes() > 0) {
+            shardModel.setHistory(new ChannelHistory(config.getHistoryBytesPerChannel(),
+                    config.getHistoryTotalBytes() / shardCount, config.getHistoryLines()));
+        }
     }
 
     public boolean isRunning() {
         return running;
     }
 
+    /**
+     * Gets the port standby servers connect to for the replication stream.
+     *
+     * @return The port, or -1 if the server does not replicate
+     */
+    public int getReplicationPort() {
+        ReplicationSource source = replication;
+        return source == null ? -1 : source.getPort();
+    }
+
+    /**
+     * Waits until the server is accepting connections, or has failed to
+     * start.
+     *
+     * @return The port the server is listening on, or -1 if it failed to start
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitListening() throws InterruptedException {
+        listening.await();
+        ServerSocket socket = serverSocket;
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    /**
+     * Waits until the server has stopped and the model thread has finished
+     * the tasks it was given.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if the server stopped, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
     @Override
     public void run() {
         running = true;
 
-        // Attempt to open the ServerSocket; abort on failure
+        // Restore the journaled state, then attempt to open the ServerSocket;
+        // abort on failure
+        int firstId;
         try {
-            serverSocket = new ServerSocket(21212);
+            checkMode();
+            firstId = restoreState();
+            openMessageLog();
+            openOfflineQueue();
+            openReplication();
+            String bindAddress = config.getBindAddress();
+            serverSocket = new ServerSocket(config.getPort(), config.getBacklog(),
+                    bindAddress == null ? null : InetAddress.getByName(bindAddress));
         } catch (IOException iox) {
-            iox.printStackTrace();
+            log.log(ServerLog.Level.ERROR, "start-failed", -1, iox);
             running = false;
             serverSocket = null;
+            stopTimer();
+            closeReplication();
+            closeJournal();
+            listening.countDown();
+            terminated.countDown();
+            log.close();
+            return;
         }
+        log.log(ServerLog.Level.INFO, "listening", -1,
+                serverSocket.getLocalSocketAddress().toString());
 
-        // Start the model thread
-        modelThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (running || !taskQueue.isEmpty()) {
-                    Task task;
-                    try {
-                        task = taskQueue.take();
-                    } catch (InterruptedException ix) {
-                        continue;
-                    }
-                    try {
-                        dispatchBroadcast(task.getBroadcast());
-                    } catch (RuntimeException rx) {
-                        rx.printStackTrace();
-                    }
-                }
-
-                try {
-                    if (serverSocket != null && !serverSocket.isClosed()) {
-                        serverSocket.close();
-                    }
-                } catch (IOException iox) {
-                    iox.printStackTrace();
-                }
+        // Start the model threads
+        shardsRunning.set(shards.length);
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        if (ringReaders != null) {
+            for (RingReader reader : ringReaders) {
+                reader.start();
             }
-        }, "Model thread");
-        modelThread.start();
-
+            watchRingWrites();
+        }
+        listening.countDown();
 
         // Await new connections on the current thread
-        ExecutorService workerPool = Executors.newCachedThreadPool();
+        ExecutorService workerPool = config.getConnectionThreads() == 0
+                ? Executors.newCachedThreadPool()
+                : Executors.newFixedThreadPool(config.getConnectionThreads());
         try {
-            int nextId = 0;
+            int nextId = firstId;
             while (running && !serverSocket.isClosed()) {
                 int userId = nextId++;
                 Socket clientSocket = serverSocket.accept();
                 openSockets.put(userId, clientSocket);
-                taskQueue.add(new Registration(userId));
-                workerPool.execute(new ConnectionWorker(userId, clientSocket));
+                if (subscribers != null) {
+                    subscribers.put(userId, new RingSubscriber(userId, clientSocket,
+                            ringReaders[Math.floorMod(userId, ringReaders.length)], log));
+                }
+                Coordinated registration = null;
+                if (actors != null) {
+                    // Nothing reaches the socket until the user has been told
+                    // their nickname
+                    synchronized (clientSocket) {
+                        String nickname = nicknames.register(userId);
+                        deliverTo(userId, nickname, Broadcast.connected(nickname));
+                    }
+                } else if (nicknames == null) {
+                    taskQueue.submit(userId, new Registration(userId), true);
+                } else {
+                    registration = new ShardedRegistration(userId, nicknames.register(userId));
+                    homeShard(userId).queue.submit(userId, registration, true);
+                }
+                workerPool.execute(new ConnectionWorker(userId, clientSocket, registration));
             }
         } catch (IOException iox) {
-            iox.printStackTrace();
+            log.log(ServerLog.Level.INFO, "accept-stopped", -1, iox.toString());
         } finally {
             running = false;
             workerPool.shutdown();
@@ -108,7 +371,7 @@ final class ServerBackend implements Runnable {
                     serverSocket.close();
                 }
             } catch (IOException iox) {
-                iox.printStackTrace();
+                log.log(ServerLog.Level.WARN, "close-failed", -1, iox);
             } finally {
                 serverSocket = null;
             }
@@ -120,167 +383,2060 @@ final class ServerBackend implements Runnable {
                     try {
                         clientSocket.close();
                     } catch (IOException iox) {
-                        iox.printStackTrace();
+                        log.log(ServerLog.Level.WARN, "close-failed", -1, iox);
                     } finally {
                         iterator.remove();
                     }
                 }
             }
         }
+
+        if (actorPool != null) {
+            // There is no model thread to finish up; let the actors empty
+            // their mailboxes instead
+            actorPool.awaitQuiescence(10, TimeUnit.SECONDS);
+            actorPool.shutdown();
+            finish();
+        }
     }
 
-    public void stop() {
-        running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
+    /**
+     * Refuses to start in SHARDED or ACTOR mode with settings that only work
+     * with a single model thread.
+     *
+     * @throws IOException if such a setting is used
+     */
+    private void checkMode() throws IOException {
+        if (nicknames == null) {
+            return;
+        }
+        if (rings != null) {
+            throw new IOException("Channel rings are only supported in SINGLE mode");
+        }
+        String mode = actors == null ? "Sharded" : "Actor";
+        if (config.getJournalPath() != null || config.getReplicationPort() >= 0
+                || config.getResumeGraceSeconds() > 0 || config.getMessageLogPath() != null
+                || config.getOfflineQueuePath() != null) {
+            throw new IOException(mode + " mode does not support the journal, replication,"
+                    + " resume tokens, the message log or the offline queue");
+        }
+        if (actors != null && config.getHistoryTotalBytes() > 0) {
+            throw new IOException("Actor mode does not support channel history");
+        }
+        if (!model.getTMap().isEmpty()) {
+            throw new IOException(mode + " mode must start from an empty model");
+        }
+    }
+
+    /**
+     * Gets the shard that owns a channel.
+     */
+    private Shard shardFor(String channel) {
+        return shards[Math.floorMod(channel.hashCode(), shards.length)];
+    }
+
+    /**
+     * Gets the shard that applies a user's commands that are not about a
+     * channel, and that applies changes to the user first.
+     */
+    private Shard homeShard(int userId) {
+        return shards[Math.floorMod(userId, shards.length)];
+    }
+
+    /**
+     * Runs once the last model thread has finished, closing everything the
+     * server opened.
+     */
+    private void finish() {
+        // A file channel written to with the interrupt flag set is closed
+        // instead, losing the last journal records; should the model thread
+        // have been interrupted, the flag is put back once all is closed
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
-            } catch (IOException iox) {
-                iox.printStackTrace();
             }
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.WARN, "close-failed", -1, iox);
+        }
+        stopTimer();
+        historyReaders.shutdown();
+        announcers.shutdown();
+        try {
+            if (fanout != null) {
+                fanout.close();
+            }
+            if (ringReaders != null) {
+                for (RingReader reader : ringReaders) {
+                    reader.stop();
+                }
+            }
+            if (offlineQueue != null) {
+                offlineQueue.close();
+            }
+        } catch (InterruptedException ix) {
+            interrupted = true;
+        }
+        if (messageIndex != null) {
+            messageIndex.close();
         }
-        if (modelThread != null) {
-            modelThread.interrupt();
+        closeReplication();
+        closeJournal();
+        log.close();
+        terminated.countDown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Rebuilds the model from the latest snapshot and the journal records
+     * that follow it, if there is a journal, and attaches the journal to the
+     * model so that it records every later change. Restored users, and the
+     * users of a model handed over by a standby, are given until the grace
+     * period ends to be claimed.
+     *
+     * @return The lowest user id not held by a restored user
+     * @throws IOException if the journal cannot be read or opened, or there
+     *                     is a journal but no resume tokens to claim its
+     *                     users with
+     */
+    private int restoreState() throws IOException {
+        if (config.getJournalPath() != null) {
+            if (config.getResumeGraceSeconds() == 0) {
+                throw new IOException("A journal needs a resume grace period, since"
+                        + " restored users can only be claimed with their resume token");
+            }
+            openJournal(config.getJournalPath());
+        }
+
+        int nextId = 0;
+        for (int userId : model.getTMap().keySet()) {
+            nextId = Math.max(nextId, userId + 1);
+        }
+        final Set<Integer> restored = model.getDetachedUsers();
+        if (!restored.isEmpty()) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (int userId : restored) {
+                        taskQueue.submit(-1, new Expiry(userId), true);
+                    }
+                }
+            }, config.getRestoreGraceSeconds(), TimeUnit.SECONDS);
+        }
+        return nextId;
+    }
 
-    //==========================================================================
-    // Broadcast dispatch
-    //==========================================================================
+    private void openJournal(String journalPath) throws IOException {
+        Path path = Paths.get(journalPath);
+        snapshotPath = Paths.get(journalPath + ".snapshot");
+        long start = System.nanoTime();
+        long position = 0;
+        if (Files.exists(snapshotPath)) {
+            position = ModelSnapshot.load(snapshotPath, model);
+        }
+        if (Files.exists(path)) {
+            long records = CommandJournal.replay(path, model, position);
+            log.log(ServerLog.Level.INFO, "journal-replayed", -1, records + " records in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        journal = CommandJournal.open(path, config.getJournalFlushMillis(), position);
+        model.setJournal(journal);
+        int interval = config.getSnapshotIntervalSeconds();
+        if (interval > 0) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    taskQueue.submit(-1, new Snapshot(), true);
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
 
-    private void dispatchBroadcast(Broadcast broadcast) {
-        if (broadcast == null) {
+    /**
+     * Opens the message log, if there is one, and attaches it to the model.
+     * The logs of channels that no longer exist are deleted, and old messages
+     * are swept out every minute. Unless SEARCH is off, the search index is
+     * rebuilt from the log in the background.
+     *
+     * @throws IOException if the message log directory cannot be opened
+     */
+    private void openMessageLog() throws IOException {
+        String messageLogPath = config.getMessageLogPath();
+        if (messageLogPath == null) {
             return;
         }
+        messageLog = new MessageLog(Paths.get(messageLogPath), Charset.defaultCharset(),
+                config.getMessageLogSegmentBytes(),
+                TimeUnit.HOURS.toMillis(config.getMessageLogRetentionHours()),
+                config.getMessageLogMaxBytesPerChannel(), log);
+        messageLog.retainOnly(model.getChannels());
+        model.setMessageLog(messageLog);
+        if (config.getSearchIndexBytes() > 0) {
+            messageIndex = new MessageIndex(config.getSearchIndexBytes(), 64 * 1024, log);
+            messageIndex.backfill(messageLog, model.getChannels(), Charset.defaultCharset());
+            model.setMessageIndex(messageIndex);
+        }
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                messageLog.sweep();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
 
-        Map<Integer, List<String>> responses = broadcast.getResponses(model);
-        for (int userId : responses.keySet()) {
-            try {
-                Socket clientSocket = openSockets.get(userId);
-                PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
-                for (String response : responses.get(userId)) {
-                    pw.println(response);
-                    pw.flush();
-                    System.out.printf("Response sent to user %d: \"%s\"\n",
-                            userId, response);
+    /**
+     * Opens the offline queue, if there is one, keeping only the notices of
+     * users that were restored and may yet be claimed.
+     *
+     * @throws IOException if the queue directory cannot be opened
+     */
+    private void openOfflineQueue() throws IOException {
+        String offlineQueuePath = config.getOfflineQueuePath();
+        if (offlineQueuePath == null) {
+            return;
+        }
+        offlineQueue = new OfflineQueue(Paths.get(offlineQueuePath),
+                config.getOfflineQueueMaxNotices(), Charset.defaultCharset(), log);
+        Set<String> nicknames = new HashSet<>();
+        for (int userId : model.getDetachedUsers()) {
+            nicknames.add(model.getNickname(userId));
+        }
+        offlineQueue.retainOnly(nicknames);
+    }
+
+    /**
+     * Starts feeding standby servers, if a replication port is configured.
+     * The port listens on loopback unless a replication key is set. Each
+     * standby that sends the key is attached on the model thread, so that its snapshot and
+     * the records that follow line up. The replication lag is logged every
+     * ten seconds while a standby is attached.
+     *
+     * @throws IOException if there is no journal, the port is not on loopback
+     *                     and there is no key, or the port cannot be bound
+     */
+    private void openReplication() throws IOException {
+        if (config.getReplicationPort() < 0) {
+            return;
+        }
+        if (journal == null) {
+            throw new IOException("Replication needs a journal");
+        }
+        String bindAddress = config.getReplicationBindAddress();
+        InetAddress address = bindAddress == null ? null : InetAddress.getByName(bindAddress);
+        if (config.getReplicationKey() == null
+                && (address == null || !address.isLoopbackAddress())) {
+            throw new IOException("Replication beyond loopback needs a replication key");
+        }
+        ServerSocket replicationSocket = new ServerSocket(config.getReplicationPort(),
+                config.getBacklog(), address);
+        replication = new ReplicationSource(replicationSocket, journal, log,
+                config.getReplicationKey(),
+                new ReplicationSource.AttachRequest() {
+                    @Override
+                    public void attach(Socket standby) {
+                        taskQueue.submit(-1, new Attachment(standby), true);
+                    }
+                });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                ReplicationSource source = replication;
+                if (source != null && source.getStandbyCount() > 0) {
+                    log.log(ServerLog.Level.INFO, "replication-lag", -1,
+                            source.getLagBytes() + " bytes, " + source.getLagMillis() + " ms");
                 }
-                pw.flush();
-            } catch (IOException iox) {
-                iox.printStackTrace();
             }
-        }
+        }, 10, 10, TimeUnit.SECONDS);
     }
 
+    private void closeReplication() {
+        ReplicationSource source = replication;
+        if (source != null) {
+            source.close();
+        }
+    }
 
-    //==========================================================================
-    // ConnectionWorker
-    //==========================================================================
+    /**
+     * Writes a snapshot captured on the model thread, then drops the journal
+     * records it holds. Runs on the timer thread.
+     */
+    private void writeSnapshot(ModelSnapshot snapshot) {
+        try {
+            long start = System.nanoTime();
+            snapshot.write(snapshotPath);
+            journal.truncateBefore(snapshot.getJournalPosition());
+            log.log(ServerLog.Level.INFO, "snapshot-written", -1,
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.ERROR, "snapshot-failed", -1, iox);
+        } finally {
+            snapshotInProgress.set(false);
+        }
+    }
 
-    private final class ConnectionWorker implements Runnable {
-        private final int userId;
-        private final Socket clientSocket;
+    /**
+     * Stops the timer, letting a snapshot being written finish first. The
+     * timer thread is not interrupted, since that would close the journal's
+     * file under it.
+     */
+    private void stopTimer() {
+        timer.shutdown();
+        try {
+            timer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        public ConnectionWorker(int userId, Socket clientSocket) {
-            this.userId = userId;
-            this.clientSocket = clientSocket;
+    private void closeJournal() {
+        if (journal == null) {
+            return;
         }
+        model.setJournal(null);
+        try {
+            journal.close();
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.ERROR, "journal-failed", -1, iox);
+        }
+    }
 
-        @Override
-        public void run() {
-            try (
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()))
-            ) {
-                while (running && !clientSocket.isClosed()) {
-                    String line = reader.readLine();
-                    if (line != null) {
-                        System.out.printf("Request received from user %d: " +
-                                "\"%s\"\n", userId, line);
-                        String payload;
-                        if (line.startsWith(":")) {
-                            int index = line.indexOf(' ');
-                            payload = line.substring(index + 1);
-                        } else {
-                            payload = line;
-                        }
-                        Request request = new Request(userId, payload);
-                        taskQueue.add(request);
-                    } else {
-                        clientSocket.close();
-                        taskQueue.add(new Disconnection(userId));
-                    }
-                }
+    public void stop() {
+        running = false;
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
             } catch (IOException iox) {
-                iox.printStackTrace();
-                taskQueue.add(new Disconnection(userId));
-            } finally {
-                openSockets.remove(userId);
+                log.log(ServerLog.Level.WARN, "close-failed", -1, iox);
             }
         }
+        for (Shard shard : shards) {
+            // Wakes the model thread to see that the server is stopping. It
+            // is not interrupted, since the interrupt could land after it has
+            // started closing the journal, and close its file under it
+            shard.queue.submit(-1, idle -> null, true);
+        }
     }
 
 
     //==========================================================================
-    // Tasks
+    // Broadcast dispatch
     //==========================================================================
 
-    private interface Task {
-        Broadcast getBroadcast();
+    /**
+     * Sends the responses of a broadcast.
+     *
+     * @param broadcast The broadcast, or null if there is nothing to send
+     * @param model The model, on the current model thread, in which to look
+     *              up the recipients
+     */
+    private void dispatchBroadcast(Broadcast broadcast, ServerModel model) {
+        if (broadcast == null) {
+            return;
+        }
+        deliver(broadcast.getResponses(model));
     }
 
     /**
-     * Represents a client's connection to the server.
+     * Sends a broadcast to one user whose id is already known, without a
+     * model to look it up in, as in ACTOR mode when there is no channel.
+     *
+     * @param userId The id of the recipient
+     * @param nickname The recipient's nickname in the broadcast
+     * @param broadcast The broadcast
      */
-    private final class Registration implements Task {
-        private final int userId;
-
-        public Registration(int userId) {
-            this.userId = userId;
+    private void deliverTo(int userId, String nickname, Broadcast broadcast) {
+        List<String> responses = broadcast.getResponsesTo(nickname);
+        if (!responses.isEmpty()) {
+            deliver(Collections.singletonMap(userId, responses));
         }
+    }
 
-        @Override
-        public Broadcast getBroadcast() {
-            return model.registerUser(userId);
+    /**
+     * Sends responses to their recipients, handing large broadcasts to the
+     * fanout threads if there are any.
+     *
+     * @param responses The responses to each recipient, by user id
+     */
+    private void deliver(Map<Integer, List<String>> responses) {
+        responses = chunk(responses);
+        if (fanout == null) {
+            write(responses, true);
+            return;
+        }
+        if (offlineQueue != null && model.getDetachedCount() > 0) {
+            // The offline queue belongs to the model thread, which keeps the
+            // notices to detached users here, so that they follow the NICK
+            // that resumes the session; only those few users are looked up
+            Map<Integer, List<String>> connected = null;
+            for (int userId : model.getDetachedUsers()) {
+                List<String> userResponses = responses.get(userId);
+                if (userResponses == null) {
+                    continue;
+                }
+                queueOffline(userId, userResponses);
+                if (connected == null) {
+                    connected = new HashMap<>(responses);
+                }
+                connected.remove(userId);
+            }
+            if (connected != null) {
+                responses = connected;
+            }
         }
+        fanout.dispatch(responses);
     }
 
     /**
-     * Represents a client's disconnection from the server.
+     * Writes responses to the sockets of their recipients.
+     *
+     * @param responses The responses to each recipient, by user id
+     * @param onModelThread Whether this is the model thread, which queues
+     *                      notices for recipients without a socket; other
+     *                      threads hand those back to it in one task.
+     *                      Responses to a connection reading channel rings
+     *                      are handed to its ring reader instead, so that
+     *                      no thread here waits on that socket
      */
-    private final class Disconnection implements Task {
-        private final int userId;
-
-        public Disconnection(int userId) {
-            this.userId = userId;
+    private void write(Map<Integer, List<String>> responses, boolean onModelThread) {
+        Map<Integer, List<String>> missed = null;
+        for (int userId : responses.keySet()) {
+            Socket clientSocket = openSockets.get(userId);
+            if (clientSocket == null) {
+                // The recipient has disconnected since the broadcast was
+                // made, or was restored and is not yet claimed
+                if (onModelThread) {
+                    queueOffline(userId, responses.get(userId));
+                } else if (offlineQueue != null && hasNotices(responses.get(userId))) {
+                    if (missed == null) {
+                        missed = new HashMap<>();
+                    }
+                    missed.put(userId, responses.get(userId));
+                }
+                continue;
+            }
+            RingSubscriber subscriber = subscribers == null ? null : subscribers.get(userId);
+            if (subscriber != null) {
+                // Written by the connection's ring reader, after the messages
+                // published before them
+                subscriber.send(ringStamp, responses.get(userId));
+                continue;
+            }
+            // HISTORY pages are written to the same socket by other threads
+            synchronized (clientSocket) {
+                try {
+                    PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
+                    for (String response : responses.get(userId)) {
+                        pw.println(response);
+                        pw.flush();
+                        log.sample(ServerLog.Level.INFO, "response", userId, null,
+                                response.length(), redact(response));
+                    }
+                    pw.flush();
+                } catch (IOException iox) {
+                    log.log(ServerLog.Level.WARN, "send-failed", userId, iox.toString());
+                }
+            }
         }
+        if (missed != null) {
+            // The offline queue belongs to the model thread
+            taskQueue.submit(-1, new Missed(missed), true);
+        }
+    }
 
-        @Override
-        public Broadcast getBroadcast() {
-            return model.deregisterUser(userId);
+    /**
+     * Gets the text of a response to log. The CONNECT that hands a client its
+     * resume token is logged without the token, which would let anyone who
+     * can read the log take over the session.
+     *
+     * @param response The response line
+     * @return The response line, or its loggable part
+     */
+    static String redact(String response) {
+        // Responses are of the form ":<nickname> CONNECT <token>"
+        int commandStart = response.indexOf(' ') + 1;
+        if (commandStart > 0 && response.startsWith("CONNECT ", commandStart)) {
+            return response.substring(0, commandStart + "CONNECT".length());
         }
+        return response;
     }
 
     /**
-     * Represents an incoming command from a connected client.
+     * Gets the text of a request line to log. The operator key of an
+     * ANNOUNCE and the token of a RESUME are never logged, so only the
+     * command's name is.
+     *
+     * @param command The parsed request
+     * @param line The request line
+     * @return The request line, or its loggable part
      */
-    private final class Request implements Task {
-        private final int userId;
-        private final String payload;
+    private static String redact(Command command, String line) {
+        if (command instanceof AnnounceCommand || command instanceof ResumeCommand) {
+            return command.getType().toString();
+        }
+        return line;
+    }
 
-        public Request(int userId, String payload) {
-            this.userId = userId;
-            this.payload = payload;
+    /**
+     * Sends an operator's announcement to every open connection. The line is
+     * encoded once, and the ids of the connections are copied out of
+     * {@code openSockets} under its lock, which is then let go: the writes
+     * are always made on the fanout threads, however few the connections,
+     * or on the announcer threads if there are none, so that neither the
+     * caller nor anyone waiting on {@code openSockets} is held up by a slow
+     * connection.
+     *
+     * @param command The announcement, with its sender bound
+     */
+    private void announce(AnnounceCommand command) {
+        List<String> line = Collections.singletonList(command.toString());
+        Integer[] userIds;
+        synchronized (openSockets) {
+            userIds = openSockets.keySet().toArray(new Integer[0]);
+        }
+        log.log(ServerLog.Level.INFO, "announce", command.getSenderId(),
+                userIds.length + " connections");
+        if (fanout != null) {
+            Map<Integer, List<String>> responses = new HashMap<>();
+            for (int userId : userIds) {
+                responses.put(userId, line);
+            }
+            fanout.dispatch(responses, true);
+            return;
+        }
+        for (int start = 0; start < userIds.length; start += ANNOUNCE_CHUNK) {
+            final Map<Integer, List<String>> chunk = new HashMap<>();
+            for (int i = start; i < Math.min(start + ANNOUNCE_CHUNK, userIds.length); i++) {
+                chunk.put(userIds[i], line);
+            }
+            announcers.execute(() -> write(chunk, false));
         }
+    }
 
-        @Override
-        public Broadcast getBroadcast() {
-            String sender = model.getNickname(userId);
+    /**
+     * Keeps the INVITE and KICK notices among responses to a user without a
+     * socket, by their nickname, to be sent when they resume their session.
+     * Only reached for recipients without a socket, so connected users pay
+     * nothing for it.
+     */
+    private void queueOffline(int userId, List<String> responses) {
+        if (offlineQueue == null) {
+            return;
+        }
+        String nickname = model.getNickname(userId);
+        if (nickname == null) {
+            // The user is gone for good
+            return;
+        }
+        for (String response : responses) {
+            if (isNotice(response)) {
+                offlineQueue.add(nickname, response);
+            }
+        }
+    }
+
+    /**
+     * Checks whether any of a recipient's responses would be kept by the
+     * offline queue.
+     */
+    private static boolean hasNotices(List<String> responses) {
+        for (String response : responses) {
+            if (isNotice(response)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a response is an INVITE or KICK notice, which the
+     * offline queue keeps for a user without a socket.
+     */
+    private static boolean isNotice(String response) {
+        // Responses are of the form ":<sender> <TYPE> ..."
+        int typeStart = response.indexOf(' ') + 1;
+        return response.startsWith("INVITE ", typeStart)
+                || response.startsWith("KICK ", typeStart);
+    }
+
+    /**
+     * Sends the notices queued for a nickname to the user who has just
+     * resumed it, in a single write unless there are fanout threads. Called
+     * on the offline queue's writer thread.
+     *
+     * @param userId The id of the user
+     * @param notices The queued notices, as encoded lines
+     */
+    private void deliverOffline(int userId, byte[] notices) {
+        Socket clientSocket = openSockets.get(userId);
+        if (clientSocket == null) {
+            return;
+        }
+        if (fanout != null) {
+            // Behind the NICK that resumed the session, which may still be
+            // queued to the user's fanout thread
+            String text = new String(notices, Charset.defaultCharset());
+            fanout.dispatch(Collections.singletonMap(userId,
+                    Arrays.asList(text.split(Pattern.quote(System.lineSeparator())))));
+            return;
+        }
+        RingSubscriber subscriber = subscribers == null ? null : subscribers.get(userId);
+        if (subscriber != null) {
+            // Behind the NICK that resumed the session, which the ring
+            // reader may not have written yet
+            subscriber.sendNotices(ringStamp, notices);
+            return;
+        }
+        synchronized (clientSocket) {
+            try {
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(notices);
+                out.flush();
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.WARN, "send-failed", userId, iox.toString());
+            }
+        }
+    }
+
+    /**
+     * Sends a page of a channel's message log to a member who asked for it
+     * with HISTORY. The page is read and written on a history reader thread,
+     * so that the model thread does not wait on the disk.
+     *
+     * @param userId The id of the member
+     * @param command The accepted HISTORY command
+     */
+    private void serveHistory(final int userId, final HistoryCommand command) {
+        historyReaders.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<MessageLog.Entry> entries = messageLog.read(command.getChannel(),
+                            command.getBeforeSequence(),
+                            Math.min(command.getCount(), config.getHistoryMaxCount()));
+                    sendEntries(userId, command, command.getChannel(), entries);
+                } catch (IOException iox) {
+                    log.log(ServerLog.Level.WARN, "send-failed", userId, iox.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the latest messages of a channel that match a member's SEARCH.
+     * The index is searched, and the matches read from the message log, on
+     * a history reader thread.
+     *
+     * @param userId The id of the member
+     * @param command The accepted SEARCH command
+     */
+    private void serveSearch(final int userId, final SearchCommand command) {
+        historyReaders.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String channel = command.getChannel();
+                    List<MessageLog.Entry> entries = new ArrayList<>();
+                    for (long sequence : messageIndex.search(channel, command.getTerms(),
+                            config.getSearchMaxResults())) {
+                        List<MessageLog.Entry> match = messageLog.read(channel, sequence + 1, 1);
+                        // The message may have been swept out of the log since
+                        if (!match.isEmpty() && match.get(0).getSequence() == sequence) {
+                            entries.add(match.get(0));
+                        }
+                    }
+                    sendEntries(userId, command, channel, entries);
+                } catch (IOException iox) {
+                    log.log(ServerLog.Level.WARN, "send-failed", userId, iox.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes messages read from the message log to a client. Each logged
+     * line is copied from its segment to the socket as it was stored,
+     * without being decoded, after a prefix of the form
+     * {@code :<requester> <TYPE> <channel> <sequence> :}.
+     */
+    private void sendEntries(int userId, Command command, String channel,
+            List<MessageLog.Entry> entries) throws IOException {
+        Socket clientSocket = openSockets.get(userId);
+        if (clientSocket == null) {
+            return;
+        }
+        Charset charset = Charset.defaultCharset();
+        byte[] newline = System.lineSeparator().getBytes(charset);
+        byte[] copy = new byte[256];
+        synchronized (clientSocket) {
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), 16 * 1024);
+            for (MessageLog.Entry entry : entries) {
+                out.write(String.format(":%s %s %s %d :", command.getSender(), command.getType(),
+                        channel, entry.getSequence()).getBytes(charset));
+                ByteBuffer line = entry.getLine();
+                while (line.hasRemaining()) {
+                    int length = Math.min(copy.length, line.remaining());
+                    line.get(copy, 0, length);
+                    out.write(copy, 0, length);
+                }
+                out.write(newline);
+            }
+            out.flush();
+        }
+        log.sample(ServerLog.Level.INFO, "log-read", userId, command.getType(),
+                entries.size(), channel);
+    }
+
+
+    /**
+     * Splits responses under the chunked-message extension. The recipients of
+     * a broadcast share its response strings, so each distinct response is
+     * split once, however many recipients it has.
+     *
+     * @param responses The responses to each recipient, by user id
+     * @return The lines to write to each recipient, by user id
+     */
+    private Map<Integer, List<String>> chunk(Map<Integer, List<String>> responses) {
+        if (config.getMessageChunkSize() == 0) {
+            return responses;
+        }
+        Map<String, List<String>> pieces = new IdentityHashMap<>();
+        Map<Integer, List<String>> lines = new HashMap<>();
+        for (Map.Entry<Integer, List<String>> entry : responses.entrySet()) {
+            List<String> userLines = new ArrayList<>();
+            for (String response : entry.getValue()) {
+                userLines.addAll(pieces.computeIfAbsent(response, this::chunk));
+            }
+            lines.put(entry.getKey(), userLines);
+        }
+        return lines;
+    }
+
+    /**
+     * Splits a response line. If the chunked-message extension is on, a MESG
+     * line longer than the chunk size is split into several lines to the same
+     * channel, each carrying the next piece of the message, so that no
+     * recipient is handed a line longer than the chunk size plus its prefix.
+     * Every piece but the last is sent as {@code MESG+}, so that a client can
+     * join the pieces back into the message, which ends with the final
+     * {@code MESG} line.
+     *
+     * @param response The response line
+     * @return The lines to write in its place
+     */
+    private List<String> chunk(String response) {
+        int chunkSize = config.getMessageChunkSize();
+        if (chunkSize == 0 || response.length() <= chunkSize) {
+            return Collections.singletonList(response);
+        }
+        // Responses are of the form ":<sender> MESG <channel> :<message>"
+        int commandStart = response.indexOf(' ') + 1;
+        int payloadStart = response.indexOf(" :", commandStart) + 2;
+        if (commandStart == 0 || payloadStart == 1
+                || !response.startsWith("MESG ", commandStart)) {
+            return Collections.singletonList(response);
+        }
+        String sender = response.substring(0, commandStart);
+        String target = response.substring(commandStart + "MESG".length(), payloadStart);
+        List<String> pieces = new ArrayList<>();
+        int start = payloadStart;
+        while (start < response.length()) {
+            int end = Math.min(start + chunkSize, response.length());
+            // Do not split a surrogate pair across two pieces
+            if (end < response.length()
+                    && Character.isHighSurrogate(response.charAt(end - 1))) {
+                end--;
+            }
+            String command = end < response.length() ? "MESG+" : "MESG";
+            pieces.add(sender + command + target + response.substring(start, end));
+            start = end;
+        }
+        return pieces;
+    }
+
+
+    //==========================================================================
+    // Channel rings
+    //==========================================================================
+
+    /**
+     * Publishes a MESG response to its channel's ring, and wakes the ring
+     * readers of the channel's connected members. Runs on the model thread,
+     * and costs the same whatever the size of the channel. A message split
+     * under the chunked-message extension takes one entry per piece.
+     */
+    private void publish(String channel, String response) {
+        ChannelRing ring = rings.get(channel);
+        if (ring == null) {
+            // No member of the channel is connected
+            return;
+        }
+        for (String line : chunk(response)) {
+            ring.publish(line, ++ringStamp);
+        }
+        for (RingReader reader : ringReaders) {
+            reader.wake(ring);
+        }
+    }
+
+    /**
+     * Brings the rings a user's connection reads in line with the channels
+     * the user is now in, after a command that may have changed them, and
+     * retires the rings of channels the change ended.
+     */
+    private void settleRings(int userId) {
+        RingSubscriber subscriber = subscribers.get(userId);
+        if (subscriber == null) {
+            return;
+        }
+        User user = model.getTMap().get(userId);
+        Set<String> channels = user == null ? Collections.<String>emptySet() : user.getGroupChats();
+        retireRings(subscriber.settle(channels, channel -> rings.computeIfAbsent(channel,
+                name -> new ChannelRing(config.getChannelRingSize())), ringStamp));
+    }
+
+    /**
+     * Gets the channels a user owns, which go with the user when they are
+     * deregistered.
+     */
+    private Collection<String> ownedChannels(int userId) {
+        User user = rings == null ? null : model.getTMap().get(userId);
+        return user == null ? Collections.<String>emptyList() : new ArrayList<>(user.getBossSet());
+    }
+
+    /**
+     * Retires the rings of those of the channels that no longer exist.
+     * Members still reading them finish what was published before.
+     */
+    private void retireRings(Collection<String> channels) {
+        for (String channel : channels) {
+            if (!model.doesChannelExist(channel)) {
+                retireRing(channel);
+            }
+        }
+    }
+
+    private void retireRing(String channel) {
+        ChannelRing ring = rings.remove(channel);
+        if (ring != null) {
+            ring.close();
+        }
+    }
+
+    /**
+     * Checks every few milliseconds for connections that have kept a ring
+     * reader blocked in a write for longer than the configured timeout, and
+     * disconnects them. A blocked write cannot be bounded on the reader's
+     * own thread, so the check runs on the timer thread, and closes the
+     * socket without taking its lock; the write then fails and the reader
+     * moves on to the connection's neighbours.
+     */
+    private void watchRingWrites() {
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(config.getRingWriteTimeoutMillis());
+        long period = Math.max(10, config.getRingWriteTimeoutMillis() / 4);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (RingSubscriber subscriber : subscribers.values()) {
+                    subscriber.checkStalled(now, timeout);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reading rings for a connection that has gone. Its ring reader
+     * lets go of the rings.
+     */
+    private void dropSubscriber(int userId) {
+        RingSubscriber subscriber = subscribers == null ? null : subscribers.remove(userId);
+        if (subscriber != null) {
+            subscriber.drop();
+        }
+    }
+
+
+    //==========================================================================
+    // ConnectionWorker
+    //==========================================================================
+
+    private final class ConnectionWorker implements Runnable {
+        private final int userId;
+        private final Socket clientSocket;
+
+        // Null if no rate limits are configured
+        private final RateLimiter limiter;
+
+        // Whether the client has already been told that its requests are
+        // being dropped
+        private boolean throttled;
+
+        // The registration to wait for before reading, null unless sharded
+        private final Coordinated registration;
+
+        // The requests sent to channel actors and not yet applied, in ACTOR
+        // mode; notified when it drops to zero
+        private final AtomicInteger outstanding;
+
+        public ConnectionWorker(int userId, Socket clientSocket, Coordinated registration) {
+            this.userId = userId;
+            this.clientSocket = clientSocket;
+            this.registration = registration;
+            limiter = RateLimiter.isNeeded(config) ? new RateLimiter(config) : null;
+            throttled = false;
+            outstanding = new AtomicInteger();
+        }
+
+        @Override
+        public void run() {
+            try (InputStream in = clientSocket.getInputStream()) {
+                if (registration != null && !registration.await()) {
+                    return;
+                }
+                LineReader reader = new LineReader(in, Charset.defaultCharset(),
+                        config.getMaxLineLength());
+                while (running && !clientSocket.isClosed()) {
+                    String line = reader.readLine();
+                    if (reader.isOversized()) {
+                        log.log(ServerLog.Level.WARN, "oversized-request", userId,
+                                (String) null);
+                        if (actors != null) {
+                            reply(ServerResponse.LINE_TOO_LONG);
+                        } else {
+                            enqueue(homeShard(userId), new Rejection(userId,
+                                    ServerResponse.LINE_TOO_LONG), false, 0);
+                        }
+                    } else if (line != null) {
+                        String payload;
+                        if (line.startsWith(":")) {
+                            int index = line.indexOf(' ');
+                            payload = line.substring(index + 1);
+                        } else {
+                            payload = line;
+                        }
+                        Request request = parseRequest(payload);
+                        if (request != null) {
+                            log.sample(ServerLog.Level.INFO, "request", userId,
+                                    request.command.getType(), reader.getLineBytes(),
+                                    redact(request.command, line));
+                        }
+                        if (request != null && limiter != null) {
+                            request = throttle(request);
+                        }
+                        if (request != null) {
+                            submit(request, reader.getLineBytes());
+                        }
+                    } else {
+                        clientSocket.close();
+                        disconnect();
+                    }
+                }
+            } catch (IOException iox) {
+                log.log(ServerLog.Level.INFO, "connection-lost", userId, iox.toString());
+                disconnect();
+            } finally {
+                openSockets.remove(userId);
+            }
+        }
+
+        /**
+         * Parses and validates a payload on this connection thread, so that
+         * the model thread only has to apply the resulting command. Commands
+         * that fail the stateless checks still go to the model thread, which
+         * knows the sender's nickname and can address the error response.
+         *
+         * @param payload The command string sent by the client
+         * @return The request to enqueue, or null if the payload is malformed
+         */
+        private Request parseRequest(String payload) {
+            Command command;
+            try {
+                command = CommandParser.parse(userId, null, payload);
+            } catch (IllegalArgumentException iax) {
+                log.log(ServerLog.Level.WARN, "malformed-request", userId,
+                        iax.getMessage());
+                return null;
+            }
+            if (command == null) {
+                log.log(ServerLog.Level.WARN, "malformed-request", userId, payload);
+                return null;
+            }
+            ServerResponse validation = command.validate();
+            if (command instanceof AnnounceCommand && validation == ServerResponse.OKAY
+                    && !isOperatorKey(((AnnounceCommand) command).getKey())) {
+                log.log(ServerLog.Level.WARN, "not-operator", userId, (String) null);
+                validation = ServerResponse.NOT_OPERATOR;
+            }
+            return new Request(userId, command, validation);
+        }
+
+        /**
+         * Checks a key against the operator key, taking the same time
+         * however much of it matches.
+         */
+        private boolean isOperatorKey(String key) {
+            String operatorKey = config.getOperatorKey();
+            return operatorKey != null && MessageDigest.isEqual(
+                    operatorKey.getBytes(StandardCharsets.UTF_8),
+                    key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Hands a request to the model thread that applies it. In SHARDED
+         * mode, a command about a channel goes to the channel's shard, and
+         * anything else to the sender's home shard. A NICK is first claimed
+         * in the nickname registry, then applied on every shard, and the
+         * connection is not read again until it has been. In ACTOR mode, see
+         * {@link #tell}.
+         *
+         * @param request The parsed request
+         * @param bytes The size of the request line, in bytes as read
+         * @throws IOException if the connection cannot be closed
+         */
+        private void submit(Request request, int bytes) throws IOException {
+            if (actors != null) {
+                tell(request);
+                return;
+            }
+            if (nicknames != null && request.command instanceof NicknameCommand
+                    && request.validation == ServerResponse.OKAY) {
+                NicknameCommand command = (NicknameCommand) request.command;
+                String previous = nicknames.rename(userId, command.getNewNickname());
+                if (previous == null) {
+                    enqueue(homeShard(userId), new Request(userId, command,
+                            ServerResponse.NAME_ALREADY_IN_USE), true, bytes);
+                    return;
+                }
+                command.bindSender(previous);
+                Coordinated rename = new ShardedRename(command);
+                enqueue(homeShard(userId), rename, true, bytes);
+                rename.await();
+                return;
+            }
+            String channel = request.command.getChannel();
+            Shard shard = channel == null ? homeShard(userId) : shardFor(channel);
+            enqueue(shard, request, request.isUrgent(), bytes);
+        }
+
+        /**
+         * Hands a request to the actor of its channel, in ACTOR mode. While
+         * the actors' mailboxes are full, this blocks, and the connection is
+         * not read. A command about no channel is answered here, once every
+         * earlier request of the user has been applied: a NICK is claimed in
+         * the nickname registry and passed on to the actors of the user's
+         * channels, and the connection is not read again until they have
+         * all applied it. A PRIVMSG or ANNOUNCE is written from here. Resume
+         * tokens are never issued.
+         *
+         * @param request The parsed request
+         * @throws IOException if the connection cannot be closed
+         */
+        private void tell(Request request) throws IOException {
+            Command command = request.command;
+            String channel = command.getChannel();
+            if (channel != null) {
+                try {
+                    while (!mailboxPermits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    clientSocket.close();
+                    disconnect();
+                    return;
+                }
+                outstanding.incrementAndGet();
+                tellActor(channel, new ActorRequest(this, request));
+                return;
+            }
+            if (!quiesce()) {
+                return;
+            }
+            String sender = nicknames.getNickname(userId);
+            command.bindSender(sender);
+            if (request.validation != ServerResponse.OKAY) {
+                deliverTo(userId, sender, Broadcast.error(command, request.validation));
+            } else if (command instanceof NicknameCommand) {
+                NicknameCommand nick = (NicknameCommand) command;
+                if (nicknames.rename(userId, nick.getNewNickname()) == null) {
+                    deliverTo(userId, sender,
+                            Broadcast.error(command, ServerResponse.NAME_ALREADY_IN_USE));
+                    return;
+                }
+                // Actors that still know the user by the old nickname see
+                // to a member who has since taken it; see ActorRename
+                nicknames.release(userId, sender);
+                deliverTo(userId, nick.getNewNickname(), Broadcast.okay(command,
+                        Collections.singleton(nick.getNewNickname())));
+                Set<String> joined = nicknames.getChannels(userId);
+                if (joined.isEmpty()) {
+                    return;
+                }
+                ActorRename rename = new ActorRename(nick, joined.size());
+                for (String name : joined) {
+                    tellActor(name, rename);
+                }
+                // The members must hear of the new nickname before anything
+                // the user sends under it
+                rename.await();
+            } else if (command instanceof AnnounceCommand) {
+                announce((AnnounceCommand) command);
+            } else if (command instanceof PrivateMessageCommand) {
+                PrivateMessageCommand message = (PrivateMessageCommand) command;
+                int targetId = nicknames.getUserId(message.getTarget());
+                if (targetId < 0) {
+                    deliverTo(userId, sender,
+                            Broadcast.error(command, ServerResponse.NO_SUCH_RECIPIENT));
+                } else {
+                    deliver(Collections.singletonMap(targetId,
+                            Collections.singletonList(message.toString())));
+                }
+            } else {
+                deliverTo(userId, sender,
+                        Broadcast.error(command, ServerResponse.INVALID_RESUME_TOKEN));
+            }
+        }
+
+        /**
+         * Answers the connection's user with an error, in ACTOR mode, after
+         * the responses to their earlier requests.
+         *
+         * @param error The error
+         */
+        private void reply(ServerResponse error) {
+            if (quiesce()) {
+                String sender = nicknames.getNickname(userId);
+                deliverTo(userId, sender, Broadcast.error(sender, error));
+            }
+        }
+
+        /**
+         * Waits until the channel actors have applied every request the
+         * connection sent them.
+         *
+         * @return true once they have, or false if the server stopped first
+         */
+        private boolean quiesce() {
+            synchronized (outstanding) {
+                try {
+                    while (outstanding.get() > 0) {
+                        if (!running) {
+                            return false;
+                        }
+                        outstanding.wait(100);
+                    }
+                    return true;
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Called by a channel actor once it has applied one of the
+         * connection's requests.
+         */
+        private void applied() {
+            if (outstanding.decrementAndGet() == 0) {
+                synchronized (outstanding) {
+                    outstanding.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Puts a task in a shard's task queue. While the queue is full, this
+         * blocks, and the connection is not read.
+         *
+         * @param shard The shard to run the task
+         * @param task The task to enqueue
+         * @param urgent Whether the task should run ahead of bulk traffic
+         * @param bytes The size of the request line, in bytes as read
+         * @throws IOException if the connection cannot be closed
+         */
+        private void enqueue(Shard shard, Task task, boolean urgent, int bytes)
+                throws IOException {
+            try {
+                shard.queue.put(userId, task, urgent, bytes);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                clientSocket.close();
+                disconnect();
+            }
+        }
+
+        /**
+         * Queues the teardown of the connection's user behind the rest of
+         * its tasks.
+         */
+        private void disconnect() {
+            // Responses made from here on are for a user without a socket,
+            // and so can be queued offline
+            openSockets.remove(userId);
+            if (actors != null) {
+                // No one can find the user any more, but they keep their
+                // nickname until every channel has forgotten them
+                nicknames.depart(userId);
+                quiesce();
+                Set<String> joined = nicknames.getChannels(userId);
+                if (joined.isEmpty()) {
+                    nicknames.release(userId);
+                    return;
+                }
+                ActorDeparture departure = new ActorDeparture(userId, joined.size());
+                for (String channel : joined) {
+                    tellActor(channel, departure);
+                }
+            } else if (nicknames == null) {
+                taskQueue.submitLast(userId, new Disconnection(userId));
+            } else {
+                homeShard(userId).queue.submitLast(userId, new ShardedDisconnection(userId));
+            }
+        }
+
+        /**
+         * Applies the connection's rate limits to a request before it can
+         * reach the task queue, following the configured
+         * {@link ServerConfig.RateLimitAction}.
+         *
+         * @param request The parsed request
+         * @return The request to enqueue, which is replaced by an error
+         *      request when the client must be told that its requests are
+         *      being dropped, or null if nothing should be enqueued
+         * @throws IOException if the connection cannot be closed
+         */
+        private Request throttle(Request request) throws IOException {
+            CommandType type = request.command.getType();
+            long wait;
+            while ((wait = limiter.tryAcquire(type)) > 0) {
+                switch (config.getRateLimitAction()) {
+                    case DELAY:
+                        try {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException ix) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                        break;
+                    case DROP:
+                        if (throttled) {
+                            return null;
+                        }
+                        throttled = true;
+                        return new Request(userId, request.command,
+                                ServerResponse.RATE_LIMITED);
+                    case DISCONNECT:
+                    default:
+                        log.log(ServerLog.Level.WARN, "rate-limit-disconnect", userId,
+                                type.toString());
+                        clientSocket.close();
+                        disconnect();
+                        return null;
+                }
+            }
+            throttled = false;
+            return request;
+        }
+    }
+
+
+    //==========================================================================
+    // Tasks
+    //==========================================================================
+
+    /**
+     * Something for a model thread to do. Tasks that only exist in SINGLE
+     * mode, such as journal snapshots, use the model directly; the rest use
+     * the model of the shard they run on.
+     */
+    private interface Task {
+        Broadcast getBroadcast(Shard shard);
+    }
+
+    /**
+     * A model thread, with the model it owns and its queue of tasks. In
+     * SHARDED mode each channel lives on the shard picked by the hash of its
+     * name, and every shard holds a copy of every user.
+     */
+    private final class Shard implements Runnable {
+        private final ServerModel model;
+        private final InboundScheduler<Task> queue;
+        private final Thread thread;
+
+        public Shard(String name, ServerModel model, InboundScheduler<Task> queue) {
+            this.model = model;
+            this.queue = queue;
+            thread = new Thread(this, name);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException ix) {
+                    continue;
+                }
+                try {
+                    dispatchBroadcast(task.getBroadcast(this), model);
+                } catch (RuntimeException rx) {
+                    log.log(ServerLog.Level.ERROR, "task-failed", -1, rx);
+                }
+            }
+            if (shardsRunning.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * A change to a user that every shard applies to its own model, in
+     * SHARDED mode. The user's home shard applies it first and then hands it
+     * to the others, each of which tells the users it knows of that have not
+     * been told already. Because each shard takes a user's tasks in order,
+     * the change is applied on every shard before any command the user sent
+     * after it.
+     */
+    private abstract class Coordinated implements Task {
+        final int userId;
+        private final AtomicInteger remaining;
+        private final Set<Integer> told;
+        private final CountDownLatch applied;
+
+        Coordinated(int userId) {
+            this.userId = userId;
+            remaining = new AtomicInteger(shards.length);
+            told = ConcurrentHashMap.newKeySet();
+            applied = new CountDownLatch(1);
+        }
+
+        /**
+         * Applies the change to one shard's model.
+         *
+         * @return The broadcast for the users of the shard, or null
+         */
+        abstract Broadcast apply(Shard shard);
+
+        /**
+         * Hands the change to another shard, after the home shard applied it.
+         */
+        void forward(Shard shard) {
+            shard.queue.submit(userId, this, true);
+        }
+
+        /**
+         * Runs once every shard has applied the change.
+         */
+        void completed() {
+        }
+
+        @Override
+        public final Broadcast getBroadcast(Shard shard) {
+            Broadcast broadcast = apply(shard);
+            if (broadcast != null) {
+                Map<Integer, List<String>> responses = broadcast.getResponses(shard.model);
+                responses.keySet().removeIf(id -> !told.add(id));
+                deliver(responses);
+            }
+            if (shard == homeShard(userId)) {
+                for (Shard other : shards) {
+                    if (other != shard) {
+                        forward(other);
+                    }
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                completed();
+                applied.countDown();
+            }
+            return null;
+        }
+
+        /**
+         * Waits for every shard to apply the change.
+         *
+         * @return true once it has been, or false if the server stopped first
+         */
+        boolean await() {
+            try {
+                while (!applied.await(100, TimeUnit.MILLISECONDS)) {
+                    if (!running) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Represents a client's connection to a sharded server, under a nickname
+     * already claimed in the registry. The home shard, which registers the
+     * user first, sends the CONNECT response before any other shard knows of
+     * the user.
+     */
+    private final class ShardedRegistration extends Coordinated {
+        private final String nickname;
+
+        public ShardedRegistration(int userId, String nickname) {
+            super(userId);
+            this.nickname = nickname;
+        }
+
+        @Override
+        Broadcast apply(Shard shard) {
+            return shard.model.registerUser(userId, nickname);
+        }
+    }
+
+    /**
+     * Represents a NICK on a sharded server, whose new nickname has already
+     * been claimed in the registry. The old nickname is only freed once
+     * every shard has applied the change, so that no other user can take it
+     * while some shard still knows the user by it.
+     */
+    private final class ShardedRename extends Coordinated {
+        private final NicknameCommand command;
+
+        public ShardedRename(NicknameCommand command) {
+            super(command.getSenderId());
+            this.command = command;
+        }
+
+        @Override
+        Broadcast apply(Shard shard) {
+            return command.applyToModel(shard.model);
+        }
+
+        @Override
+        void completed() {
+            nicknames.release(userId, command.getSender());
+        }
+    }
+
+    /**
+     * Represents a client's disconnection from a sharded server. Each shard
+     * tears down the channels the user owns there, and the nickname is only
+     * freed once every shard has forgotten the user.
+     */
+    private final class ShardedDisconnection extends Coordinated {
+
+        public ShardedDisconnection(int userId) {
+            super(userId);
+        }
+
+        @Override
+        Broadcast apply(Shard shard) {
+            shard.queue.close(userId);
+            if (shard.model.getNickname(userId) == null) {
+                return null;
+            }
+            return shard.model.deregisterUser(userId);
+        }
+
+        @Override
+        void forward(Shard shard) {
+            shard.queue.submitLast(userId, this);
+        }
+
+        @Override
+        void completed() {
+            nicknames.release(userId);
+        }
+    }
+
+    /**
+     * Hands a message to the actor of a channel, making the actor if the
+     * channel has none.
+     */
+    private void tellActor(String channel, ActorTask task) {
+        while (!actors.computeIfAbsent(channel, name -> new ChannelActor(name)).offer(task)) {
+            // The actor retired after it was looked up; the next lookup
+            // makes a new one
+        }
+    }
+
+    /**
+     * Something for a channel actor to do, in ACTOR mode.
+     */
+    private interface ActorTask {
+        void run(ChannelActor actor);
+    }
+
+    /**
+     * A channel, in ACTOR mode: a mailbox, and a model holding only the
+     * channel and its members. The actor is run on the actor pool whenever
+     * its mailbox has messages, for at most the scheduler quantum of them
+     * before it makes way for other actors, so messages to one channel are
+     * applied in order and never on two threads at once.
+     *
+     * Users who are not members, such as the sender of a JOIN or the target
+     * of an INVITE, are copied into the model from the nickname registry for
+     * as long as a message needs them. After a message that may change
+     * membership, the actor reports the channel's members to the registry
+     * and drops everyone else. Once the channel is gone and the mailbox is
+     * empty, the actor retires and a later message makes a new one.
+     */
+    private final class ChannelActor implements Runnable {
+        private final String channel;
+        private final ServerModel model;
+
+        // Guarded by this
+        private final Deque<ActorTask> mailbox;
+        private boolean scheduled;
+        private boolean retired;
+
+        // The users copied in for the current message
+        private final List<Integer> guests;
+
+        public ChannelActor(String channel) {
+            this.channel = channel;
+            model = new ServerModel();
+            model.shareFanoutBudget(actorBudget);
+            mailbox = new ArrayDeque<>();
+            scheduled = false;
+            retired = false;
+            guests = new ArrayList<>();
+        }
+
+        /**
+         * Puts a message in the mailbox.
+         *
+         * @return false if the actor has retired, and the message must go to
+         *         a new one
+         */
+        boolean offer(ActorTask task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                mailbox.addLast(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                actorPool.execute(this);
+            } catch (RejectedExecutionException rx) {
+                // The server has stopped
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < config.getSchedulerQuantum(); i++) {
+                ActorTask task;
+                synchronized (this) {
+                    task = mailbox.pollFirst();
+                }
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run(this);
+                } catch (RuntimeException rx) {
+                    log.log(ServerLog.Level.ERROR, "task-failed", -1, rx);
+                }
+            }
+            synchronized (this) {
+                if (mailbox.isEmpty()) {
+                    scheduled = false;
+                    if (model.getTMap().isEmpty()) {
+                        retired = true;
+                        actors.remove(channel, this);
+                    }
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Makes sure the model knows a user, under their current nickname.
+         *
+         * @param userId The id of the user, or -1 for none
+         */
+        void admit(int userId) {
+            String nickname = userId < 0 ? null : nicknames.getNickname(userId);
+            if (nickname == null) {
+                return;
+            }
+            String known = model.getNickname(userId);
+            if (known == null) {
+                model.registerUser(userId, nickname);
+                guests.add(userId);
+            } else if (!known.equals(nickname)) {
+                // The user was renamed while this actor was not yet one of
+                // their channels
+                model.changeName(userId, nickname);
+            }
+        }
+
+        /**
+         * Drops the users who are not members, after a message. If the
+         * message may have changed membership, every user is checked and the
+         * members are reported to the registry; otherwise only the guests
+         * are.
+         *
+         * @param membership Whether membership may have changed
+         */
+        void settle(boolean membership) {
+            Collection<Integer> checked = membership
+                    ? new ArrayList<>(model.getTMap().keySet()) : guests;
+            for (int userId : checked) {
+                User user = model.getTMap().get(userId);
+                if (user == null) {
+                    continue;
+                }
+                if (user.isAMemberof(channel)) {
+                    if (membership) {
+                        nicknames.joined(userId, channel);
+                    }
+                } else {
+                    model.removeUser(userId);
+                    nicknames.left(userId, channel);
+                }
+            }
+            guests.clear();
+        }
+    }
+
+    /**
+     * A request to a channel, in ACTOR mode.
+     */
+    private final class ActorRequest implements ActorTask {
+        private final ConnectionWorker worker;
+        private final Request request;
+
+        public ActorRequest(ConnectionWorker worker, Request request) {
+            this.worker = worker;
+            this.request = request;
+        }
+
+        @Override
+        public void run(ChannelActor actor) {
+            try {
+                Command command = request.command;
+                actor.admit(request.userId);
+                if (command instanceof InviteCommand) {
+                    actor.admit(nicknames.getUserId(((InviteCommand) command).getUserToInvite()));
+                } else if (command instanceof KickCommand) {
+                    actor.admit(nicknames.getUserId(((KickCommand) command).getUserToKick()));
+                }
+                dispatchBroadcast(request.apply(actor.model), actor.model);
+                CommandType type = command.getType();
+                actor.settle(type == CommandType.CREATE || type == CommandType.JOIN
+                        || type == CommandType.INVITE || type == CommandType.KICK
+                        || type == CommandType.LEAVE);
+            } finally {
+                mailboxPermits.release();
+                worker.applied();
+            }
+        }
+    }
+
+    /**
+     * A NICK already claimed in the registry, in ACTOR mode, passed on to
+     * the actor of each of the user's channels so that the members are told.
+     * Each member is told once, however many of the channels they share.
+     */
+    private final class ActorRename implements ActorTask {
+        private final NicknameCommand command;
+        private final AtomicInteger remaining;
+        private final Set<Integer> told;
+        private final CountDownLatch applied;
+
+        public ActorRename(NicknameCommand command, int channels) {
+            this.command = command;
+            remaining = new AtomicInteger(channels);
+            told = ConcurrentHashMap.newKeySet();
+            told.add(command.getSenderId());
+            applied = new CountDownLatch(1);
+        }
+
+        @Override
+        public void run(ChannelActor actor) {
+            try {
+                rename(actor.model);
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    applied.countDown();
+                }
+            }
+        }
+
+        private void rename(ServerModel model) {
+            int userId = command.getSenderId();
+            if (!command.getSender().equals(model.getNickname(userId))) {
+                // Not a member any more, or already known by the new name
+                return;
+            }
+            // A member who gave up the nickname may not be renamed here yet
+            int holder = model.getUserId(command.getNewNickname());
+            if (holder >= 0) {
+                String current = nicknames.getNickname(holder);
+                if (current == null) {
+                    model.removeUser(holder);
+                } else {
+                    model.changeName(holder, current);
+                }
+            }
+            Map<Integer, List<String>> responses = command.applyToModel(model).getResponses(model);
+            responses.keySet().removeIf(id -> !told.add(id));
+            deliver(responses);
+        }
+
+        /**
+         * Waits for every channel to apply the rename.
+         */
+        void await() {
+            try {
+                while (!applied.await(100, TimeUnit.MILLISECONDS)) {
+                    if (!running) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A client's disconnection, in ACTOR mode. Each of the user's channels
+     * drops the user, tearing down the channel if they own it, and the
+     * nickname is only freed once every one has.
+     */
+    private final class ActorDeparture implements ActorTask {
+        private final int userId;
+        private final AtomicInteger remaining;
+        private final Set<Integer> told;
+
+        public ActorDeparture(int userId, int channels) {
+            this.userId = userId;
+            remaining = new AtomicInteger(channels);
+            told = ConcurrentHashMap.newKeySet();
+            told.add(userId);
+        }
+
+        @Override
+        public void run(ChannelActor actor) {
+            try {
+                ServerModel model = actor.model;
+                if (model.getNickname(userId) != null) {
+                    Map<Integer, List<String>> responses =
+                            model.deregisterUser(userId).getResponses(model);
+                    responses.keySet().removeIf(id -> !told.add(id));
+                    deliver(responses);
+                    actor.settle(true);
+                }
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    nicknames.release(userId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Represents a client's connection to the server.
+     */
+    private final class Registration implements Task {
+        private final int userId;
+
+        public Registration(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            Broadcast connected = model.registerUser(userId);
+            if (config.getResumeGraceSeconds() == 0) {
+                return connected;
+            }
+            byte[] random = new byte[16];
+            tokenSource.nextBytes(random);
+            StringBuilder token = new StringBuilder(32);
+            for (byte b : random) {
+                token.append(Character.forDigit((b >> 4) & 0xf, 16));
+                token.append(Character.forDigit(b & 0xf, 16));
+            }
+            model.setResumeToken(userId, token.toString());
+            return Broadcast.connected(model.getNickname(userId), token.toString());
+        }
+    }
+
+    /**
+     * Represents a client's disconnection from the server.
+     */
+    private final class Disconnection implements Task {
+        private final int userId;
+
+        public Disconnection(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            taskQueue.close(userId);
+            dropSubscriber(userId);
+            if (!running && journal != null) {
+                // The server is shutting down, not the client; keep the user
+                // in the journal so that it is restored on restart
+                return null;
+            }
+            if (running && model.parkUser(userId)) {
+                // Keep the user's channels for the client to resume; the
+                // QUIT is only sent if it does not come back in time
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        taskQueue.submit(-1, new Expiry(userId), true);
+                    }
+                }, config.getResumeGraceSeconds(), TimeUnit.SECONDS);
+                return null;
+            }
+            if (offlineQueue != null) {
+                // Notices may have been queued since the socket closed
+                offlineQueue.discard(model.getNickname(userId));
+            }
+            Collection<String> owned = ownedChannels(userId);
+            Broadcast quit = model.deregisterUser(userId);
+            retireRings(owned);
+            return quit;
+        }
+    }
+
+    /**
+     * Represents the responses that the fanout threads found no socket for,
+     * to users whose connection dropped before the model thread parked them.
+     * On the model thread, those to a user who has since resumed are handed
+     * back to the fanout threads, behind whatever the user has been sent
+     * since, and the notices to one who has not are kept in the offline
+     * queue.
+     */
+    private final class Missed implements Task {
+        private final Map<Integer, List<String>> responses;
+
+        public Missed(Map<Integer, List<String>> responses) {
+            this.responses = responses;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            Map<Integer, List<String>> resumed = null;
+            for (Map.Entry<Integer, List<String>> entry : responses.entrySet()) {
+                if (!openSockets.containsKey(entry.getKey())) {
+                    queueOffline(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                if (resumed == null) {
+                    resumed = new HashMap<>();
+                }
+                resumed.put(entry.getKey(), entry.getValue());
+            }
+            if (resumed != null) {
+                fanout.dispatch(resumed);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Represents the end of the grace period of a user restored from the
+     * journal, or parked when their connection dropped. The user is
+     * disconnected unless a client has claimed or resumed them.
+     */
+    private final class Expiry implements Task {
+        private final int userId;
+
+        public Expiry(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            if (!model.isDetached(userId)) {
+                return null;
+            }
+            if (offlineQueue != null) {
+                offlineQueue.discard(model.getNickname(userId));
+            }
+            Collection<String> owned = ownedChannels(userId);
+            Broadcast quit = model.deregisterUser(userId);
+            retireRings(owned);
+            return quit;
+        }
+    }
+
+    /**
+     * Represents a point at which to snapshot the model. The model is copied
+     * on the model thread, and the copy written out on the timer thread.
+     */
+    private final class Snapshot implements Task {
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            if (!timer.isShutdown() && snapshotInProgress.compareAndSet(false, true)) {
+                final ModelSnapshot snapshot = ModelSnapshot.capture(model, journal.position());
+                timer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeSnapshot(snapshot);
+                    }
+                });
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Represents a standby server to start streaming to, from a snapshot
+     * captured on the model thread.
+     */
+    private final class Attachment implements Task {
+        private final Socket standby;
+
+        public Attachment(Socket standby) {
+            this.standby = standby;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            replication.attach(standby, ModelSnapshot.capture(model, journal.position()));
+            return null;
+        }
+    }
+
+    /**
+     * Represents an incoming command from a connected client, already parsed
+     * and checked for stateless errors on the connection thread.
+     */
+    private final class Request implements Task {
+        private final int userId;
+        private final Command command;
+        private final ServerResponse validation;
+
+        public Request(int userId, Command command, ServerResponse validation) {
+            this.userId = userId;
+            this.command = command;
+            this.validation = validation;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            return apply(shard.model);
+        }
+
+        /**
+         * Applies the command to a model that knows the sender.
+         *
+         * @param model The model of the current shard or channel actor
+         * @return The broadcast to send, or null
+         */
+        Broadcast apply(ServerModel model) {
+            String sender = model.getNickname(userId);
+            if (sender == null) {
+                log.log(ServerLog.Level.WARN, "unknown-sender", userId, (String) null);
+                return null;
+            }
+            command.bindSender(sender);
+            if (validation != ServerResponse.OKAY) {
+                return Broadcast.error(command, validation);
+            }
+            if (rings != null && command instanceof MessageCommand) {
+                MessageCommand message = (MessageCommand) command;
+                ServerResponse response = message.admit(model);
+                if (response != ServerResponse.OKAY) {
+                    return Broadcast.error(command, response);
+                }
+                publish(message.getChannel(), message.toString());
+                return null;
+            }
+            if (rings != null && command instanceof CreateCommand
+                    && !model.doesChannelExist(command.getChannel())) {
+                // Whatever ring is left over is from a channel that is gone
+                retireRing(command.getChannel());
+            }
+            Broadcast broadcast = command.applyToModel(model);
+            if (rings != null) {
+                settleRings(userId);
+                String target = command instanceof InviteCommand
+                        ? ((InviteCommand) command).getUserToInvite()
+                        : command instanceof KickCommand
+                        ? ((KickCommand) command).getUserToKick() : null;
+                if (target != null && model.getUserId(target) >= 0) {
+                    settleRings(model.getUserId(target));
+                }
+            }
+            if (broadcast.isDeferred()) {
+                // Accepted, and answered here rather than by a broadcast
+                if (command instanceof HistoryCommand) {
+                    serveHistory(userId, (HistoryCommand) command);
+                } else if (command instanceof SearchCommand) {
+                    serveSearch(userId, (SearchCommand) command);
+                } else if (command instanceof AnnounceCommand) {
+                    announce((AnnounceCommand) command);
+                }
+            } else if (offlineQueue != null && command instanceof ResumeCommand) {
+                // A detached user's notices are delivered, after the NICK
+                // response, once their session has been resumed. Nothing is
+                // found if the token was refused and the sender kept their
+                // own nickname.
+                String nickname = model.getNickname(userId);
+                if (offlineQueue.size(nickname) > 0) {
+                    dispatchBroadcast(broadcast, model);
+                    offlineQueue.drain(nickname, notices -> deliverOffline(userId, notices));
+                    return null;
+                }
+            }
+            return broadcast;
+        }
+
+        /**
+         * Control commands run ahead of bulk chat traffic from other clients.
+         *
+         * @return true if the command changes membership or nicknames
+         */
+        public boolean isUrgent() {
+            return command.getType().isControl();
+        }
+    }
+
+    /**
+     * Represents a request that was refused on its connection thread before
+     * it could be parsed, such as an oversized line.
+     */
+    private final class Rejection implements Task {
+        private final int userId;
+        private final ServerResponse error;
+
+        public Rejection(int userId, ServerResponse error) {
+            this.userId = userId;
+            this.error = error;
+        }
+
+        @Override
+        public Broadcast getBroadcast(Shard shard) {
+            String sender = shard.model.getNickname(userId);
             if (sender == null) {
-                System.err.println("Nickname for given user ID not found");
                 return null;
             }
-            Command command = CommandParser.parse(userId, sender, payload);
-            return command.updateServerModel(model);
+            return Broadcast.error(sender, error);
         }
     }
 }
@@ -0,0 +1,1335 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Holds the tunable settings of a {@link ServerBackend}. A fresh
+ * {@code ServerConfig} holds the defaults, which match the behavior of the
+ * server before these settings existed.
+ *
+ * A {@code ServerConfig} should not be modified after it is handed to a
+ * {@link ServerBackend}.
+ *
+ * Settings can also be read from a properties file and from command-line
+ * arguments of the form {@code --key=value}; see {@link #load} for the keys.
+ */
+public final class ServerConfig {
+
+    /**
+     * How the server executes commands against its model.
+     */
+    public enum BackendMode {
+        /**
+         * A single model thread applies every command in turn.
+         */
+        SINGLE,
+
+        /**
+         * Channels are split by the hash of their name between several model
+         * threads, each with its own model, so commands to channels on
+         * different threads are applied in parallel. Every thread knows
+         * every user; nickname changes, connections and disconnections are
+         * applied on all of them. Journaling, replication, resume tokens,
+         * the message log and the offline queue are not supported.
+         */
+        SHARDED,
+
+        /**
+         * Each channel is an actor with its own mailbox and a model holding
+         * only the channel's members, run on a shared work-stealing pool.
+         * Commands to one channel are applied in the order they arrived;
+         * commands to different channels run in parallel. Nicknames live
+         * in a concurrent registry instead of a model. Besides what SHARDED
+         * mode leaves out, channel history is not supported.
+         */
+        ACTOR
+    }
+
+    /**
+     * What to do with a request that exceeds its rate limit.
+     */
+    public enum RateLimitAction {
+        /**
+         * Stop reading from the client until the request is within its
+         * limit, so that TCP flow control slows the client down.
+         */
+        DELAY,
+
+        /**
+         * Discard the request, telling the client with a
+         * {@link ServerResponse#RATE_LIMITED} error once per run of
+         * discarded requests.
+         */
+        DROP,
+
+        /**
+         * Close the client's connection.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * The port the server listens on by default.
+     */
+    public static final int DEFAULT_PORT = 21212;
+
+    /**
+     * The default length of the queue of connections waiting to be accepted.
+     */
+    public static final int DEFAULT_BACKLOG = 50;
+
+    /**
+     * The default number of tasks the model thread runs for one connection
+     * before moving on to the next connection with pending tasks.
+     */
+    public static final int DEFAULT_SCHEDULER_QUANTUM = 16;
+
+    /**
+     * The default maximum number of requests waiting for the model thread.
+     */
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 100000;
+
+    /**
+     * The default maximum number of bytes of requests waiting for the model
+     * thread.
+     */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The default length, in bytes, of the longest request line accepted.
+     */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The default number of recent messages replayed to a user joining a
+     * channel, when channel history is kept.
+     */
+    public static final int DEFAULT_HISTORY_LINES = 50;
+
+    /**
+     * The default size, in bytes, of each channel's history.
+     */
+    public static final int DEFAULT_HISTORY_BYTES_PER_CHANNEL = 64 * 1024;
+
+    /**
+     * The default size, in bytes, of each segment of the message log.
+     */
+    public static final int DEFAULT_MESSAGE_LOG_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The default time, in hours, that logged messages are kept.
+     */
+    public static final int DEFAULT_MESSAGE_LOG_RETENTION_HOURS = 7 * 24;
+
+    /**
+     * The default largest page of messages returned by HISTORY.
+     */
+    public static final int DEFAULT_HISTORY_MAX_COUNT = 100;
+
+    /**
+     * The default memory budget, in bytes, of the search index.
+     */
+    public static final long DEFAULT_SEARCH_INDEX_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The default largest number of messages returned by SEARCH.
+     */
+    public static final int DEFAULT_SEARCH_MAX_RESULTS = 20;
+
+    /**
+     * The default number of recipients from which a broadcast is written by
+     * the fanout threads rather than by the thread that made it.
+     */
+    public static final int DEFAULT_FANOUT_THRESHOLD = 1000;
+
+    /**
+     * The default time a ring reader may be blocked writing to one
+     * connection, in milliseconds.
+     */
+    public static final int DEFAULT_RING_WRITE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * The default number of notices queued for a user who is not connected.
+     */
+    public static final int DEFAULT_OFFLINE_QUEUE_MAX_NOTICES = 100;
+
+    /**
+     * The default local address of the replication port, which is only
+     * reachable from the same host.
+     */
+    public static final String DEFAULT_REPLICATION_BIND_ADDRESS = "127.0.0.1";
+
+    /**
+     * The default time, in seconds, that a disconnected user's session is
+     * kept for the client to resume.
+     */
+    public static final int DEFAULT_RESUME_GRACE_SECONDS = 0;
+
+    /**
+     * The default time, in seconds, that a disconnected user's session is
+     * kept for the client to resume, when there is a journal. Users restored
+     * from a journal can only be claimed with a resume token, which is only
+     * handed out when sessions can be resumed.
+     */
+    public static final int DEFAULT_JOURNAL_RESUME_GRACE_SECONDS = 60;
+
+    /**
+     * The default interval, in milliseconds, at which the journal is written
+     * out and synced to disk.
+     */
+    public static final int DEFAULT_JOURNAL_FLUSH_MILLIS = 5;
+
+    /**
+     * The default time, in seconds, that users restored from the journal are
+     * kept for their clients to reconnect.
+     */
+    public static final int DEFAULT_RESTORE_GRACE_SECONDS = 300;
+
+    private int port;
+    private String bindAddress;
+    private int backlog;
+    private int connectionThreads;
+    private BackendMode backendMode;
+    private int modelShards;
+    private int schedulerQuantum;
+    private ServerLog.Level logLevel;
+    private int logSampleEvery;
+    private int logMaxSampledPerSecond;
+    private int logBufferSize;
+    private int maxLineLength;
+    private int messageChunkSize;
+    private int maxQueuedTasks;
+    private int maxQueuedBytes;
+    private RateLimit userRateLimit;
+    private final Map<CommandType, RateLimit> commandRateLimits;
+    private RateLimitAction rateLimitAction;
+    private RateLimit fanoutBudget;
+    private int fanoutThreads;
+    private int fanoutThreshold;
+    private int channelRingSize;
+    private int ringWriteTimeoutMillis;
+    private String operatorKey;
+    private String journalPath;
+    private int journalFlushMillis;
+    private int restoreGraceSeconds;
+    private int resumeGraceSeconds;
+    private int snapshotIntervalSeconds;
+    private int historyLines;
+    private int historyBytesPerChannel;
+    private long historyTotalBytes;
+    private String messageLogPath;
+    private int messageLogSegmentBytes;
+    private int messageLogRetentionHours;
+    private long messageLogMaxBytesPerChannel;
+    private int historyMaxCount;
+    private long searchIndexBytes;
+    private int searchMaxResults;
+    private String offlineQueuePath;
+    private int offlineQueueMaxNotices;
+    private int replicationPort;
+    private String replicationBindAddress;
+    private String replicationKey;
+    private String replicateFrom;
+
+    /**
+     * Constructs a {@code ServerConfig} holding the default settings.
+     */
+    public ServerConfig() {
+        port = DEFAULT_PORT;
+        bindAddress = null;
+        backlog = DEFAULT_BACKLOG;
+        connectionThreads = 0;
+        backendMode = BackendMode.SINGLE;
+        modelShards = 0;
+        schedulerQuantum = DEFAULT_SCHEDULER_QUANTUM;
+        maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+        messageChunkSize = 0;
+        maxQueuedTasks = DEFAULT_MAX_QUEUED_TASKS;
+        maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+        userRateLimit = null;
+        commandRateLimits = new EnumMap<>(CommandType.class);
+        rateLimitAction = RateLimitAction.DELAY;
+        fanoutBudget = null;
+        fanoutThreads = 0;
+        fanoutThreshold = DEFAULT_FANOUT_THRESHOLD;
+        channelRingSize = 0;
+        ringWriteTimeoutMillis = DEFAULT_RING_WRITE_TIMEOUT_MILLIS;
+        operatorKey = null;
+        journalPath = null;
+        journalFlushMillis = DEFAULT_JOURNAL_FLUSH_MILLIS;
+        restoreGraceSeconds = DEFAULT_RESTORE_GRACE_SECONDS;
+        // Unset, so that the default can follow whether there is a journal
+        resumeGraceSeconds = -1;
+        snapshotIntervalSeconds = 0;
+        historyLines = DEFAULT_HISTORY_LINES;
+        historyBytesPerChannel = DEFAULT_HISTORY_BYTES_PER_CHANNEL;
+        historyTotalBytes = 0;
+        messageLogPath = null;
+        messageLogSegmentBytes = DEFAULT_MESSAGE_LOG_SEGMENT_BYTES;
+        messageLogRetentionHours = DEFAULT_MESSAGE_LOG_RETENTION_HOURS;
+        messageLogMaxBytesPerChannel = 0;
+        historyMaxCount = DEFAULT_HISTORY_MAX_COUNT;
+        searchIndexBytes = DEFAULT_SEARCH_INDEX_BYTES;
+        searchMaxResults = DEFAULT_SEARCH_MAX_RESULTS;
+        offlineQueuePath = null;
+        offlineQueueMaxNotices = DEFAULT_OFFLINE_QUEUE_MAX_NOTICES;
+        replicationPort = -1;
+        replicationBindAddress = DEFAULT_REPLICATION_BIND_ADDRESS;
+        replicationKey = null;
+        replicateFrom = null;
+        logLevel = ServerLog.Level.INFO;
+        logSampleEvery = 1;
+        logMaxSampledPerSecond = 1000;
+        logBufferSize = 8192;
+    }
+
+    /**
+     * Reads a configuration from command-line arguments. An argument
+     * {@code --config=<file>} names a properties file whose settings are read
+     * first; every other argument {@code --<key>=<value>} then sets the
+     * property of the same key.
+     *
+     * @param args The command-line arguments
+     * @return The configuration described by the arguments
+     * @throws IllegalArgumentException if an argument or setting is invalid
+     * @throws IOException if the properties file cannot be read
+     */
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        Properties fileProperties = new Properties();
+        Properties argProperties = new Properties();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --key=value: " + arg);
+            }
+            String key = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            if (key.equals("config")) {
+                try (InputStream in = new FileInputStream(value)) {
+                    fileProperties.load(in);
+                }
+            } else {
+                argProperties.setProperty(key, value);
+            }
+        }
+        ServerConfig config = new ServerConfig();
+        config.load(fileProperties);
+        config.load(argProperties);
+        return config;
+    }
+
+    /**
+     * Applies settings from properties. The keys are {@code port},
+     * {@code bind}, {@code backlog}, {@code connectionThreads}, {@code mode},
+     * {@code modelShards},
+     * {@code quantum}, {@code maxQueuedTasks}, {@code maxQueuedBytes},
+     * {@code maxLineLength}, {@code messageChunkSize}, {@code userRateLimit},
+     * {@code rateLimit.<COMMAND>}, {@code rateLimitAction},
+     * {@code fanoutBudget}, {@code fanoutThreads}, {@code fanoutThreshold},
+     * {@code channelRingSize}, {@code ringWriteTimeoutMillis}, {@code operatorKey},
+     * {@code journal}, {@code journalFlushMillis},
+     * {@code restoreGraceSeconds}, {@code resumeGraceSeconds},
+     * {@code snapshotIntervalSeconds},
+     * {@code historyLines}, {@code historyBytesPerChannel},
+     * {@code historyTotalBytes}, {@code messageLog},
+     * {@code messageLogSegmentBytes}, {@code messageLogRetentionHours},
+     * {@code messageLogMaxBytesPerChannel}, {@code historyMaxCount},
+     * {@code searchIndexBytes}, {@code searchMaxResults},
+     * {@code offlineQueue}, {@code offlineQueueMaxNotices},
+     * {@code replicationPort}, {@code replicationBind}, {@code replicationKey},
+     * {@code replicateFrom}, {@code logLevel}, {@code logSampleEvery},
+     * {@code logMaxSampledPerSecond} and {@code logBufferSize}. Rate limits
+     * are written {@code <per-second>/<burst>}. Settings that are absent keep
+     * their current value.
+     *
+     * @param properties The settings to apply
+     * @throws IllegalArgumentException if a key is unknown or a value invalid
+     */
+    public void load(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+            try {
+                apply(key, value);
+            } catch (IllegalArgumentException iax) {
+                throw new IllegalArgumentException(
+                        "Invalid setting " + key + "=" + value + ": " + iax.getMessage(), iax);
+            }
+        }
+    }
+
+    private void apply(String key, String value) {
+        if (key.startsWith("rateLimit.")) {
+            CommandType type = CommandType.valueOf(key.substring("rateLimit.".length()));
+            setCommandRateLimit(type, RateLimit.parse(value));
+            return;
+        }
+        switch (key) {
+            case "port":
+                setPort(Integer.parseInt(value));
+                break;
+            case "bind":
+                setBindAddress(value.isEmpty() ? null : value);
+                break;
+            case "backlog":
+                setBacklog(Integer.parseInt(value));
+                break;
+            case "connectionThreads":
+                setConnectionThreads(Integer.parseInt(value));
+                break;
+            case "mode":
+                setBackendMode(BackendMode.valueOf(value.toUpperCase()));
+                break;
+            case "modelShards":
+                setModelShards(Integer.parseInt(value));
+                break;
+            case "quantum":
+                setSchedulerQuantum(Integer.parseInt(value));
+                break;
+            case "maxQueuedTasks":
+                setMaxQueuedTasks(Integer.parseInt(value));
+                break;
+            case "maxQueuedBytes":
+                setMaxQueuedBytes(Integer.parseInt(value));
+                break;
+            case "maxLineLength":
+                setMaxLineLength(Integer.parseInt(value));
+                break;
+            case "messageChunkSize":
+                setMessageChunkSize(Integer.parseInt(value));
+                break;
+            case "userRateLimit":
+                setUserRateLimit(RateLimit.parse(value));
+                break;
+            case "rateLimitAction":
+                setRateLimitAction(RateLimitAction.valueOf(value.toUpperCase()));
+                break;
+            case "fanoutBudget":
+                setFanoutBudget(RateLimit.parse(value));
+                break;
+            case "fanoutThreads":
+                setFanoutThreads(Integer.parseInt(value));
+                break;
+            case "fanoutThreshold":
+                setFanoutThreshold(Integer.parseInt(value));
+                break;
+            case "channelRingSize":
+                setChannelRingSize(Integer.parseInt(value));
+                break;
+            case "ringWriteTimeoutMillis":
+                setRingWriteTimeoutMillis(Integer.parseInt(value));
+                break;
+            case "operatorKey":
+                setOperatorKey(value.isEmpty() ? null : value);
+                break;
+            case "journal":
+                setJournalPath(value.isEmpty() ? null : value);
+                break;
+            case "journalFlushMillis":
+                setJournalFlushMillis(Integer.parseInt(value));
+                break;
+            case "restoreGraceSeconds":
+                setRestoreGraceSeconds(Integer.parseInt(value));
+                break;
+            case "resumeGraceSeconds":
+                setResumeGraceSeconds(Integer.parseInt(value));
+                break;
+            case "snapshotIntervalSeconds":
+                setSnapshotIntervalSeconds(Integer.parseInt(value));
+                break;
+            case "historyLines":
+                setHistoryLines(Integer.parseInt(value));
+                break;
+            case "historyBytesPerChannel":
+                setHistoryBudget(Integer.parseInt(value), historyTotalBytes);
+                break;
+            case "historyTotalBytes":
+                setHistoryBudget(historyBytesPerChannel, Long.parseLong(value));
+                break;
+            case "messageLog":
+                setMessageLogPath(value.isEmpty() ? null : value);
+                break;
+            case "messageLogSegmentBytes":
+                setMessageLogSegmentBytes(Integer.parseInt(value));
+                break;
+            case "messageLogRetentionHours":
+                setMessageLogRetentionHours(Integer.parseInt(value));
+                break;
+            case "messageLogMaxBytesPerChannel":
+                setMessageLogMaxBytesPerChannel(Long.parseLong(value));
+                break;
+            case "historyMaxCount":
+                setHistoryMaxCount(Integer.parseInt(value));
+                break;
+            case "searchIndexBytes":
+                setSearchIndexBytes(Long.parseLong(value));
+                break;
+            case "searchMaxResults":
+                setSearchMaxResults(Integer.parseInt(value));
+                break;
+            case "offlineQueue":
+                setOfflineQueuePath(value.isEmpty() ? null : value);
+                break;
+            case "offlineQueueMaxNotices":
+                setOfflineQueueMaxNotices(Integer.parseInt(value));
+                break;
+            case "replicationPort":
+                setReplicationPort(Integer.parseInt(value));
+                break;
+            case "replicationBind":
+                setReplicationBindAddress(value.isEmpty() ? null : value);
+                break;
+            case "replicationKey":
+                setReplicationKey(value.isEmpty() ? null : value);
+                break;
+            case "replicateFrom":
+                setReplicateFrom(value.isEmpty() ? null : value);
+                break;
+            case "logLevel":
+                setLogLevel(ServerLog.Level.valueOf(value.toUpperCase()));
+                break;
+            case "logSampleEvery":
+                setLogSampling(Integer.parseInt(value), logMaxSampledPerSecond);
+                break;
+            case "logMaxSampledPerSecond":
+                setLogSampling(logSampleEvery, Integer.parseInt(value));
+                break;
+            case "logBufferSize":
+                setLogBufferSize(Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown setting");
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port the server listens on.
+     *
+     * @param port The port, or 0 to listen on any free port
+     * @throws IllegalArgumentException if the port is out of range
+     */
+    public void setPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Port out of range");
+        }
+        this.port = port;
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Sets the local address the server listens on.
+     *
+     * @param bindAddress A host name or address, or null for all addresses
+     */
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the length of the queue of connections waiting to be accepted.
+     *
+     * @param backlog The queue length
+     * @throws IllegalArgumentException if the length is not positive
+     */
+    public void setBacklog(int backlog) {
+        if (backlog <= 0) {
+            throw new IllegalArgumentException("Backlog must be positive");
+        }
+        this.backlog = backlog;
+    }
+
+    public int getConnectionThreads() {
+        return connectionThreads;
+    }
+
+    /**
+     * Sets the number of threads reading from client connections. Each open
+     * connection occupies one thread, so at most this many clients are
+     * served at once; the rest wait for a thread to become free.
+     *
+     * @param connectionThreads The number of threads, or 0 for one thread per
+     *                          connection
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setConnectionThreads(int connectionThreads) {
+        if (connectionThreads < 0) {
+            throw new IllegalArgumentException("Thread count must not be negative");
+        }
+        this.connectionThreads = connectionThreads;
+    }
+
+    public BackendMode getBackendMode() {
+        return backendMode;
+    }
+
+    /**
+     * Sets how the server executes commands against its model.
+     *
+     * @param backendMode The backend mode
+     */
+    public void setBackendMode(BackendMode backendMode) {
+        if (backendMode == null) {
+            throw new NullPointerException();
+        }
+        this.backendMode = backendMode;
+    }
+
+    public int getModelShards() {
+        return modelShards;
+    }
+
+    /**
+     * Sets the number of model threads in {@link BackendMode#SHARDED} mode.
+     * The fanout budget and the history byte budget are divided evenly
+     * between them. In {@link BackendMode#ACTOR} mode, this is the number
+     * of threads the channel actors run on.
+     *
+     * @param modelShards The number of threads, or 0 for one per processor
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setModelShards(int modelShards) {
+        if (modelShards < 0) {
+            throw new IllegalArgumentException("Shard count must not be negative");
+        }
+        this.modelShards = modelShards;
+    }
+
+    /**
+     * Gets the number of tasks the model thread runs for one connection per
+     * turn of the round-robin schedule.
+     *
+     * @return The per-turn quantum, in tasks
+     */
+    public int getSchedulerQuantum() {
+        return schedulerQuantum;
+    }
+
+    /**
+     * Sets the number of tasks the model thread runs for one connection per
+     * turn of the round-robin schedule. Smaller values keep latency low for
+     * interactive clients while another client is flooding; larger values
+     * reduce scheduling overhead.
+     *
+     * @param schedulerQuantum The per-turn quantum, in tasks
+     * @throws IllegalArgumentException if the quantum is not positive
+     */
+    public void setSchedulerQuantum(int schedulerQuantum) {
+        if (schedulerQuantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.schedulerQuantum = schedulerQuantum;
+    }
+
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Sets the length of the longest request line accepted. Longer lines are
+     * discarded as they are read, without ever being held in full, and the
+     * client gets a {@link ServerResponse#LINE_TOO_LONG} error.
+     *
+     * @param maxLineLength The longest line, in bytes
+     * @throws IllegalArgumentException if the length is not positive
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("Line length must be positive");
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    public int getMessageChunkSize() {
+        return messageChunkSize;
+    }
+
+    /**
+     * Turns on the chunked-message extension, under which messages longer
+     * than the chunk size are delivered as several lines, each holding the
+     * next piece of the message: a {@code MESG+} line for every piece but the
+     * last, and a {@code MESG} line for the last.
+     *
+     * @param messageChunkSize The largest piece of a message, in characters,
+     *                         or 0 to deliver every message as one line
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public void setMessageChunkSize(int messageChunkSize) {
+        if (messageChunkSize < 0) {
+            throw new IllegalArgumentException("Chunk size must not be negative");
+        }
+        this.messageChunkSize = messageChunkSize;
+    }
+
+    public int getMaxQueuedTasks() {
+        return maxQueuedTasks;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting for the model thread. When
+     * this many are waiting, the server stops reading from clients until the
+     * model thread catches up. Connections and disconnections are not
+     * counted, and are never held back.
+     *
+     * @param maxQueuedTasks The bound, in requests
+     * @throws IllegalArgumentException if the bound is not positive
+     */
+    public void setMaxQueuedTasks(int maxQueuedTasks) {
+        if (maxQueuedTasks <= 0) {
+            throw new IllegalArgumentException("Bound must be positive");
+        }
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes of requests waiting for the model
+     * thread, which works like {@link #setMaxQueuedTasks}.
+     *
+     * @param maxQueuedBytes The bound, in bytes
+     * @throws IllegalArgumentException if the bound is not positive
+     */
+    public void setMaxQueuedBytes(int maxQueuedBytes) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Bound must be positive");
+        }
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Gets the limit on all requests from a single user.
+     *
+     * @return The per-user limit, or null if there is none
+     */
+    public RateLimit getUserRateLimit() {
+        return userRateLimit;
+    }
+
+    /**
+     * Sets the limit on all requests from a single user, whatever their type.
+     *
+     * @param limit The per-user limit, or null to remove it
+     */
+    public void setUserRateLimit(RateLimit limit) {
+        userRateLimit = limit;
+    }
+
+    /**
+     * Gets the limit on requests of one type from a single user.
+     *
+     * @param type The command type
+     * @return The limit for the type, or null if there is none
+     */
+    public RateLimit getCommandRateLimit(CommandType type) {
+        return commandRateLimits.get(type);
+    }
+
+    /**
+     * Sets the limit on requests of one type from a single user. This applies
+     * on top of the per-user limit.
+     *
+     * @param type The command type
+     * @param limit The limit for the type, or null to remove it
+     */
+    public void setCommandRateLimit(CommandType type, RateLimit limit) {
+        if (limit == null) {
+            commandRateLimits.remove(type);
+        } else {
+            commandRateLimits.put(type, limit);
+        }
+    }
+
+    public RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    /**
+     * Sets what happens to a request that exceeds its rate limit.
+     *
+     * @param action The action to take
+     */
+    public void setRateLimitAction(RateLimitAction action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        rateLimitAction = action;
+    }
+
+    /**
+     * Gets the server-wide limit on message deliveries.
+     *
+     * @return The limit in deliveries per second, or null if there is none
+     */
+    public RateLimit getFanoutBudget() {
+        return fanoutBudget;
+    }
+
+    /**
+     * Sets the server-wide limit on message deliveries, where a message to a
+     * channel of {@code n} members counts as {@code n} deliveries. When the
+     * budget runs low, messages to the largest channels are refused first.
+     *
+     * @param budget The limit in deliveries per second, or null to remove it
+     */
+    public void setFanoutBudget(RateLimit budget) {
+        fanoutBudget = budget;
+    }
+
+    public int getFanoutThreads() {
+        return fanoutThreads;
+    }
+
+    /**
+     * Sets the number of threads that write large broadcasts. Each recipient
+     * is always written to by the same thread, so a recipient receives
+     * broadcasts in the order they were made.
+     *
+     * @param fanoutThreads The number of threads, or 0 to write every
+     *                      broadcast on the thread that made it
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setFanoutThreads(int fanoutThreads) {
+        if (fanoutThreads < 0) {
+            throw new IllegalArgumentException("Thread count must not be negative");
+        }
+        this.fanoutThreads = fanoutThreads;
+    }
+
+    public int getFanoutThreshold() {
+        return fanoutThreshold;
+    }
+
+    /**
+     * Sets how many recipients a broadcast needs before it is handed to the
+     * fanout threads. Smaller broadcasts are written straight away.
+     *
+     * @param fanoutThreshold The number of recipients
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public void setFanoutThreshold(int fanoutThreshold) {
+        if (fanoutThreshold <= 0) {
+            throw new IllegalArgumentException("Fanout threshold must be positive");
+        }
+        this.fanoutThreshold = fanoutThreshold;
+    }
+
+    public int getChannelRingSize() {
+        return channelRingSize;
+    }
+
+    /**
+     * Sets the size of the ring each channel's messages are published to.
+     * With rings, a MESG is published once to its channel, and each
+     * member's messages are read from the rings of their channels on a few
+     * reader threads, so that a message costs the model thread the same
+     * whatever the size of the channel. A connection that falls more than a
+     * ring behind a channel is disconnected as a slow consumer. Rings are
+     * only supported in SINGLE mode.
+     *
+     * @param channelRingSize The number of messages each ring holds, or 0 to
+     *                        send each message to each member directly
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public void setChannelRingSize(int channelRingSize) {
+        if (channelRingSize < 0) {
+            throw new IllegalArgumentException("Ring size must not be negative");
+        }
+        this.channelRingSize = channelRingSize;
+    }
+
+    public int getRingWriteTimeoutMillis() {
+        return ringWriteTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a ring reader may be blocked writing to one connection
+     * before the connection is disconnected as a slow consumer. The other
+     * connections on the same reader wait for that long at most, rather than
+     * fall behind until they are lapped themselves.
+     *
+     * @param ringWriteTimeoutMillis The timeout, in milliseconds
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public void setRingWriteTimeoutMillis(int ringWriteTimeoutMillis) {
+        if (ringWriteTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Ring write timeout must be positive");
+        }
+        this.ringWriteTimeoutMillis = ringWriteTimeoutMillis;
+    }
+
+    public String getOperatorKey() {
+        return operatorKey;
+    }
+
+    /**
+     * Sets the key that operators give to send an ANNOUNCE to every
+     * connected user.
+     *
+     * @param operatorKey The key, or null if no one may announce
+     * @throws IllegalArgumentException if the key is empty or contains a
+     *                                  space
+     */
+    public void setOperatorKey(String operatorKey) {
+        if (operatorKey != null && (operatorKey.isEmpty() || operatorKey.indexOf(' ') >= 0)) {
+            throw new IllegalArgumentException("Invalid operator key");
+        }
+        this.operatorKey = operatorKey;
+    }
+
+    public String getJournalPath() {
+        return journalPath;
+    }
+
+    /**
+     * Sets the file in which every change to the server's state is journaled.
+     * On startup, the state recorded in the file is restored, and clients that
+     * reconnect get their channels back by resuming with their resume token,
+     * which is only handed out if the resume grace period is not 0. With a
+     * journal, that period defaults to
+     * {@link #DEFAULT_JOURNAL_RESUME_GRACE_SECONDS}, and the server will not
+     * start if it is set to 0.
+     *
+     * @param journalPath The journal file, or null to keep no journal
+     */
+    public void setJournalPath(String journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    public int getJournalFlushMillis() {
+        return journalFlushMillis;
+    }
+
+    /**
+     * Sets how often the journal is written out and synced to disk. Changes
+     * made in the last interval before a crash may be lost.
+     *
+     * @param journalFlushMillis The interval, in milliseconds
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public void setJournalFlushMillis(int journalFlushMillis) {
+        if (journalFlushMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        this.journalFlushMillis = journalFlushMillis;
+    }
+
+    public int getRestoreGraceSeconds() {
+        return restoreGraceSeconds;
+    }
+
+    /**
+     * Sets how long users restored from the journal are kept for their
+     * clients to reconnect. Users not claimed by then are disconnected.
+     *
+     * @param restoreGraceSeconds The grace period, in seconds
+     * @throws IllegalArgumentException if the period is negative
+     */
+    public void setRestoreGraceSeconds(int restoreGraceSeconds) {
+        if (restoreGraceSeconds < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative");
+        }
+        this.restoreGraceSeconds = restoreGraceSeconds;
+    }
+
+    public int getResumeGraceSeconds() {
+        if (resumeGraceSeconds < 0) {
+            return journalPath == null ? DEFAULT_RESUME_GRACE_SECONDS
+                    : DEFAULT_JOURNAL_RESUME_GRACE_SECONDS;
+        }
+        return resumeGraceSeconds;
+    }
+
+    /**
+     * Sets how long the nickname, memberships and ownerships of a user whose
+     * connection drops are kept, for a new connection to take back with the
+     * resume token the user was given on connecting. The user's QUIT is
+     * only sent once this time is up.
+     *
+     * @param resumeGraceSeconds The grace period, in seconds, or 0 to issue
+     *                           no tokens and remove users as soon as they
+     *                           disconnect
+     * @throws IllegalArgumentException if the grace period is negative
+     */
+    public void setResumeGraceSeconds(int resumeGraceSeconds) {
+        if (resumeGraceSeconds < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative");
+        }
+        this.resumeGraceSeconds = resumeGraceSeconds;
+    }
+
+    public int getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    /**
+     * Sets how often a snapshot of the server's state is written next to the
+     * journal, in a file named after it with {@code .snapshot} appended. Each
+     * snapshot lets the journal records it holds be dropped, so that the
+     * journal stays short and startup stays fast. Snapshots need a journal.
+     *
+     * @param snapshotIntervalSeconds The interval, in seconds, or 0 to take
+     *                                no snapshots
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    public void setSnapshotIntervalSeconds(int snapshotIntervalSeconds) {
+        if (snapshotIntervalSeconds < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+
+    public int getHistoryLines() {
+        return historyLines;
+    }
+
+    /**
+     * Sets how many recent messages are replayed to a user joining a channel,
+     * unless the channel's owner has chosen another number with BACKLOG.
+     *
+     * @param historyLines The number of messages
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public void setHistoryLines(int historyLines) {
+        if (historyLines < 0) {
+            throw new IllegalArgumentException("Line count must not be negative");
+        }
+        this.historyLines = historyLines;
+    }
+
+    public int getHistoryBytesPerChannel() {
+        return historyBytesPerChannel;
+    }
+
+    public long getHistoryTotalBytes() {
+        return historyTotalBytes;
+    }
+
+    /**
+     * Sets the memory given to channel history. Each channel with history
+     * holds {@code bytesPerChannel} bytes of recent messages, and when
+     * {@code totalBytes} are in use, the channels that least recently had a
+     * message lose their history first. A total smaller than one channel's
+     * size still allows one channel.
+     *
+     * @param bytesPerChannel The size of each channel's history, in bytes
+     * @param totalBytes The size of all history, in bytes, or 0 to keep none
+     * @throws IllegalArgumentException if the sizes are out of range
+     */
+    public void setHistoryBudget(int bytesPerChannel, long totalBytes) {
+        if (bytesPerChannel <= 4 || totalBytes < 0) {
+            throw new IllegalArgumentException("Invalid history budget");
+        }
+        historyBytesPerChannel = bytesPerChannel;
+        historyTotalBytes = totalBytes;
+    }
+
+    public String getMessageLogPath() {
+        return messageLogPath;
+    }
+
+    /**
+     * Sets the directory in which every channel's messages are logged, so
+     * that members can page through them with HISTORY.
+     *
+     * @param messageLogPath The directory, or null to keep no message log
+     */
+    public void setMessageLogPath(String messageLogPath) {
+        this.messageLogPath = messageLogPath;
+    }
+
+    public int getMessageLogSegmentBytes() {
+        return messageLogSegmentBytes;
+    }
+
+    /**
+     * Sets the size of each file of a channel's message log. Messages are
+     * deleted a whole segment at a time.
+     *
+     * @param messageLogSegmentBytes The segment size, in bytes
+     * @throws IllegalArgumentException if the size is under 64 KiB
+     */
+    public void setMessageLogSegmentBytes(int messageLogSegmentBytes) {
+        if (messageLogSegmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 64 KiB");
+        }
+        this.messageLogSegmentBytes = messageLogSegmentBytes;
+    }
+
+    public int getMessageLogRetentionHours() {
+        return messageLogRetentionHours;
+    }
+
+    /**
+     * Sets how long logged messages are kept.
+     *
+     * @param messageLogRetentionHours The retention time, in hours, or 0 to
+     *                                 keep messages however old they are
+     * @throws IllegalArgumentException if the time is negative
+     */
+    public void setMessageLogRetentionHours(int messageLogRetentionHours) {
+        if (messageLogRetentionHours < 0) {
+            throw new IllegalArgumentException("Retention must not be negative");
+        }
+        this.messageLogRetentionHours = messageLogRetentionHours;
+    }
+
+    public long getMessageLogMaxBytesPerChannel() {
+        return messageLogMaxBytesPerChannel;
+    }
+
+    /**
+     * Sets how much of each channel's message log is kept. The oldest
+     * segments are deleted first.
+     *
+     * @param messageLogMaxBytesPerChannel The limit, in bytes, or 0 for none
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public void setMessageLogMaxBytesPerChannel(long messageLogMaxBytesPerChannel) {
+        if (messageLogMaxBytesPerChannel < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        this.messageLogMaxBytesPerChannel = messageLogMaxBytesPerChannel;
+    }
+
+    public int getHistoryMaxCount() {
+        return historyMaxCount;
+    }
+
+    /**
+     * Sets the most messages a single HISTORY request returns.
+     *
+     * @param historyMaxCount The page size limit
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public void setHistoryMaxCount(int historyMaxCount) {
+        if (historyMaxCount <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.historyMaxCount = historyMaxCount;
+    }
+
+    public long getSearchIndexBytes() {
+        return searchIndexBytes;
+    }
+
+    /**
+     * Sets how much memory the index of logged messages may use. The index
+     * is only kept when there is a message log.
+     *
+     * @param searchIndexBytes The budget, in bytes, or 0 to turn SEARCH off
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public void setSearchIndexBytes(long searchIndexBytes) {
+        if (searchIndexBytes < 0) {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        this.searchIndexBytes = searchIndexBytes;
+    }
+
+    public int getSearchMaxResults() {
+        return searchMaxResults;
+    }
+
+    /**
+     * Sets the most messages a single SEARCH request returns.
+     *
+     * @param searchMaxResults The result limit
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public void setSearchMaxResults(int searchMaxResults) {
+        if (searchMaxResults <= 0) {
+            throw new IllegalArgumentException("Result limit must be positive");
+        }
+        this.searchMaxResults = searchMaxResults;
+    }
+
+    public String getOfflineQueuePath() {
+        return offlineQueuePath;
+    }
+
+    /**
+     * Sets the directory in which INVITE and KICK notices are kept for
+     * restored users until they resume their session.
+     *
+     * @param offlineQueuePath The directory, or null to drop such notices
+     */
+    public void setOfflineQueuePath(String offlineQueuePath) {
+        this.offlineQueuePath = offlineQueuePath;
+    }
+
+    public int getOfflineQueueMaxNotices() {
+        return offlineQueueMaxNotices;
+    }
+
+    /**
+     * Sets the most notices kept for one user who is not connected.
+     *
+     * @param offlineQueueMaxNotices The queue size
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public void setOfflineQueueMaxNotices(int offlineQueueMaxNotices) {
+        if (offlineQueueMaxNotices <= 0) {
+            throw new IllegalArgumentException("Queue size must be positive");
+        }
+        this.offlineQueueMaxNotices = offlineQueueMaxNotices;
+    }
+
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * Sets the port on which standby servers are sent the journal as it is
+     * written. Replication needs a journal.
+     *
+     * @param replicationPort The port, 0 for any free port, or -1 to turn
+     *                        replication off
+     * @throws IllegalArgumentException if the port is out of range
+     */
+    public void setReplicationPort(int replicationPort) {
+        if (replicationPort < -1 || replicationPort > 65535) {
+            throw new IllegalArgumentException("Port out of range");
+        }
+        this.replicationPort = replicationPort;
+    }
+
+    public String getReplicationBindAddress() {
+        return replicationBindAddress;
+    }
+
+    /**
+     * Sets the local address the replication port listens on. Anyone who can
+     * reach the port and knows the replication key is sent every nickname,
+     * channel and journal record, so an address other than loopback needs a
+     * key; see {@link #setReplicationKey}.
+     *
+     * @param replicationBindAddress A host name or address, or null for all
+     *                               addresses
+     */
+    public void setReplicationBindAddress(String replicationBindAddress) {
+        this.replicationBindAddress = replicationBindAddress;
+    }
+
+    public String getReplicationKey() {
+        return replicationKey;
+    }
+
+    /**
+     * Sets the key shared by a primary and its standbys. A primary only
+     * attaches a standby that sends its key, and a standby sends its own.
+     * A primary whose replication port listens beyond loopback will not
+     * start without one.
+     *
+     * @param replicationKey The key, or null for none
+     * @throws IllegalArgumentException if the key is empty
+     */
+    public void setReplicationKey(String replicationKey) {
+        if (replicationKey != null && replicationKey.isEmpty()) {
+            throw new IllegalArgumentException("Invalid replication key");
+        }
+        this.replicationKey = replicationKey;
+    }
+
+    public String getReplicateFrom() {
+        return replicateFrom;
+    }
+
+    /**
+     * Sets the primary server that this server stands by for. A standby
+     * follows the primary's replication port, and only starts listening on
+     * its own port once the primary is gone.
+     *
+     * @param replicateFrom The primary's {@code host:port}, or null to serve
+     *                      straight away
+     * @throws IllegalArgumentException if the address has no valid port
+     */
+    public void setReplicateFrom(String replicateFrom) {
+        if (replicateFrom != null) {
+            int colon = replicateFrom.lastIndexOf(':');
+            int port;
+            try {
+                port = colon <= 0 ? -1 : Integer.parseInt(replicateFrom.substring(colon + 1));
+            } catch (NumberFormatException nfx) {
+                port = -1;
+            }
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("Expected host:port");
+            }
+        }
+        this.replicateFrom = replicateFrom;
+    }
+
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Sets the lowest level of log record that is written.
+     *
+     * @param logLevel The lowest level logged
+     */
+    public void setLogLevel(ServerLog.Level logLevel) {
+        if (logLevel == null) {
+            throw new NullPointerException();
+        }
+        this.logLevel = logLevel;
+    }
+
+    public int getLogSampleEvery() {
+        return logSampleEvery;
+    }
+
+    public int getLogMaxSampledPerSecond() {
+        return logMaxSampledPerSecond;
+    }
+
+    /**
+     * Sets how per-message events, such as each request and each response,
+     * are logged. One in every {@code sampleEvery} such events is kept, up to
+     * {@code maxPerSecond} per second.
+     *
+     * @param sampleEvery Keep one in every this many per-message events
+     * @param maxPerSecond The most per-message events kept per second
+     * @throws IllegalArgumentException if either value is out of range
+     */
+    public void setLogSampling(int sampleEvery, int maxPerSecond) {
+        if (sampleEvery <= 0 || maxPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid sampling");
+        }
+        logSampleEvery = sampleEvery;
+        logMaxSampledPerSecond = maxPerSecond;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    /**
+     * Sets the number of records the log holds before they are written out.
+     * Records logged while the buffer is full are dropped and counted.
+     *
+     * @param logBufferSize The buffer size, in records
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public void setLogBufferSize(int logBufferSize) {
+        if (logBufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.logBufferSize = logBufferSize;
+    }
+}
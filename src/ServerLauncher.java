@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link ServerBackend} without any user interface, for running in
+ * production or in containers, and for embedding the server in another
+ * program, such as an in-process benchmark. Unlike {@link ServerMain}, this
+ * does not start AWT.
+ *
+ * From the command line, settings are given as described in
+ * {@link ServerConfig#fromArgs}, for example:
+ *
+ * <pre>
+ *     java ServerLauncher --config=server.properties --port=6667
+ * </pre>
+ *
+ * The server runs until the process is stopped. When
+ * {@link ServerConfig#getReplicateFrom() replicateFrom} is set, it first
+ * runs as a {@link StandbyServer} and only starts serving once the primary
+ * is gone.
+ */
+public final class ServerLauncher {
+
+    private final ServerConfig config;
+    private final ServerModel model;
+    private ServerBackend backend;
+    private int port;
+
+    /**
+     * Constructs a {@code ServerLauncher} for a server with an empty model.
+     *
+     * @param config The settings of the server
+     */
+    public ServerLauncher(ServerConfig config) {
+        this(config, new ServerModel());
+    }
+
+    /**
+     * Constructs a {@code ServerLauncher} for a server with the given model.
+     * The model must not be touched by the caller once the server starts.
+     *
+     * @param config The settings of the server
+     * @param model The initial state of the server
+     */
+    public ServerLauncher(ServerConfig config, ServerModel model) {
+        if (config == null || model == null) {
+            throw new NullPointerException();
+        }
+        this.config = config;
+        this.model = model;
+        backend = null;
+        port = -1;
+    }
+
+    /**
+     * Starts the server, returning once it is accepting connections.
+     *
+     * @return The port the server is listening on
+     * @throws IOException if the server could not start listening
+     * @throws InterruptedException if interrupted while waiting for the
+     *      server to start
+     * @throws IllegalStateException if the server was already started
+     */
+    public synchronized int start() throws IOException, InterruptedException {
+        if (backend != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        backend = new ServerBackend(model, config);
+        new Thread(backend, "Connection acceptor").start();
+        port = backend.awaitListening();
+        if (port < 0) {
+            throw new IOException("Could not listen on port " + config.getPort());
+        }
+        return port;
+    }
+
+    /**
+     * Asks the server to stop. Use {@link #awaitTermination} to wait for it.
+     */
+    public synchronized void stop() {
+        if (backend != null) {
+            backend.stop();
+        }
+    }
+
+    /**
+     * Waits for a started server to stop.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if the server stopped, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the server was never started
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        ServerBackend started;
+        synchronized (this) {
+            started = backend;
+        }
+        if (started == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        return started.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Gets the port the server is listening on, which is useful when the
+     * configured port is 0.
+     *
+     * @return The port, or -1 if the server has not started
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the port standby servers connect to for the replication stream.
+     *
+     * @return The port, or -1 if the server has not started or does not
+     *         replicate
+     */
+    public synchronized int getReplicationPort() {
+        return backend == null ? -1 : backend.getReplicationPort();
+    }
+
+    /**
+     * Runs a headless server with settings from the command line.
+     */
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IOException | IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            System.err.println("Usage: java ServerLauncher [--config=<file>] [--<key>=<value>]...");
+            System.exit(2);
+            return;
+        }
+
+        if (config.getReplicateFrom() != null) {
+            runStandby(config);
+            return;
+        }
+
+        final ServerLauncher launcher = new ServerLauncher(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                launcher.stop();
+                try {
+                    launcher.awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Shutdown"));
+
+        try {
+            launcher.start();
+            launcher.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (IOException iox) {
+            System.err.println(iox.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runStandby(ServerConfig config) {
+        final StandbyServer standby = new StandbyServer(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                standby.stop();
+                try {
+                    standby.awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Shutdown"));
+
+        standby.start();
+        try {
+            if (standby.awaitPromotion(Long.MAX_VALUE, TimeUnit.DAYS) >= 0) {
+                standby.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
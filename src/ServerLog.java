@@ -0,0 +1,311 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server's log. Callers only fill in a record and drop it into a bounded
+ * ring buffer; a background appender thread formats records and writes them
+ * out in batches. Nothing is formatted or written on the calling thread, and
+ * if the appender falls behind, records are dropped and counted rather than
+ * slowing the caller down.
+ *
+ * Per-message events, such as each request received and each response sent,
+ * are logged through {@link #sample}, which keeps only one in every
+ * {@code sampleEvery} of them, and at most {@code maxSampledPerSecond} per
+ * second. Other events are always logged if their level is enabled.
+ *
+ * Records are written one per line as space-separated {@code key=value}
+ * fields, so that they can be filtered and aggregated by tools. Free-text
+ * values, which may hold whatever a client sent, are quoted, with quotes,
+ * backslashes and control characters escaped, so that they cannot break a
+ * record across lines or forge fields of their own.
+ */
+final class ServerLog {
+
+    /**
+     * The severity of a log record.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    // The number of records the appender writes out in one batch
+    private static final int BATCH_SIZE = 256;
+
+    private final Level level;
+    private final int sampleEvery;
+    private final int maxSampledPerSecond;
+    private final BlockingQueue<Record> ring;
+    private final PrintStream out;
+    private final Thread appender;
+    private volatile boolean open;
+
+    private final AtomicLong sampleCounter;
+    private final AtomicLong sampleWindow;
+    private final AtomicLong sampledInWindow;
+    private final AtomicLong dropped;
+
+    /**
+     * Constructs a {@code ServerLog} and starts its appender thread.
+     *
+     * @param level The lowest level that is logged
+     * @param sampleEvery Keep one in every this many per-message events
+     * @param maxSampledPerSecond The most per-message events kept per second
+     * @param capacity The number of records the ring buffer holds
+     * @param out Where records are written
+     */
+    public ServerLog(Level level, int sampleEvery, int maxSampledPerSecond,
+            int capacity, PrintStream out) {
+        if (sampleEvery <= 0 || maxSampledPerSecond < 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid log settings");
+        }
+        this.level = level;
+        this.sampleEvery = sampleEvery;
+        this.maxSampledPerSecond = maxSampledPerSecond;
+        this.out = out;
+        ring = new ArrayBlockingQueue<>(capacity);
+        sampleCounter = new AtomicLong();
+        sampleWindow = new AtomicLong();
+        sampledInWindow = new AtomicLong();
+        dropped = new AtomicLong();
+        open = true;
+        appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Log appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    /**
+     * Constructs a {@code ServerLog} with the log settings of a configuration,
+     * writing to standard output.
+     *
+     * @param config The configuration to take the settings from
+     * @return A new, started {@code ServerLog}
+     */
+    public static ServerLog fromConfig(ServerConfig config) {
+        return new ServerLog(config.getLogLevel(), config.getLogSampleEvery(),
+                config.getLogMaxSampledPerSecond(), config.getLogBufferSize(),
+                System.out);
+    }
+
+    /**
+     * Checks whether records of the given level are logged.
+     *
+     * @param recordLevel The level to check
+     * @return true if such records are logged
+     */
+    public boolean isEnabled(Level recordLevel) {
+        return recordLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs an event.
+     *
+     * @param recordLevel The severity of the event
+     * @param event A short name for the kind of event
+     * @param userId The user the event concerns, or -1 for none
+     * @param text A free-form description, or null
+     */
+    public void log(Level recordLevel, String event, int userId, String text) {
+        if (isEnabled(recordLevel)) {
+            append(new Record(recordLevel, event, userId, null, -1, text, null));
+        }
+    }
+
+    /**
+     * Logs an event caused by an exception. The stack trace is formatted on
+     * the appender thread.
+     *
+     * @param recordLevel The severity of the event
+     * @param event A short name for the kind of event
+     * @param userId The user the event concerns, or -1 for none
+     * @param thrown The exception
+     */
+    public void log(Level recordLevel, String event, int userId, Throwable thrown) {
+        if (isEnabled(recordLevel)) {
+            append(new Record(recordLevel, event, userId, null, -1, null, thrown));
+        }
+    }
+
+    /**
+     * Logs a per-message event, subject to sampling and rate limiting. An
+     * event that is not kept costs an atomic increment.
+     *
+     * @param recordLevel The severity of the event
+     * @param event A short name for the kind of event
+     * @param userId The user the event concerns
+     * @param type The type of command concerned, or null
+     * @param bytes The size of the message
+     * @param text The message, or null
+     */
+    public void sample(Level recordLevel, String event, int userId,
+            CommandType type, int bytes, String text) {
+        if (!isEnabled(recordLevel)
+                || sampleCounter.getAndIncrement() % sampleEvery != 0
+                || !withinRate()) {
+            return;
+        }
+        append(new Record(recordLevel, event, userId, type, bytes, text, null));
+    }
+
+    /**
+     * Gets the number of records dropped because the ring buffer was full.
+     *
+     * @return The number of dropped records
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the appender thread once it has written out every record already
+     * logged. Records logged afterwards are ignored.
+     */
+    public void close() {
+        open = false;
+        appender.interrupt();
+        try {
+            appender.join(1000);
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean withinRate() {
+        long second = System.nanoTime() / 1000000000L;
+        long window = sampleWindow.get();
+        if (window != second && sampleWindow.compareAndSet(window, second)) {
+            sampledInWindow.set(0);
+        }
+        return sampledInWindow.incrementAndGet() <= maxSampledPerSecond;
+    }
+
+    private void append(Record record) {
+        if (!open || !ring.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs on the appender thread, writing out records in batches until the
+     * log is closed and the ring buffer is empty.
+     */
+    private void drain() {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder text = new StringBuilder();
+        long reportedDrops = 0;
+        while (open || !ring.isEmpty()) {
+            try {
+                Record first = ring.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException ix) {
+                // Woken by close; write out whatever is left
+            }
+            ring.drainTo(batch, BATCH_SIZE - batch.size());
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                text.append(System.currentTimeMillis()).append(" WARN log-overflow dropped=")
+                    .append(drops - reportedDrops).append('\n');
+                reportedDrops = drops;
+            }
+            for (Record record : batch) {
+                record.format(text);
+            }
+            out.print(text);
+            out.flush();
+            text.setLength(0);
+            batch.clear();
+        }
+    }
+
+    /**
+     * One logged event, as structured fields.
+     */
+    private static final class Record {
+        private final long time;
+        private final Level level;
+        private final String event;
+        private final int userId;
+        private final CommandType type;
+        private final int bytes;
+        private final String text;
+        private final Throwable thrown;
+
+        private Record(Level level, String event, int userId, CommandType type,
+                int bytes, String text, Throwable thrown) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.event = event;
+            this.userId = userId;
+            this.type = type;
+            this.bytes = bytes;
+            this.text = text;
+            this.thrown = thrown;
+        }
+
+        private void format(StringBuilder sb) {
+            sb.append(time).append(' ').append(level).append(' ').append(event);
+            if (userId >= 0) {
+                sb.append(" user=").append(userId);
+            }
+            if (type != null) {
+                sb.append(" type=").append(type);
+            }
+            if (bytes >= 0) {
+                sb.append(" bytes=").append(bytes);
+            }
+            if (text != null) {
+                sb.append(" text=");
+                quote(sb, text);
+            }
+            if (thrown != null) {
+                sb.append(" error=");
+                quote(sb, thrown.toString());
+                for (StackTraceElement frame : thrown.getStackTrace()) {
+                    sb.append("\n\tat ").append(frame);
+                }
+            }
+            sb.append('\n');
+        }
+
+        private static void quote(StringBuilder sb, String value) {
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        sb.append('\\').append(c);
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (Character.isISOControl(c)) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
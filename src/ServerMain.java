@@ -2,6 +2,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 
 public final class ServerMain {
 
@@ -9,11 +10,21 @@ public final class ServerMain {
      * Initializes and starts a {@link ServerBackend}, a {@link ServerModel},
      * and a very basic UI to indicate that the server is running. When that
      * UI is closed, using the standard operating system "X" control, the
-     * server is shut down.
+     * server is shut down. Settings may be given as command-line arguments,
+     * as described in {@link ServerConfig#fromArgs}; to run the server
+     * without a UI, see {@link ServerLauncher}.
      *
      * You do not need to modify this file.
      */
     public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IOException | IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            return;
+        }
+
         final JFrame frame = new JFrame("PennPals Server");
         JLabel message = new JLabel(
                 "<html>Hello, my name is Bob.<br />" +
@@ -25,7 +36,7 @@ public final class ServerMain {
         frame.setSize(new Dimension(250, 100));
 
         final ServerModel state = new ServerModel();
-        final ServerBackend server = new ServerBackend(state);
+        final ServerBackend server = new ServerBackend(state, config);
         final Timer timer = new Timer(100, null);
 
         timer.addActionListener(new ActionListener() {
@@ -1,3 +1,6 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 
@@ -13,6 +16,27 @@ import java.util.*;
 public final class ServerModel implements ServerModelApi {
     //User ID is the key and the associated  User is the value
     private Map <Integer , User> tmap;
+    //Nicknames, channels and members as of the last change, for lookups and
+    //for other threads; replaced, never changed, on every change
+    private volatile ModelView view;
+    //Channel name is the key and the rate limiter of the channel's slow mode is the value
+    private Map <String, TokenBucket> slowBuckets;
+    //Limits message deliveries across all channels, null when unlimited
+    private FanoutBudget fanoutBudget;
+    //Recent messages of each channel, null when no history is kept
+    private ChannelHistory history;
+    //Durable log of every channel's messages, null when none is kept
+    private MessageLog messageLog;
+    //Index of the words in logged messages, null when search is off
+    private MessageIndex messageIndex;
+    //Records every change to the model, null when the server is not journaled
+    private CommandJournal journal;
+    //Ids of users restored from a journal whose clients have not reconnected
+    private Set<Integer> detached;
+    //Digest of the resume token of each user who has one, and the user id
+    //of each digest; only digests are kept, so the journal holds no tokens
+    private Map<Integer, String> resumeTokens;
+    private Map<String, Integer> tokenOwners;
 
     /**
      * Constructs a {@code ServerModel} and initializes any
@@ -20,6 +44,16 @@ public final class ServerModel implements ServerModelApi {
      */
     public ServerModel() {
         tmap = new TreeMap<Integer, User>();
+        view = ModelView.EMPTY;
+        slowBuckets = new TreeMap<String, TokenBucket>();
+        fanoutBudget = null;
+        history = null;
+        messageLog = null;
+        messageIndex = null;
+        journal = null;
+        detached = new TreeSet<Integer>();
+        resumeTokens = new HashMap<Integer, String>();
+        tokenOwners = new HashMap<String, Integer>();
     }
 
 
@@ -41,10 +75,24 @@ public final class ServerModel implements ServerModelApi {
      * @return A {@link Broadcast} to the user with their new nickname
      */
     public Broadcast registerUser(int userid) {
-        String nickname = generateUniqueNickname();
+        return registerUser(userid, generateUniqueNickname());
+    }
+
+   /**
+    * Registers a user under a nickname that is already known to be unique,
+    * such as one handed out by the {@link NicknameRegistry} of a sharded
+    * backend
+    * @param int id of the new user, String their nickname
+    * @return Broadcast to the user with their new nickname
+    * */
+    Broadcast registerUser(int userid, String nickname) {
         User bob = new User(userid);
         bob.assignName(nickname);
         tmap.put(userid, bob);
+        view = view.withUser(userid, nickname);
+        if (journal != null) {
+            journal.recordRegister(userid, nickname);
+        }
         return Broadcast.connected(nickname);
     }
 
@@ -98,20 +146,38 @@ public final class ServerModel implements ServerModelApi {
      */
     public Broadcast deregisterUser(int userid) {
         Collection<String> friends = getFriends(userid);
+        String nickname = getNickname(userid);
+        removeUser(userid);
+        return Broadcast.disconnected(nickname, friends);
+    }
+
+    /**
+     * Removes a user and the channels they own, without working out who
+     * should be told
+     * @param int id of the user to remove
+     * @return void
+     * */
+    void removeUser(int userid) {
         User pat = tmap.get(userid);
-        List<String> removed = new LinkedList<String>();
-        Iterator<String> passer = pat.getBossSet().iterator();
-        while (passer.hasNext()) {
-            removed.add(passer.next());
-        }
-        
+        List<String> removed = new LinkedList<String>(pat.getBossSet());
         for (String channel : removed) {
-            deleteChannel(channel);
+            dropChannel(channel);
         }
         tmap.remove(userid);//Removes user from the map
-        return Broadcast.disconnected(pat.getUserName(), friends);
+        ModelView next = view;
+        for (String channel : pat.getGroupChats()) {
+            next = next.withoutMember(channel, userid);
+        }
+        view = next.withoutUser(userid);
+        detached.remove(userid);
+        String token = resumeTokens.remove(userid);
+        if (token != null) {
+            tokenOwners.remove(token);
+        }
+        if (journal != null) {
+            journal.recordDeregister(userid);
+        }
     }
-
     
 
     
@@ -132,15 +198,7 @@ public final class ServerModel implements ServerModelApi {
      * such a user exists, otherwise -1
      */
     public int getUserId(String nickname) {
-        int identity = -1;
-        for (Map.Entry <Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            if (bob.getUserName().equals(nickname)) {
-                identity = entry.getKey();
-                break;
-            }
-        }
-        return identity;
+        return view.getUserId(nickname);
     }
 
     /**
@@ -154,12 +212,7 @@ public final class ServerModel implements ServerModelApi {
      *          such a user exists, otherwise null
      */
     public String getNickname(int userid) {
-        User bob = tmap.get(userid);
-        if (bob == null) {
-            return null;
-        }
-        String nickname = bob.getUserName();
-        return nickname;
+        return view.getNickname(userid);
     }
 
     /**
@@ -172,12 +225,7 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of registered user nicknames
      */
     public Collection<String> getRegisteredUsers() {
-        Set<String> setOfUsers = new TreeSet<String>();
-        for (Map.Entry <Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            setOfUsers.add(bob.getUserName());
-        }
-        return setOfUsers;
+        return view.getRegisteredUsers();
     }
 
     /** 
@@ -190,16 +238,7 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of channel names
      */
     public Collection<String> getChannels() {
-        Set<String> channels = new TreeSet<String>();
-        
-        for (Map.Entry<Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            Iterator<String> itr = bob.getBossSet().iterator();
-            while (itr.hasNext()) {
-                channels.add(itr.next());
-            }
-        }
-        return channels;
+        return view.getChannels();
     }
 
     /**
@@ -214,15 +253,7 @@ public final class ServerModel implements ServerModelApi {
      * @return The collection of user nicknames in the argued channel
      */
     public Collection<String> getUsersInChannel(String channelName) {
-        Set<String> channelMembers = new TreeSet<String>();
-        
-        for (Map.Entry<Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            if (bob.getGroupChats().contains(channelName)) {
-                channelMembers.add(bob.getUserName());
-            }
-        }
-        return channelMembers;
+        return view.getUsersInChannel(channelName);
     }
 
     /**
@@ -236,24 +267,28 @@ public final class ServerModel implements ServerModelApi {
      * exists, othewrise null
      */
     public String getOwner(String channelName) {
-        String boss = null;
-        for (Map.Entry<Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            if (bob.getBossSet().contains(channelName)) {
-                boss = bob.getUserName();
-                break;
-            }
-        }
-        return boss;
+        return view.getOwner(channelName);
     }
     
    /**
-    * Gets the tmap field of the server model, for testing
+    * Gets the tmap field of the server model, for testing. The map cannot be
+    * changed through it, and the users in it must not be changed either,
+    * or the model's lookups will no longer agree with them
     * @param None
-    * @return tmap of server model
+    * @return unmodifiable view of the tmap of server model
     * */
     public Map<Integer, User> getTMap() {
-        return this.tmap;
+        return Collections.unmodifiableMap(tmap);
+    }
+    
+   /**
+    * Gets an immutable view of the users and channels as they are now. This
+    * takes constant time and may be called on any thread
+    * @param None
+    * @return ModelView of the model's current state
+    * */
+    public ModelView snapshot() {
+        return view;
     }
    /**
     * This function creates a list of all the users who are in channels with the
@@ -286,9 +321,7 @@ public final class ServerModel implements ServerModelApi {
     * @return boolean telling if the channel exists in the model
     * */
     public boolean doesChannelExist(String channelName) {
-        boolean contains = false;
-        contains = getChannels().contains(channelName);
-        return contains;
+        return view.doesChannelExist(channelName);
     }
     
    /**
@@ -297,24 +330,38 @@ public final class ServerModel implements ServerModelApi {
     * @return none
     * */
     public void deleteChannel(String channelName) {
-        for (Map.Entry<Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            bob.removeCompany(channelName);
+        dropChannel(channelName);
+        if (journal != null) {
+            journal.recordDelete(channelName);
         }
     }
+
+    private void dropChannel(String channelName) {
+        slowBuckets.remove(channelName);
+        if (history != null) {
+            history.remove(channelName);
+        }
+        if (messageLog != null) {
+            messageLog.delete(channelName);
+        }
+        if (messageIndex != null) {
+            messageIndex.remove(channelName);
+        }
+        for (int id : view.getMemberIds(channelName)) {
+            User bob = tmap.get(id);
+            if (bob != null) {
+                bob.removeCompany(channelName);
+            }
+        }
+        view = view.withoutChannel(channelName);
+    }
     
    /**Checks if given nickname is already being used by a registered user
     * @param String nickname in question
     * @return boolean stating if the nickname is in use
     * */
     public boolean nicknameInUse(String nickname) {
-        for (Map.Entry <Integer, User> entry : tmap.entrySet()) {
-            User bob = entry.getValue();
-            if (bob.getUserName().equals(nickname)) {
-                return true;
-            }
-        }
-        return false;
+        return view.getUserId(nickname) >= 0;
     }
    /** 
     * Updates the userName of the user with given id to the nickname 
@@ -323,6 +370,10 @@ public final class ServerModel implements ServerModelApi {
     */
     public void changeName(int id, String nickname) {
         tmap.get(id).assignName(nickname);
+        view = view.renamed(id, nickname);
+        if (journal != null) {
+            journal.recordNick(id, nickname);
+        }
     }
    /**
     *  Adds channel name to to the groupchats  field of the user with given id
@@ -331,6 +382,10 @@ public final class ServerModel implements ServerModelApi {
     * */
     public void addGroup(int id, String channel) {
         tmap.get(id).addGroupChat(channel);
+        view = view.withMember(channel, id);
+        if (journal != null) {
+            journal.recordJoin(id, channel);
+        }
     }
    /**
     *  Adds channel name to to the bossSet  field of user with the given id and
@@ -342,7 +397,10 @@ public final class ServerModel implements ServerModelApi {
     * */
     public void addBoss(int id, String channel, boolean inviteOnly) {
         tmap.get(id).addCompany(channel,inviteOnly);
-       
+        view = view.withChannel(channel, id, inviteOnly);
+        if (journal != null) {
+            journal.recordCreate(id, channel, inviteOnly);
+        }
     }
    /**
     *  Removes channel name to to the groupchats  field of the user with given id
@@ -351,17 +409,386 @@ public final class ServerModel implements ServerModelApi {
     * */
     public void removeGroup(int id, String channel) {
         tmap.get(id).removeGroupChat(channel);
+        view = view.withoutMember(channel, id);
+        if (journal != null) {
+            journal.recordLeave(id, channel);
+        }
     }
    /**
     * Checks if a channel is invite only
     * @param String that is the channel's name 
     * @return boolean showing if the channel is invite only*/
     public boolean isInviteOnly(String channel) {
-        String bossName = getOwner(channel);
-        int id = getUserId(bossName);
-        return tmap.get(id).getInvite(channel);
+        return view.isInviteOnly(channel);
     }
    
-   
-   
+   /**
+    * Sets how many messages per minute may be sent to a channel. The channel
+    * may take a burst of up to ten seconds' worth of messages at once.
+    * @param String channel name, int messages per minute, 0 to remove the limit
+    * @return void
+    * */
+    public void setSlowMode(String channel, int messagesPerMinute) {
+        int id = getUserId(getOwner(channel));
+        tmap.get(id).setSlowMode(channel, messagesPerMinute);
+        if (messagesPerMinute == 0) {
+            slowBuckets.remove(channel);
+        } else {
+            int burst = (messagesPerMinute + 5) / 6;
+            RateLimit limit = new RateLimit(messagesPerMinute / 60.0, burst);
+            slowBuckets.put(channel, new TokenBucket(limit, System.nanoTime()));
+        }
+        if (journal != null) {
+            journal.recordSlow(channel, messagesPerMinute);
+        }
+    }
+    
+   /**
+    * Gets how many messages per minute may be sent to a channel
+    * @param String channel name
+    * @return int messages per minute, 0 if the channel is not in slow mode
+    * */
+    public int getSlowMode(String channel) {
+        String bossName = getOwner(channel);
+        if (bossName == null) {
+            return 0;
+        }
+        return tmap.get(getUserId(bossName)).getSlowMode(channel);
+    }
+    
+   /**
+    * Sets the server-wide limit on message deliveries per second
+    * @param RateLimit deliveries per second and burst, null for no limit
+    * @return void
+    * */
+    public void setFanoutBudget(RateLimit limit) {
+        if (limit == null) {
+            fanoutBudget = null;
+        } else {
+            fanoutBudget = new FanoutBudget(limit, System.nanoTime());
+        }
+    }
+
+   /**
+    * Shares a fanout budget with other models, such as those of the channel
+    * actors of an actor backend
+    * @param FanoutBudget the shared budget, null for no limit
+    * @return void
+    * */
+    void shareFanoutBudget(FanoutBudget budget) {
+        fanoutBudget = budget;
+    }
+    
+   /**
+    * Decides whether a message to a channel may be sent now, given the
+    * channel's slow mode and the server-wide fanout budget, and charges
+    * both if so
+    * @param String channel name, int number of recipients of the message
+    * @return boolean showing if the message may be sent
+    * */
+    public boolean admitMessage(String channel, int recipients) {
+        TokenBucket slow = slowBuckets.get(channel);
+        if (slow == null && fanoutBudget == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (slow != null && slow.nanosUntilToken(now) > 0) {
+            return false;
+        }
+        if (fanoutBudget != null && !fanoutBudget.tryAdmit(recipients, now)) {
+            return false;
+        }
+        if (slow != null) {
+            slow.take();
+        }
+        return true;
+    }
+    
+    
+   /**
+    * Sets the store of recent channel messages
+    * @param ChannelHistory the history, or null to keep none
+    * @return void
+    * */
+    public void setHistory(ChannelHistory history) {
+        this.history = history;
+    }
+    
+   /**
+    * Sets the durable log of channel messages
+    * @param MessageLog the log, or null to keep none
+    * @return void
+    * */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+    
+   /**
+    * Checks if channel messages are logged, so that HISTORY can be served
+    * @param None
+    * @return boolean showing if there is a message log
+    * */
+    public boolean hasMessageLog() {
+        return messageLog != null;
+    }
+    
+   /**
+    * Checks if logged messages are indexed, so that SEARCH can be served
+    * @param None
+    * @return boolean showing if there is a message index
+    * */
+    public boolean hasMessageIndex() {
+        return messageIndex != null;
+    }
+    
+   /**
+    * Sets the index that logged messages are handed to for searching
+    * @param MessageIndex the index, or null to index nothing
+    * @return void
+    * */
+    public void setMessageIndex(MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+    
+   /**
+    * Sets how many recent messages of a channel are replayed to users who
+    * join it
+    * @param String channel name, int number of messages
+    * @return void
+    * */
+    public void setBacklog(String channel, int lines) {
+        int id = getUserId(getOwner(channel));
+        tmap.get(id).setBacklog(channel, lines);
+        if (lines == 0 && history != null) {
+            history.remove(channel);
+        }
+        if (journal != null) {
+            journal.recordBacklog(channel, lines);
+        }
+    }
+    
+   /**
+    * Gets how many recent messages of a channel are replayed to users who
+    * join it
+    * @param String channel name
+    * @return int number of messages, -1 if the server's default applies
+    * */
+    public int getBacklog(String channel) {
+        String bossName = getOwner(channel);
+        if (bossName == null) {
+            return -1;
+        }
+        return tmap.get(getUserId(bossName)).getBacklog(channel);
+    }
+    
+   /**
+    * Adds a message sent to a channel to the channel's history
+    * @param String channel name, String the MESG response relayed to members
+    * @return void
+    * */
+    public void recordMessage(String channel, String response) {
+        if (history != null) {
+            history.record(channel, response, getBacklog(channel));
+        }
+        if (messageLog != null) {
+            long sequence = messageLog.append(channel, response);
+            if (messageIndex != null && sequence > 0) {
+                messageIndex.offer(channel, sequence, response);
+            }
+        }
+    }
+    
+   /**
+    * Gets the recent messages of a channel to replay to a user joining it
+    * @param String channel name
+    * @return List of MESG responses, oldest first
+    * */
+    public List<String> getBacklogMessages(String channel) {
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        return history.recent(channel, getBacklog(channel));
+    }
+    
+    
+    //==========================================================================
+    // Journaling and restoring
+    //==========================================================================
+
+   /**
+    * Attaches a journal, to which every later change to the model is
+    * recorded
+    * @param CommandJournal the journal, or null to stop journaling
+    * @return void
+    * */
+    public void setJournal(CommandJournal journal) {
+        this.journal = journal;
+    }
+    
+   /**
+    * Adds a user restored from a journal, whose client is not connected. The
+    * user keeps their nickname and channels until a new client resumes them
+    * with their resume token, or until the backend gives up on them.
+    * @param int id the user had, String their nickname
+    * @return void
+    * */
+    void restoreUser(int id, String nickname) {
+        User bob = new User(id);
+        bob.assignName(nickname);
+        tmap.put(id, bob);
+        view = view.withUser(id, nickname);
+        detached.add(id);
+    }
+    
+   /**
+    * Checks if a user was restored from a journal and not yet claimed
+    * @param int id of the user
+    * @return boolean showing if the user is detached
+    * */
+    public boolean isDetached(int id) {
+        return detached.contains(id);
+    }
+    
+   /**
+    * Gets the ids of all restored users not yet claimed
+    * @param None
+    * @return a copy of the set of detached user ids
+    * */
+    public Set<Integer> getDetachedUsers() {
+        return new TreeSet<Integer>(detached);
+    }
+    
+   /**
+    * Gets the number of users restored or parked and not yet claimed
+    * @param None
+    * @return int number of detached users
+    * */
+    public int getDetachedCount() {
+        return detached.size();
+    }
+    
+   /**
+    * Hands the nickname and channels of a detached user to a newly connected
+    * user, replacing the new user's default state. This is only possible
+    * while the new user has not joined any channel.
+    * @param int id of the detached user, int id of the user claiming it
+    * @return boolean showing if the state was handed over
+    * */
+    public boolean adoptUser(int detachedId, int userId) {
+        User restored = tmap.get(detachedId);
+        User claimant = tmap.get(userId);
+        if (!detached.contains(detachedId) || restored == null || claimant == null
+                || !claimant.getGroupChats().isEmpty()) {
+            return false;
+        }
+        tmap.remove(detachedId);
+        detached.remove(detachedId);
+        String digest = resumeTokens.remove(detachedId);
+        if (digest != null) {
+            tokenOwners.remove(digest);
+        }
+        tmap.put(userId, restored);
+        Set<String> channels = new TreeSet<String>(restored.getGroupChats());
+        channels.addAll(restored.getBossSet());
+        view = view.withoutUser(userId).moved(detachedId, userId, channels)
+                .withoutUser(detachedId).withUser(userId, restored.getUserName());
+        if (journal != null) {
+            journal.recordAdopt(detachedId, userId);
+        }
+        return true;
+    }
+    
+   /**
+    * Gives a user a token with which a later connection can resume their
+    * session if they drop off
+    * @param int id of the user, String the token
+    * @return void
+    * */
+    public void setResumeToken(int id, String token) {
+        setResumeDigest(id, digest(token));
+    }
+    
+   /**
+    * Gives a user the digest of a resume token, as kept in a journal or
+    * snapshot
+    * @param int id of the user, String the digest of the token
+    * @return void
+    * */
+    void setResumeDigest(int id, String digest) {
+        String old = resumeTokens.put(id, digest);
+        if (old != null) {
+            tokenOwners.remove(old);
+        }
+        tokenOwners.put(digest, id);
+        if (journal != null) {
+            journal.recordToken(id, digest);
+        }
+    }
+    
+   /**
+    * Gets the digest of a user's resume token
+    * @param int id of the user
+    * @return String the digest, null if the user has no resume token
+    * */
+    String getResumeDigest(int id) {
+        return resumeTokens.get(id);
+    }
+    
+   /**
+    * Checks if a user's session can be resumed with a token
+    * @param int id of the user
+    * @return boolean showing if the user has a resume token
+    * */
+    public boolean hasResumeToken(int id) {
+        return resumeTokens.containsKey(id);
+    }
+    
+   /**
+    * Parks the state of a user whose connection dropped, keeping their
+    * nickname, memberships and ownerships until they resume or expire
+    * @param int id of the user
+    * @return boolean showing if the user was parked, false if they have no
+    * resume token
+    * */
+    public boolean parkUser(int id) {
+        if (!tmap.containsKey(id) || !resumeTokens.containsKey(id)) {
+            return false;
+        }
+        detached.add(id);
+        return true;
+    }
+    
+   /**
+    * Hands a parked user's state to a newly connected user who presents
+    * the parked user's resume token. The token then belongs to the new user
+    * @param String the token, int id of the user resuming
+    * @return String the nickname resumed, null if the token is not valid
+    * */
+    public String resumeUser(String token, int userId) {
+        String digest = digest(token);
+        Integer parked = tokenOwners.get(digest);
+        if (parked == null || parked == userId || !detached.contains(parked)
+                || !adoptUser(parked, userId)) {
+            return null;
+        }
+        setResumeDigest(userId, digest);
+        return tmap.get(userId).getUserName();
+    }
+    
+    private static String digest(String token) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256")
+                    .digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException nsax) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(nsax);
+        }
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
 }
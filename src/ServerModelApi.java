@@ -172,4 +172,28 @@ public interface ServerModelApi {
        * @return boolean showing if the channel is invite only
        * */
     boolean isInviteOnly(String channel);
+    
+      /**
+       * Sets how many messages per minute may be sent to a channel. The limit
+       * is kept with the channel's invite-only flag by the owner.
+       * @param String channel name, int messages per minute, 0 to remove the limit
+       * @return void
+       * */
+    void setSlowMode(String channel, int messagesPerMinute);
+    
+      /**
+       * Gets how many messages per minute may be sent to a channel
+       * @param String channel name
+       * @return int messages per minute, 0 if the channel is not in slow mode
+       * */
+    int getSlowMode(String channel);
+    
+      /**
+       * Decides whether a message to a channel may be sent now, given the
+       * channel's slow mode and the server-wide fanout budget, and charges
+       * both if so
+       * @param String channel name, int number of recipients of the message
+       * @return boolean showing if the message may be sent
+       * */
+    boolean admitMessage(String channel, int recipients);
 }
@@ -56,6 +56,51 @@ public enum ServerResponse {
      */
     INVITE_TO_PUBLIC_CHANNEL(408),
 
+    /**
+     * Response by the server when a client sends commands faster than
+     * its rate limit allows, and the server discards them.
+     */
+    RATE_LIMITED(409),
+
+    /**
+     * Response by the server when a client sends a line longer than
+     * the server's maximum line length. The line is discarded.
+     */
+    LINE_TOO_LONG(410),
+
+    /**
+     * Response by the server when a client tries to resume a session
+     * with a token that does not belong to a parked user.
+     */
+    INVALID_RESUME_TOKEN(411),
+
+    /**
+     * Response by the server when a client that has not given the
+     * operator key sends a command restricted to operators, such as
+     * ANNOUNCE.
+     */
+    NOT_OPERATOR(412),
+
+    /**
+     * Response by the server when a client sends a private message to
+     * a nickname that no user holds.
+     */
+    NO_SUCH_RECIPIENT(413),
+
+    /**
+     * Response by the server when a client sends a private message to
+     * a user who is not connected, such as one whose session is parked
+     * for resuming. The message is discarded.
+     */
+    RECIPIENT_NOT_CONNECTED(414),
+
+    /**
+     * Response by the server when a client sends a command for a
+     * feature the server was started without, such as HISTORY when no
+     * message log is kept, or SEARCH when messages are not indexed.
+     */
+    FEATURE_DISABLED(415),
+
     /**
      * Response by the server when a client attempts to change his or
      * her nick to a nickname that is already in use by another user.
@@ -0,0 +1,258 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hot standby: keeps a copy of a primary server's model up to date from
+ * the primary's replication stream (see {@link ReplicationSource}), and
+ * takes over the configured port with that model when the primary dies.
+ *
+ * The standby counts the primary as dead when the stream breaks, or when
+ * nothing, not even a heartbeat, has arrived for
+ * {@link #PRIMARY_TIMEOUT_MILLIS}. Until the first snapshot arrives it keeps
+ * trying to connect. Once it takes over, it runs like any other server, so
+ * every user is restored and has the restore grace period to reconnect and
+ * claim their nickname.
+ *
+ * If the standby is configured with a journal, it writes the replicated
+ * model as a fresh snapshot and starts a new journal from it before taking
+ * over.
+ */
+public final class StandbyServer {
+
+    static final int PRIMARY_TIMEOUT_MILLIS = 6 * ReplicationSource.HEARTBEAT_MILLIS;
+    private static final int RETRY_MILLIS = 200;
+
+    private final ServerConfig config;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final ServerLog log;
+    private final Thread replicator;
+    private final CountDownLatch promoted;
+
+    private volatile boolean stopped;
+    private volatile long appliedPosition;
+    private volatile long primaryPosition;
+    private volatile ServerLauncher launcher;
+
+    /**
+     * Constructs a {@code StandbyServer} that follows the primary given by
+     * {@link ServerConfig#getReplicateFrom()}.
+     *
+     * @param config The settings of the standby, and of the server it
+     *               becomes when it takes over
+     * @throws IllegalArgumentException if no primary is configured
+     */
+    public StandbyServer(ServerConfig config) {
+        String primary = config.getReplicateFrom();
+        if (primary == null) {
+            throw new IllegalArgumentException("No primary to replicate from");
+        }
+        int colon = primary.lastIndexOf(':');
+        this.config = config;
+        primaryHost = primary.substring(0, colon);
+        primaryPort = Integer.parseInt(primary.substring(colon + 1));
+        log = ServerLog.fromConfig(config);
+        promoted = new CountDownLatch(1);
+        stopped = false;
+        appliedPosition = 0;
+        primaryPosition = 0;
+        launcher = null;
+        replicator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replicate();
+            }
+        }, "Standby replicator");
+    }
+
+    /**
+     * Starts following the primary.
+     */
+    public void start() {
+        replicator.start();
+    }
+
+    /**
+     * Waits until the standby has taken over from the primary.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return The port the standby now serves on, or -1 if it has not taken
+     *         over, or failed to
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitPromotion(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!promoted.await(timeout, unit)) {
+            return -1;
+        }
+        ServerLauncher server = launcher;
+        return server == null ? -1 : server.getPort();
+    }
+
+    /**
+     * Gets the primary's journal position that the standby's model is up to.
+     *
+     * @return The position
+     */
+    public long getAppliedPosition() {
+        return appliedPosition;
+    }
+
+    /**
+     * Gets how far the standby's model is behind what the primary has told
+     * it about.
+     *
+     * @return The number of journal bytes not yet applied
+     */
+    public long getLagBytes() {
+        return Math.max(0, primaryPosition - appliedPosition);
+    }
+
+    /**
+     * Stops following the primary, or stops the server it has become.
+     */
+    public void stop() {
+        stopped = true;
+        replicator.interrupt();
+        ServerLauncher server = launcher;
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Waits for a stopped standby to finish.
+     *
+     * @param timeout The longest time to wait
+     * @param unit The unit of the timeout
+     * @return true if the standby stopped, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        replicator.join(unit.toMillis(timeout));
+        ServerLauncher server = launcher;
+        return !replicator.isAlive()
+                && (server == null || server.awaitTermination(timeout, unit));
+    }
+
+    private void replicate() {
+        // The last model fully caught up with the primary, null until the
+        // first snapshot has arrived
+        ServerModel current = null;
+        while (!stopped) {
+            ServerModel model = new ServerModel();
+            boolean resync = false;
+            try (Socket socket = new Socket(primaryHost, primaryPort)) {
+                socket.setSoTimeout(PRIMARY_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                String key = config.getReplicationKey();
+                out.writeUTF(key == null ? "" : key);
+                out.flush();
+                if (in.readByte() != ReplicationSource.SNAPSHOT) {
+                    throw new IOException("Replication did not start with a snapshot");
+                }
+                byte[] snapshot = new byte[in.readInt()];
+                in.readFully(snapshot);
+                long applied = ModelSnapshot.load(ByteBuffer.wrap(snapshot), model,
+                        "Primary snapshot");
+                appliedPosition = applied;
+                primaryPosition = applied;
+                current = model;
+                log.log(ServerLog.Level.INFO, "standby-synced", -1,
+                        snapshot.length + " snapshot bytes at position " + applied);
+                byte[] records = new byte[64 * 1024];
+                while (!stopped && !resync) {
+                    byte type = in.readByte();
+                    if (type == ReplicationSource.RECORDS) {
+                        long position = in.readLong();
+                        int length = in.readInt();
+                        if (position != applied) {
+                            throw new IOException("Expected records at " + applied
+                                    + " but got " + position);
+                        }
+                        if (length > records.length) {
+                            records = new byte[Math.max(length, 2 * records.length)];
+                        }
+                        in.readFully(records, 0, length);
+                        CommandJournal.applyAll(records, 0, length, model);
+                        applied += length;
+                        appliedPosition = applied;
+                        primaryPosition = Math.max(primaryPosition, applied);
+                        out.writeLong(applied);
+                        out.flush();
+                    } else if (type == ReplicationSource.HEARTBEAT) {
+                        primaryPosition = in.readLong();
+                    } else if (type == ReplicationSource.RESYNC) {
+                        resync = true;
+                    } else {
+                        throw new IOException("Unknown replication frame " + type);
+                    }
+                }
+            } catch (IOException iox) {
+                if (stopped) {
+                    break;
+                }
+                if (current != null) {
+                    log.log(ServerLog.Level.WARN, "primary-lost", -1, iox.toString());
+                    promote(current);
+                    return;
+                }
+                // The primary is not up yet; keep trying
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ix) {
+                    break;
+                }
+            }
+            if (resync) {
+                log.log(ServerLog.Level.WARN, "standby-resync", -1, (String) null);
+            }
+        }
+        log.close();
+        promoted.countDown();
+    }
+
+    /**
+     * Starts serving on the configured port with the replicated model.
+     */
+    private void promote(ServerModel model) {
+        try {
+            String journalPath = config.getJournalPath();
+            ServerLauncher server;
+            if (journalPath != null) {
+                // Start the journal afresh from the replicated state
+                Path journal = Paths.get(journalPath);
+                ModelSnapshot.capture(model, 0).write(Paths.get(journalPath + ".snapshot"));
+                Files.deleteIfExists(journal);
+                server = new ServerLauncher(config);
+            } else {
+                server = new ServerLauncher(config, model);
+            }
+            launcher = server;
+            int port = server.start();
+            log.log(ServerLog.Level.INFO, "standby-promoted", -1,
+                    "serving on port " + port + " from position " + appliedPosition);
+        } catch (IOException iox) {
+            log.log(ServerLog.Level.ERROR, "promotion-failed", -1, iox);
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        } finally {
+            log.close();
+            promoted.countDown();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * A token bucket that refills continuously at a fixed rate up to a fixed
+ * burst size. A bucket is owned by a single connection thread, so it is not
+ * thread-safe, and it takes the current time from the caller so that one
+ * clock read can serve several buckets.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructs a full {@code TokenBucket}.
+     *
+     * @param limit The refill rate and burst size of the bucket
+     * @param now The current value of {@link System#nanoTime()}
+     */
+    public TokenBucket(RateLimit limit, long now) {
+        tokensPerNano = limit.getPerSecond() / 1e9;
+        burst = limit.getBurst();
+        tokens = burst;
+        lastRefill = now;
+    }
+
+    /**
+     * Gets how long it will be until a token is available, without taking it.
+     *
+     * @param now The current value of {@link System#nanoTime()}
+     * @return 0 if a token is available now, otherwise the wait in nanoseconds
+     */
+    public long nanosUntilToken(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Takes a token. Should only be called once {@link #nanosUntilToken}
+     * has returned 0 for the same time.
+     */
+    public void take() {
+        tokens -= 1;
+    }
+
+    /**
+     * Gets the number of tokens in the bucket, which may be negative if more
+     * were taken than were available.
+     *
+     * @param now The current value of {@link System#nanoTime()}
+     * @return The number of tokens available
+     */
+    public double available(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    /**
+     * Takes any number of tokens, going into debt if there are not enough.
+     * A bucket in debt has to refill past zero before it has tokens again.
+     *
+     * @param amount The number of tokens to take
+     */
+    public void take(double amount) {
+        tokens -= amount;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -11,11 +11,19 @@ public class User {
     private Set<String> bossSet;// Set of the names of channels the user is the owner of 
     //Map that shows which channels in the User's bossSet are inviteOnly
     private Map<String, Boolean> inviteMap;
+    //Map from the channels in the User's bossSet that are in slow mode to their
+    //limit in messages per minute
+    private Map<String, Integer> slowMap;
+    //Map from the channels in the User's bossSet with a chosen backlog to the
+    //number of recent messages replayed to users who join them
+    private Map<String, Integer> backlogMap;
     public User(int iD) {
         this.userName = "";
         this.groupChats = new TreeSet<String>(); 
         this.bossSet = new TreeSet<String>();
         this.inviteMap = new TreeMap <String, Boolean>();
+        this.slowMap = new TreeMap <String, Integer>();
+        this.backlogMap = new TreeMap <String, Integer>();
     }
     
     /** 
@@ -84,6 +92,8 @@ public class User {
     public void removeCompany(String newChannel) {
         bossSet.remove(newChannel); 
         inviteMap.remove(newChannel);
+        slowMap.remove(newChannel);
+        backlogMap.remove(newChannel);
         groupChats.remove(newChannel);
     }
     
@@ -120,7 +130,46 @@ public class User {
         return inviteMap;
     }
     
-
-
+    /**
+     * Sets the slow mode limit of a channel that the user is the owner of
+     * @param String channel of interest, int messages per minute, 0 for no limit
+     * @return void
+     * */
+    public void setSlowMode(String channel, int messagesPerMinute) {
+        if (messagesPerMinute == 0) {
+            slowMap.remove(channel);
+        } else {
+            slowMap.put(channel, messagesPerMinute);
+        }
+    }
+    
+    /**
+     * Returns the slow mode limit of a channel that the user is the owner of
+     * @param String channel of interest
+     * @return int messages per minute allowed in the channel, 0 if there is no limit*/
+    public int getSlowMode(String channel) {
+        Integer limit = slowMap.get(channel);
+        return limit == null ? 0 : limit;
+    }
+    
+    /**
+     * Sets how many recent messages of a channel that the user is the owner
+     * of are replayed to users who join it
+     * @param String channel of interest, int number of messages
+     * @return void
+     * */
+    public void setBacklog(String channel, int lines) {
+        backlogMap.put(channel, lines);
+    }
+    
+    /**
+     * Returns how many recent messages of a channel that the user is the
+     * owner of are replayed to users who join it
+     * @param String channel of interest
+     * @return int number of messages, -1 if the server's default applies*/
+    public int getBacklog(String channel) {
+        Integer lines = backlogMap.get(channel);
+        return lines == null ? -1 : lines;
+    }
 
 }
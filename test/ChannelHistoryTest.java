@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests the rings and the shared byte budget of {@link ChannelHistory}.
+ */
+public class ChannelHistoryTest {
+
+    @Test
+    public void testKeepsMostRecentLines() {
+        ChannelHistory history = new ChannelHistory(1024, 1024, 3);
+        for (int i = 0; i < 5; i++) {
+            history.record("java", "line" + i, -1);
+        }
+        assertEquals(Arrays.asList("line2", "line3", "line4"), history.recent("java", -1));
+        assertEquals(Arrays.asList("line4"), history.recent("java", 1));
+    }
+
+    @Test
+    public void testRingWrapsWithinBytes() {
+        // Room for two 12-byte lines with their 4-byte lengths, but not three
+        ChannelHistory history = new ChannelHistory(40, 40, 10);
+        for (int i = 0; i < 7; i++) {
+            history.record("java", "message-" + i + "..", -1);
+        }
+        assertEquals(Arrays.asList("message-5..", "message-6.."), history.recent("java", -1));
+    }
+
+    @Test
+    public void testLineLongerThanRingSkipped() {
+        ChannelHistory history = new ChannelHistory(16, 16, 10);
+        history.record("java", "short", -1);
+        history.record("java", "a line far too long for the ring", -1);
+        assertEquals(Arrays.asList("short"), history.recent("java", -1));
+    }
+
+    @Test
+    public void testLeastActiveChannelEvicted() {
+        ChannelHistory history = new ChannelHistory(64, 128, 10);
+        history.record("java", "a", -1);
+        history.record("cobol", "b", -1);
+        history.record("java", "c", -1);
+        history.record("rust", "d", -1);
+        assertEquals(2, history.size());
+        assertEquals(Collections.emptyList(), history.recent("cobol", -1));
+        assertEquals(Arrays.asList("a", "c"), history.recent("java", -1));
+        assertEquals(Arrays.asList("d"), history.recent("rust", -1));
+    }
+
+    @Test
+    public void testZeroLinesKeepsNothing() {
+        ChannelHistory history = new ChannelHistory(64, 128, 10);
+        history.record("java", "a", -1);
+        history.record("java", "b", 0);
+        assertEquals(0, history.size());
+    }
+}
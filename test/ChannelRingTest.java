@@ -0,0 +1,50 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests publishing to and reading from a {@link ChannelRing}.
+ */
+public class ChannelRingTest {
+
+    @Test
+    public void testReadInOrder() {
+        ChannelRing ring = new ChannelRing(4);
+        assertEquals(0, ring.getPublished());
+        assertNull(ring.get(0), "Nothing published yet");
+        ring.publish("a", 10);
+        ring.publish("b", 12);
+        assertEquals(2, ring.getPublished());
+        assertEquals("a", ring.get(0).getResponse());
+        assertEquals(10, ring.get(0).getStamp());
+        assertEquals("b", ring.get(1).getResponse());
+        assertEquals(1, ring.get(1).getSequence());
+        assertNull(ring.get(2));
+    }
+
+    @Test
+    public void testLappedReaderSeesLaterEntry() {
+        ChannelRing ring = new ChannelRing(3);
+        for (int i = 0; i < 5; i++) {
+            ring.publish("m" + i, i);
+        }
+        assertEquals(3, ring.get(0).getSequence(), "Entry 0 was overwritten by entry 3");
+        assertEquals(4, ring.get(1).getSequence());
+        assertEquals("m2", ring.get(2).getResponse(), "The oldest entry kept");
+        assertEquals("m4", ring.get(4).getResponse());
+    }
+
+    @Test
+    public void testClosedRingKeepsEntries() {
+        ChannelRing ring = new ChannelRing(2);
+        ring.publish("last", 1);
+        ring.close();
+        assertTrue(ring.isClosed());
+        assertEquals("last", ring.get(0).getResponse());
+        assertThrows(IllegalStateException.class, () -> ring.publish("late", 2));
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new ChannelRing(0));
+    }
+}
@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+/**
+ * Tests that a {@link ServerModel} rebuilt from a {@link CommandJournal}
+ * matches the model that wrote it.
+ */
+public class CommandJournalTest {
+    @TempDir
+    Path dir;
+
+    private Path path;
+    private ServerModel model;
+    private CommandJournal journal;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        path = dir.resolve("server.journal");
+        model = new ServerModel();
+        journal = CommandJournal.open(path, 5);
+        model.setJournal(journal);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        journal.close();
+    }
+
+    private ServerModel replay() throws IOException {
+        journal.flush();
+        ServerModel restored = new ServerModel();
+        CommandJournal.replay(path, restored);
+        return restored;
+    }
+
+    @Test
+    public void testReplayRestoresChannels() throws IOException {
+        model.registerUser(0);
+        model.registerUser(1);
+        new NicknameCommand(0, "User0", "alice").updateServerModel(model);
+        new CreateCommand(0, "alice", "java", true).updateServerModel(model);
+        new InviteCommand(0, "alice", "java", "User1").updateServerModel(model);
+        new SlowCommand(0, "alice", "java", 30).updateServerModel(model);
+
+        ServerModel restored = replay();
+        assertEquals(model.getRegisteredUsers(), restored.getRegisteredUsers());
+        assertEquals("alice", restored.getOwner("java"));
+        assertEquals(model.getUsersInChannel("java"), restored.getUsersInChannel("java"));
+        assertTrue(restored.isInviteOnly("java"));
+        assertEquals(30, restored.getSlowMode("java"));
+        assertTrue(restored.isDetached(0), "Restored users await their clients");
+    }
+
+    @Test
+    public void testReplayAfterDeparture() throws IOException {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new CreateCommand(1, "User1", "cobol", false).updateServerModel(model);
+        model.deregisterUser(1);
+
+        ServerModel restored = replay();
+        assertEquals(model.getRegisteredUsers(), restored.getRegisteredUsers());
+        assertEquals(model.getChannels(), restored.getChannels());
+        assertEquals(model.getUsersInChannel("java"), restored.getUsersInChannel("java"));
+    }
+
+    @Test
+    public void testRestoredUserResumedWithToken() throws IOException {
+        model.registerUser(0);
+        model.setResumeToken(0, "secret");
+        new NicknameCommand(0, "User0", "alice").updateServerModel(model);
+        new CreateCommand(0, "alice", "java", false).updateServerModel(model);
+
+        ServerModel restored = replay();
+        restored.registerUser(5);
+        Broadcast claim = new NicknameCommand(5, "User1", "alice").updateServerModel(restored);
+        assertEquals(Broadcast.error(new NicknameCommand(5, "User1", "alice"),
+                ServerResponse.NAME_ALREADY_IN_USE), claim, "The nickname alone is not enough");
+        assertTrue(restored.isDetached(0));
+        Broadcast resume = new ResumeCommand(5, "User1", "secret").updateServerModel(restored);
+        assertEquals(Broadcast.okay(new NicknameCommand(5, "User1", "alice"),
+                Collections.singleton("alice")), resume);
+        assertEquals(5, restored.getUserId("alice"));
+        assertEquals("alice", restored.getOwner("java"));
+        assertFalse(restored.isDetached(0));
+        assertEquals(-1, restored.getUserId("User1"));
+    }
+
+    @Test
+    public void testNicknameOfConnectedUserNotAdopted() throws IOException {
+        model.registerUser(0);
+        model.registerUser(1);
+        new NicknameCommand(0, "User0", "alice").updateServerModel(model);
+        Broadcast claim = new NicknameCommand(1, "User1", "alice").updateServerModel(model);
+        assertEquals(Broadcast.error(new NicknameCommand(1, "User1", "alice"),
+                ServerResponse.NAME_ALREADY_IN_USE), claim);
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        model.registerUser(0);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        model.registerUser(1);
+        journal.close();
+        long length = Files.size(path);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.truncate(length - 2);
+        }
+
+        ServerModel restored = new ServerModel();
+        CommandJournal.replay(path, restored);
+        assertEquals(Collections.singleton("User0"), restored.getRegisteredUsers());
+        assertEquals("User0", restored.getOwner("java"), "Records before the torn one survive");
+
+        journal = CommandJournal.open(path, 5);
+        restored.setJournal(journal);
+        restored.deleteChannel("java");
+        journal.flush();
+        ServerModel again = new ServerModel();
+        CommandJournal.replay(path, again);
+        assertTrue(again.getChannels().isEmpty(), "Appends follow the last whole record");
+    }
+}
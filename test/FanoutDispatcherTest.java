@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link FanoutDispatcher} with a writer that records what each
+ * recipient was sent, and on which thread.
+ */
+public class FanoutDispatcherTest {
+
+    private Map<Integer, List<String>> received;
+    private Map<Integer, String> writtenOn;
+    private FanoutDispatcher dispatcher;
+
+    @BeforeEach
+    public void setUp() {
+        received = new ConcurrentHashMap<>();
+        writtenOn = new ConcurrentHashMap<>();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    private void record(Map<Integer, List<String>> responses) {
+        for (Map.Entry<Integer, List<String>> entry : responses.entrySet()) {
+            received.computeIfAbsent(entry.getKey(), id -> new ArrayList<>())
+                .addAll(entry.getValue());
+            writtenOn.put(entry.getKey(), Thread.currentThread().getName());
+        }
+    }
+
+    private static Map<Integer, List<String>> broadcast(int recipients, String response) {
+        Map<Integer, List<String>> responses = new HashMap<>();
+        for (int i = 0; i < recipients; i++) {
+            responses.put(i, Collections.singletonList(response));
+        }
+        return responses;
+    }
+
+    @Test
+    public void testSmallBroadcastIsWrittenInline() throws InterruptedException {
+        dispatcher = new FanoutDispatcher(2, 10, this::record);
+        dispatcher.dispatch(broadcast(3, "hi"));
+        assertEquals(Collections.singletonList("hi"), received.get(2));
+        assertEquals(Thread.currentThread().getName(), writtenOn.get(2));
+    }
+
+    @Test
+    public void testLargeBroadcastIsSplitAcrossThreads() throws InterruptedException {
+        dispatcher = new FanoutDispatcher(4, 10, this::record);
+        dispatcher.dispatch(broadcast(100, "hi"));
+        dispatcher.close();
+        dispatcher = null;
+        assertEquals(100, received.size(), "Everything queued is written on close");
+        assertTrue(writtenOn.get(5).startsWith("Fanout writer "));
+        assertNotEquals(writtenOn.get(0), writtenOn.get(1));
+    }
+
+    @Test
+    public void testOrderIsKeptPerRecipient() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher = new FanoutDispatcher(3, 50, responses -> {
+            if (!Thread.currentThread().getName().startsWith("Fanout writer ")) {
+                record(responses);
+                return;
+            }
+            try {
+                // Keep the writer threads busy while small broadcasts arrive
+                release.await();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            record(responses);
+        });
+        List<String> expected = new ArrayList<>();
+        for (int n = 0; n < 40; n++) {
+            String response = "m" + n;
+            expected.add(response);
+            // Every fifth broadcast is large, the others go to a few users
+            dispatcher.dispatch(broadcast(n % 5 == 0 ? 60 : 4, response));
+            if (n == 20) {
+                release.countDown();
+            }
+        }
+        dispatcher.close();
+        dispatcher = null;
+        for (int userId = 0; userId < 4; userId++) {
+            assertEquals(expected, received.get(userId), "Recipient " + userId);
+        }
+        assertEquals(8, received.get(59).size(), "Only the large broadcasts");
+    }
+
+    @Test
+    public void testDispatchAfterCloseIsInline() throws InterruptedException {
+        dispatcher = new FanoutDispatcher(2, 1, this::record);
+        dispatcher.close();
+        dispatcher.dispatch(broadcast(5, "late"));
+        dispatcher = null;
+        assertEquals(5, received.size());
+        assertEquals(Thread.currentThread().getName(), writtenOn.get(4));
+    }
+
+    @Test
+    public void testForcedBroadcastIsQueued() throws InterruptedException {
+        dispatcher = new FanoutDispatcher(2, 10, this::record);
+        dispatcher.dispatch(broadcast(3, "hi"), true);
+        dispatcher.close();
+        dispatcher = null;
+        assertEquals(3, received.size(), "Everything queued is written on close");
+        assertTrue(writtenOn.get(2).startsWith("Fanout writer "),
+            "A small broadcast is queued when asked");
+    }
+}
@@ -0,0 +1,172 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the order in which the {@link InboundScheduler} hands tasks to the
+ * model thread.
+ */
+public class InboundSchedulerTest {
+    private InboundScheduler<String> scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        scheduler = new InboundScheduler<String>(2, 100, 1000);
+    }
+
+    @Test
+    public void testRoundRobinBetweenConnections() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "flood" + i, false);
+        }
+        scheduler.submit(1, "hello", false);
+        assertEquals("flood0", scheduler.take());
+        assertEquals("flood1", scheduler.take());
+        assertEquals("hello", scheduler.take(), "Second connection gets a turn");
+        assertEquals("flood2", scheduler.take());
+        assertEquals("flood3", scheduler.take());
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testUrgentLaneServedFirst() throws InterruptedException {
+        scheduler.submit(0, "mesg", false);
+        scheduler.submit(1, "nick", true);
+        assertEquals("nick", scheduler.take());
+        assertEquals("mesg", scheduler.take());
+    }
+
+    @Test
+    public void testUrgentTaskKeepsConnectionOrder() throws InterruptedException {
+        scheduler.submit(0, "mesg", false);
+        scheduler.submit(0, "nick", true);
+        assertEquals("mesg", scheduler.take());
+        assertEquals("nick", scheduler.take());
+    }
+
+    @Test
+    public void testClosingConnectionDrainedInUrgentLane() throws InterruptedException {
+        scheduler.submit(0, "flood0", false);
+        scheduler.submit(0, "flood1", false);
+        scheduler.submit(1, "mesg", false);
+        scheduler.submitLast(0, "quit");
+        assertEquals("flood0", scheduler.take());
+        assertEquals("flood1", scheduler.take());
+        assertEquals("quit", scheduler.take());
+        assertEquals("mesg", scheduler.take());
+    }
+
+    @Test
+    public void testPutBlocksWhileFull() throws InterruptedException {
+        InboundScheduler<String> bounded = new InboundScheduler<String>(2, 1, 1000);
+        bounded.put(0, "first", false, 5);
+        Thread writer = new Thread(() -> {
+            try {
+                bounded.put(0, "second", false, 5);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive(), "Second put waits for room");
+        bounded.submit(1, "connect", true);
+        assertEquals("connect", bounded.take(), "Lifecycle tasks skip the bound");
+        assertEquals("first", bounded.take());
+        writer.join(1000);
+        assertFalse(writer.isAlive(), "Taking a task makes room");
+        assertEquals("second", bounded.take());
+    }
+
+    @Test
+    public void testQuantumBoundsEachTurn() throws InterruptedException {
+        InboundScheduler<String> longTurns = new InboundScheduler<String>(3, 100, 1000);
+        for (int i = 0; i < 7; i++) {
+            longTurns.submit(0, "a" + i, false);
+        }
+        for (int i = 0; i < 4; i++) {
+            longTurns.submit(1, "b" + i, false);
+        }
+        longTurns.submit(2, "c0", false);
+        String[] expected = {
+            "a0", "a1", "a2", "b0", "b1", "b2", "c0",
+            "a3", "a4", "a5", "b3",
+            "a6"
+        };
+        for (String task : expected) {
+            assertEquals(task, longTurns.take());
+        }
+        assertTrue(longTurns.isEmpty());
+    }
+
+    @Test
+    public void testQuantumOfOneAlternates() throws InterruptedException {
+        InboundScheduler<String> shortTurns = new InboundScheduler<String>(1, 100, 1000);
+        for (int i = 0; i < 3; i++) {
+            shortTurns.submit(0, "a" + i, false);
+            shortTurns.submit(1, "b" + i, false);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals("a" + i, shortTurns.take());
+            assertEquals("b" + i, shortTurns.take());
+        }
+    }
+
+    @Test
+    public void testLateConnectionJoinsBackOfRotation() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(0, "a" + i, false);
+            scheduler.submit(1, "b" + i, false);
+        }
+        assertEquals("a0", scheduler.take());
+        scheduler.submit(2, "c0", false);
+        assertEquals("a1", scheduler.take(), "A turn is not cut short by a newcomer");
+        assertEquals("b0", scheduler.take());
+        assertEquals("b1", scheduler.take());
+        assertEquals("c0", scheduler.take(), "Newcomers wait behind those already queued");
+        assertEquals("a2", scheduler.take());
+    }
+
+    @Test
+    public void testDrainedConnectionRescheduled() throws InterruptedException {
+        scheduler.submit(0, "a0", false);
+        assertEquals("a0", scheduler.take());
+        scheduler.submit(1, "b0", false);
+        assertEquals("b0", scheduler.take(), "A drained inbox gives up its turn");
+        scheduler.submit(0, "a1", false);
+        assertEquals("a1", scheduler.take(), "Its next task schedules it again");
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducersKeepOrder() throws InterruptedException {
+        final int connections = 4;
+        final int tasks = 2000;
+        InboundScheduler<String> shared = new InboundScheduler<String>(2, 16, 1000);
+        Thread[] producers = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            final int connectionId = c;
+            producers[c] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < tasks; i++) {
+                        shared.put(connectionId, connectionId + ":" + i, false, 1);
+                    }
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers[c].start();
+        }
+        int[] next = new int[connections];
+        for (int n = 0; n < connections * tasks; n++) {
+            String[] task = shared.take().split(":");
+            int connectionId = Integer.parseInt(task[0]);
+            assertEquals(next[connectionId]++, Integer.parseInt(task[1]),
+                "A connection's tasks are taken in order");
+        }
+        for (Thread producer : producers) {
+            producer.join(1000);
+            assertFalse(producer.isAlive());
+        }
+        assertTrue(shared.isEmpty());
+    }
+}
@@ -0,0 +1,48 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests the framing of request lines by {@link LineReader}.
+ */
+public class LineReaderTest {
+
+    private LineReader reader(String text, int maxLineLength) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new LineReader(new ByteArrayInputStream(bytes), 
+            StandardCharsets.UTF_8, maxLineLength);
+    }
+
+    @Test
+    public void testLineTerminators() throws IOException {
+        LineReader reader = reader("NICK a\r\nNICK b\nNICK c\rNICK d", 20);
+        assertEquals("NICK a", reader.readLine());
+        assertEquals("NICK b", reader.readLine());
+        assertEquals("NICK c", reader.readLine());
+        assertEquals("NICK d", reader.readLine(), "Last line needs no terminator");
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testOversizedLineDiscarded() throws IOException {
+        LineReader reader = reader("MESG java :0123456789\nJOIN java\n", 10);
+        assertEquals("", reader.readLine());
+        assertTrue(reader.isOversized());
+        assertEquals(0, reader.getLineBytes());
+        assertEquals("JOIN java", reader.readLine(), "Next line is read normally");
+        assertFalse(reader.isOversized());
+    }
+
+    @Test
+    public void testLineBytesCountEncoding() throws IOException {
+        LineReader reader = reader("MESG java :caf\u00e9 \ud83d\ude00\nJOIN java\r\n", 40);
+        assertEquals("MESG java :caf\u00e9 \ud83d\ude00", reader.readLine());
+        assertEquals(11 + 5 + 1 + 4, reader.getLineBytes(),
+            "Counted in bytes of the stream, not in chars");
+        assertEquals("JOIN java", reader.readLine());
+        assertEquals(9, reader.getLineBytes(), "The terminator is not counted");
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests indexing, searching and eviction of a {@link MessageIndex}.
+ */
+public class MessageIndexTest {
+    @TempDir
+    Path dir;
+
+    private ServerLog log;
+    private MessageIndex index;
+
+    @BeforeEach
+    public void setUp() {
+        log = new ServerLog(ServerLog.Level.ERROR, 1, 0, 16, System.out);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (index != null) {
+            index.close();
+        }
+        log.close();
+    }
+
+    @Test
+    public void testWordsAreLowerCaseRuns() {
+        assertEquals(Arrays.asList("hello", "java", "8", "world"),
+            MessageIndex.wordsOf("Hello, Java-8 world!"));
+    }
+
+    @Test
+    public void testSearchMatchesEveryWord() throws InterruptedException {
+        index = new MessageIndex(1024 * 1024, 1024, log);
+        index.offer("java", 1, ":alice MESG java :garbage collection pauses");
+        index.offer("java", 2, ":bob MESG java :the collection framework");
+        index.offer("java", 3, ":alice MESG java :GC pauses again, garbage everywhere");
+        index.offer("python", 4, ":carol MESG python :garbage collection too");
+        index.awaitIdle();
+
+        assertEquals(Arrays.asList(1L, 3L), index.search("java", "garbage pauses", 10));
+        assertEquals(Arrays.asList(1L, 2L), index.search("java", "COLLECTION", 10));
+        assertEquals(Arrays.asList(3L), index.search("java", "garbage", 1),
+            "The latest matches are kept");
+        assertTrue(index.search("java", "alice", 10).isEmpty(), "Senders are not indexed");
+        assertTrue(index.search("java", "!!", 10).isEmpty());
+    }
+
+    @Test
+    public void testSearchSpansSegments() throws InterruptedException {
+        index = new MessageIndex(64 * 1024 * 1024, 64 * 1024, log);
+        int span = MessageIndex.SEGMENT_SPAN;
+        for (long sequence = 1; sequence <= 3L * span; sequence++) {
+            String word = sequence % 1000 == 0 ? "needle" : "hay";
+            index.offer("java", sequence, ":alice MESG java :" + word + " " + sequence);
+        }
+        index.awaitIdle();
+
+        assertEquals(Arrays.asList(10000L, 11000L, 12000L),
+            index.search("java", "needle", 3));
+        assertEquals(Arrays.asList(5000L), index.search("java", "needle 5000", 10));
+    }
+
+    @Test
+    public void testOldestSegmentsEvictedOverBudget() throws InterruptedException {
+        index = new MessageIndex(32 * 1024, 64 * 1024, log);
+        int span = MessageIndex.SEGMENT_SPAN;
+        for (long sequence = 1; sequence <= 8L * span; sequence++) {
+            index.offer("java", sequence, ":alice MESG java :common tag" + sequence / span);
+        }
+        index.awaitIdle();
+
+        assertTrue(index.size() <= 32 * 1024);
+        assertTrue(index.search("java", "tag0", 10).isEmpty(), "Oldest messages evicted");
+        assertEquals(Arrays.asList(8L * span), index.search("java", "tag8", 10));
+        assertEquals(10, index.search("java", "common", 10).size());
+    }
+
+    @Test
+    public void testRemoveForgetsChannel() throws InterruptedException {
+        index = new MessageIndex(1024 * 1024, 1024, log);
+        index.offer("java", 1, ":alice MESG java :hello");
+        index.awaitIdle();
+        assertTrue(index.size() > 0);
+
+        index.remove("java");
+        assertTrue(index.search("java", "hello", 10).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testBackfillFromMessageLog() throws Exception {
+        MessageLog messageLog = new MessageLog(dir, StandardCharsets.UTF_8, 64 * 1024, 0, 0, log);
+        messageLog.append("java", ":alice MESG java :lambda expressions");
+        messageLog.append("java", ":bob MESG java :streams and lambda");
+        index = new MessageIndex(1024 * 1024, 1024, log);
+
+        index.backfill(messageLog, Collections.singleton("java"), StandardCharsets.UTF_8);
+        long live = messageLog.append("java", ":carol MESG java :more lambda");
+        index.offer("java", live, ":carol MESG java :more lambda");
+        index.awaitIdle();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), index.search("java", "lambda", 10));
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests appending, paging and retention of a {@link MessageLog}.
+ */
+public class MessageLogTest {
+    @TempDir
+    Path dir;
+
+    private ServerLog log;
+
+    @BeforeEach
+    public void setUp() {
+        log = new ServerLog(ServerLog.Level.ERROR, 1, 0, 16, System.out);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        log.close();
+    }
+
+    private MessageLog open(long maxBytesPerChannel) throws IOException {
+        return new MessageLog(dir, StandardCharsets.UTF_8, 64 * 1024, 0,
+                maxBytesPerChannel, log);
+    }
+
+    private static String text(MessageLog.Entry entry) {
+        ByteBuffer line = entry.getLine();
+        byte[] bytes = new byte[line.remaining()];
+        line.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testReadsLatestAndEarlierPages() throws IOException {
+        MessageLog messageLog = open(0);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, messageLog.append("java", ":alice MESG java :" + i));
+        }
+
+        List<MessageLog.Entry> latest = messageLog.read("java", 0, 3);
+        assertEquals(3, latest.size());
+        assertEquals(8, latest.get(0).getSequence());
+        assertEquals(":alice MESG java :10", text(latest.get(2)));
+
+        List<MessageLog.Entry> earlier = messageLog.read("java", 8, 3);
+        assertEquals(5, earlier.get(0).getSequence());
+        assertEquals(":alice MESG java :7", text(earlier.get(2)));
+
+        assertEquals(2, messageLog.read("java", 3, 5).size());
+        assertTrue(messageLog.read("python", 0, 5).isEmpty());
+    }
+
+    @Test
+    public void testReopenContinuesSequence() throws IOException {
+        MessageLog messageLog = open(0);
+        messageLog.append("java", ":alice MESG java :first");
+        messageLog.append("java", ":bob MESG java :second");
+
+        MessageLog reopened = open(0);
+        List<MessageLog.Entry> entries = reopened.read("java", 0, 10);
+        assertEquals(2, entries.size());
+        assertEquals(":bob MESG java :second", text(entries.get(1)));
+        assertEquals(3, reopened.append("java", ":alice MESG java :third"));
+    }
+
+    @Test
+    public void testPagesSpanSegments() throws IOException {
+        MessageLog messageLog = open(0);
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        for (int i = 1; i <= 200; i++) {
+            messageLog.append("java", i + " " + new String(filler));
+        }
+        assertTrue(segments("java") > 2);
+
+        List<MessageLog.Entry> entries = messageLog.read("java", 150, 100);
+        assertEquals(100, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(50 + i, entries.get(i).getSequence());
+            assertTrue(text(entries.get(i)).startsWith((50 + i) + " "));
+        }
+    }
+
+    @Test
+    public void testSizeLimitDropsOldestSegments() throws IOException {
+        MessageLog messageLog = open(128 * 1024);
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        for (int i = 1; i <= 300; i++) {
+            messageLog.append("java", i + " " + new String(filler));
+        }
+        messageLog.sweep();
+
+        assertEquals(2, segments("java"));
+        List<MessageLog.Entry> entries = messageLog.read("java", 0, 300);
+        assertTrue(entries.size() < 300);
+        assertEquals(300, entries.get(entries.size() - 1).getSequence());
+    }
+
+    @Test
+    public void testRetainOnlyDeletesOtherChannels() throws IOException {
+        MessageLog messageLog = open(0);
+        messageLog.append("java", ":alice MESG java :hi");
+        messageLog.append("python", ":bob MESG python :hi");
+
+        messageLog.retainOnly(Collections.singleton("java"));
+
+        assertFalse(Files.exists(dir.resolve("python")));
+        assertTrue(messageLog.read("python", 0, 5).isEmpty());
+        assertEquals(1, messageLog.read("java", 0, 5).size());
+    }
+
+    private long segments(String channel) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir.resolve(channel))) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests that a {@link ModelSnapshot} and the journal records after it restore
+ * the state of a {@link ServerModel}.
+ */
+public class ModelSnapshotTest {
+    @TempDir
+    Path dir;
+
+    private Path journalPath;
+    private Path snapshotPath;
+    private ServerModel model;
+    private CommandJournal journal;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        journalPath = dir.resolve("server.journal");
+        snapshotPath = dir.resolve("server.journal.snapshot");
+        model = new ServerModel();
+        journal = CommandJournal.open(journalPath, 5);
+        model.setJournal(journal);
+        model.registerUser(0);
+        model.registerUser(1);
+        model.setResumeToken(0, "secret");
+        new NicknameCommand(0, "User0", "alice").updateServerModel(model);
+        new CreateCommand(0, "alice", "java", true).updateServerModel(model);
+        new InviteCommand(0, "alice", "java", "User1").updateServerModel(model);
+        new SlowCommand(0, "alice", "java", 12).updateServerModel(model);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        journal.close();
+    }
+
+    private ServerModel restore() throws IOException {
+        journal.flush();
+        ServerModel restored = new ServerModel();
+        long position = ModelSnapshot.load(snapshotPath, restored);
+        CommandJournal.replay(journalPath, restored, position);
+        return restored;
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        ModelSnapshot.capture(model, journal.position()).write(snapshotPath);
+
+        ServerModel restored = restore();
+        assertEquals(model.getRegisteredUsers(), restored.getRegisteredUsers());
+        assertEquals(model.getUsersInChannel("java"), restored.getUsersInChannel("java"));
+        assertEquals("alice", restored.getOwner("java"));
+        assertTrue(restored.isInviteOnly("java"));
+        assertEquals(12, restored.getSlowMode("java"));
+        assertTrue(restored.isDetached(1));
+        restored.registerUser(7);
+        assertEquals("alice", restored.resumeUser("secret", 7), "Resume tokens are kept");
+    }
+
+    @Test
+    public void testJournalAfterSnapshotReplayed() throws IOException {
+        ModelSnapshot snapshot = ModelSnapshot.capture(model, journal.position());
+        new CreateCommand(1, "User1", "cobol", false).updateServerModel(model);
+        snapshot.write(snapshotPath);
+
+        ServerModel restored = restore();
+        assertEquals("User1", restored.getOwner("cobol"), "Later records come from the journal");
+        assertEquals(model.getChannels(), restored.getChannels());
+    }
+
+    @Test
+    public void testTruncateKeepsLaterRecords() throws IOException {
+        ModelSnapshot snapshot = ModelSnapshot.capture(model, journal.position());
+        new CreateCommand(1, "User1", "cobol", false).updateServerModel(model);
+        journal.flush();
+        long before = Files.size(journalPath);
+        snapshot.write(snapshotPath);
+        journal.truncateBefore(snapshot.getJournalPosition());
+        assertTrue(Files.size(journalPath) < before);
+
+        model.deregisterUser(0);
+        ServerModel restored = restore();
+        assertEquals(model.getRegisteredUsers(), restored.getRegisteredUsers());
+        assertEquals(model.getChannels(), restored.getChannels());
+    }
+
+    @Test
+    public void testJournalReopenedAfterSnapshot() throws IOException {
+        ModelSnapshot snapshot = ModelSnapshot.capture(model, journal.position());
+        snapshot.write(snapshotPath);
+        journal.truncateBefore(snapshot.getJournalPosition());
+        journal.close();
+
+        ServerModel restored = new ServerModel();
+        long position = ModelSnapshot.load(snapshotPath, restored);
+        CommandJournal.replay(journalPath, restored, position);
+        journal = CommandJournal.open(journalPath, 5, position);
+        restored.setJournal(journal);
+        restored.deleteChannel("java");
+
+        ServerModel again = restore();
+        assertTrue(again.getChannels().isEmpty());
+        assertEquals(restored.getRegisteredUsers(), again.getRegisteredUsers());
+    }
+}
@@ -0,0 +1,48 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests claiming and freeing nicknames in a {@link NicknameRegistry}.
+ */
+public class NicknameRegistryTest {
+
+    @Test
+    public void testRegisterTakesSmallestFreeDefault() {
+        NicknameRegistry registry = new NicknameRegistry();
+        assertEquals("User0", registry.register(0));
+        assertEquals("User1", registry.register(1));
+        registry.release(0);
+        assertEquals("User0", registry.register(2), "Freed defaults are reused");
+        assertEquals("User0", registry.getNickname(2));
+        assertNull(registry.getNickname(0));
+    }
+
+    @Test
+    public void testRenameClaimsAndFrees() {
+        NicknameRegistry registry = new NicknameRegistry();
+        registry.register(0);
+        registry.register(1);
+        assertEquals("User0", registry.rename(0, "alice"));
+        assertNull(registry.rename(1, "alice"), "Nickname held by another user");
+        assertNull(registry.rename(0, "alice"), "Nickname held by the user");
+        assertNull(registry.rename(1, "User0"), "Old nickname is held until released");
+        assertEquals(0, registry.getUserId("User0"));
+        registry.release(0, "User0");
+        assertEquals("User1", registry.rename(1, "User0"), "Old nickname was freed");
+        assertEquals("User0", registry.getNickname(1));
+    }
+
+    @Test
+    public void testReleaseKeepsNewHolder() {
+        NicknameRegistry registry = new NicknameRegistry();
+        registry.register(0);
+        registry.rename(0, "alice");
+        registry.release(0, "User0");
+        registry.release(0);
+        registry.register(1);
+        assertEquals("User0", registry.rename(1, "alice"));
+        registry.release(0);
+        assertEquals("alice", registry.getNickname(1), "A stale release frees nothing");
+        assertNull(registry.rename(2, "alice"));
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests queueing, bounding and persistence of an {@link OfflineQueue}.
+ */
+public class OfflineQueueTest {
+    @TempDir
+    Path dir;
+
+    private ServerLog log;
+
+    @BeforeEach
+    public void setUp() {
+        log = new ServerLog(ServerLog.Level.ERROR, 1, 0, 16, System.out);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        log.close();
+    }
+
+    private static String drain(OfflineQueue queue, String nickname) throws Exception {
+        CompletableFuture<byte[]> notices = new CompletableFuture<>();
+        if (!queue.drain(nickname, notices::complete)) {
+            return null;
+        }
+        return new String(notices.get(5, TimeUnit.SECONDS), StandardCharsets.UTF_8);
+    }
+
+    private static String lines(String... notices) {
+        StringBuilder text = new StringBuilder();
+        for (String notice : notices) {
+            text.append(notice).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testDrainReturnsNoticesInOrder() throws Exception {
+        OfflineQueue queue = new OfflineQueue(dir, 10, StandardCharsets.UTF_8, log);
+        assertTrue(queue.add("bob", ":alice INVITE java bob"));
+        assertTrue(queue.add("bob", ":alice KICK java bob"));
+        assertEquals(2, queue.size("bob"));
+
+        assertEquals(lines(":alice INVITE java bob", ":alice KICK java bob"),
+            drain(queue, "bob"));
+        assertNull(drain(queue, "bob"), "Draining empties the queue");
+        assertNull(drain(queue, "carol"));
+        queue.close();
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        OfflineQueue queue = new OfflineQueue(dir, 2, StandardCharsets.UTF_8, log);
+        assertTrue(queue.add("bob", ":alice INVITE a bob"));
+        assertTrue(queue.add("bob", ":alice INVITE b bob"));
+        assertFalse(queue.add("bob", ":alice INVITE c bob"));
+        assertTrue(queue.add("carol", ":alice INVITE c carol"), "Bounds are per nickname");
+        assertEquals(lines(":alice INVITE a bob", ":alice INVITE b bob"),
+            drain(queue, "bob"));
+        queue.close();
+    }
+
+    @Test
+    public void testNoticesSurviveReopen() throws Exception {
+        OfflineQueue queue = new OfflineQueue(dir, 2, StandardCharsets.UTF_8, log);
+        queue.add("bob", ":alice INVITE java bob");
+        queue.close();
+
+        OfflineQueue reopened = new OfflineQueue(dir, 2, StandardCharsets.UTF_8, log);
+        assertEquals(1, reopened.size("bob"));
+        assertTrue(reopened.add("bob", ":alice KICK java bob"));
+        assertFalse(reopened.add("bob", ":alice INVITE java bob"), "Reopening keeps the count");
+        reopened.close();
+    }
+
+    @Test
+    public void testRetainOnlyAndDiscard() throws Exception {
+        OfflineQueue queue = new OfflineQueue(dir, 10, StandardCharsets.UTF_8, log);
+        queue.add("bob", ":alice INVITE java bob");
+        queue.add("carol", ":alice INVITE java carol");
+        queue.add("dave", ":alice INVITE java dave");
+
+        queue.retainOnly(Collections.singleton("bob"));
+        queue.discard("bob");
+        queue.close();
+
+        OfflineQueue reopened = new OfflineQueue(dir, 10, StandardCharsets.UTF_8, log);
+        assertEquals(0, reopened.size("bob"));
+        assertEquals(0, reopened.size("carol"));
+        assertEquals(0, reopened.size("dave"));
+    }
+}
@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests {@link PersistentMap} against {@link HashMap}.
+ */
+public class PersistentMapTest {
+
+    /**
+     * A key whose hash only has a few values, so that keys collide.
+     */
+    private static final class Clash {
+        private final int id;
+
+        Clash(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Clash && ((Clash) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % 3 == 0 ? 0x80000000 : id % 7;
+        }
+    }
+
+    private static <K, V> void assertMatches(Map<K, V> expected, PersistentMap<K, V> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<K, V> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+        Map<K, V> seen = new HashMap<>();
+        actual.forEach((key, value) -> assertNull(seen.put(key, value), "Each key once"));
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void testPlusAndMinus() {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        assertTrue(map.isEmpty());
+        map = map.plus("a", 1).plus("b", 2).plus("a", 3);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get("a"));
+        assertNull(map.get("c"));
+        assertNull(map.get(null));
+        assertSame(map, map.minus("c"), "Unchanged maps are not copied");
+        map = map.minus("a").minus("b");
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testOldVersionsAreUnchanged() {
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.plus(i, i);
+        }
+        PersistentMap<Integer, Integer> before = map;
+        for (int i = 0; i < 1000; i += 2) {
+            map = map.minus(i).plus(i + 1, -i);
+        }
+        assertEquals(1000, before.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), before.get(i));
+        }
+        assertEquals(500, map.size());
+        assertNull(map.get(0));
+        assertEquals(Integer.valueOf(0), map.get(1));
+    }
+
+    @Test
+    public void testRandomChangesMatchHashMap() {
+        Random random = new Random(46);
+        Map<Integer, Integer> expected = new HashMap<>();
+        PersistentMap<Integer, Integer> actual = PersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            // Spread keys over the whole hash, not only the low bits
+            int key = random.nextInt(2000) * 0x9E3779B1;
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.minus(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.plus(key, i);
+            }
+        }
+        assertMatches(expected, actual);
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        Map<Clash, Integer> expected = new HashMap<>();
+        PersistentMap<Clash, Integer> actual = PersistentMap.empty();
+        for (int i = 0; i < 100; i++) {
+            expected.put(new Clash(i), i);
+            actual = actual.plus(new Clash(i), i);
+        }
+        assertMatches(expected, actual);
+        for (int i = 0; i < 100; i += 3) {
+            expected.remove(new Clash(i));
+            actual = actual.minus(new Clash(i));
+        }
+        assertMatches(expected, actual);
+        for (int i = 0; i < 100; i++) {
+            expected.remove(new Clash(i));
+            actual = actual.minus(new Clash(i));
+        }
+        assertTrue(actual.isEmpty());
+    }
+}
@@ -0,0 +1,699 @@
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests running the server headless through {@link ServerLauncher}, and
+ * reading its settings with {@link ServerConfig}.
+ */
+public class ServerLauncherTest {
+
+    /**
+     * A connection to a test server, read and written a line at a time.
+     */
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException {
+            this(new Socket("127.0.0.1", port));
+        }
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        String read() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Makes the configuration of a server on any free port of the loopback
+     * address, for a test to add its own settings to.
+     */
+    private static ServerConfig localConfig() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setBindAddress("127.0.0.1");
+        return config;
+    }
+
+    private static ServerLauncher startServer(ServerConfig config) throws Exception {
+        ServerLauncher launcher = new ServerLauncher(config);
+        launcher.start();
+        return launcher;
+    }
+
+    private static void stopServer(ServerLauncher launcher) throws InterruptedException {
+        launcher.stop();
+        assertTrue(launcher.awaitTermination(5, TimeUnit.SECONDS), "Server stops");
+    }
+
+    /**
+     * Has a member join a channel, and checks that the member and the
+     * channel's owner hear of it.
+     */
+    private static void join(String channel, String nickname, Client member, Client owner)
+            throws IOException {
+        member.send("JOIN " + channel);
+        assertEquals(":" + nickname + " JOIN " + channel, member.read());
+        assertTrue(member.read().startsWith(":" + nickname + " NAMES " + channel + " "));
+        assertEquals(":" + nickname + " JOIN " + channel, owner.read());
+    }
+
+    @Test
+    public void testConfigFromArgs() throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(new String[] {
+            "--port=6667", "--mode=single", "--rateLimit.MESG=5/10", "--quantum=4"
+        });
+        assertEquals(6667, config.getPort());
+        assertEquals(ServerConfig.BackendMode.SINGLE, config.getBackendMode());
+        assertEquals(10, config.getCommandRateLimit(CommandType.MESG).getBurst());
+        assertEquals(4, config.getSchedulerQuantum());
+        assertNull(config.getUserRateLimit(), "Unset values keep their default");
+    }
+
+    @Test
+    public void testConfigRejectsUnknownKey() {
+        assertThrows(IllegalArgumentException.class,
+            () -> ServerConfig.fromArgs(new String[] {"--prot=6667"}));
+    }
+
+    @Test
+    public void testStartConnectStop() throws Exception {
+        ServerLauncher launcher = startServer(localConfig());
+        try (Client client = new Client(launcher.getPort())) {
+            assertEquals(":User0 CONNECT", client.read());
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testResumeAfterDrop() throws Exception {
+        ServerConfig config = localConfig();
+        config.setResumeGraceSeconds(30);
+        ServerLauncher launcher = startServer(config);
+        int port = launcher.getPort();
+        try (Client watcher = new Client(port)) {
+            assertTrue(watcher.read().startsWith(":User0 CONNECT "));
+
+            String token;
+            try (Client dropped = new Client(port)) {
+                String connect = dropped.read();
+                token = connect.substring(connect.lastIndexOf(' ') + 1);
+                dropped.send("NICK alice");
+                assertEquals(":User1 NICK alice", dropped.read());
+                dropped.send("CREATE java 0");
+                assertEquals(":alice CREATE java 0", dropped.read());
+            }
+            watcher.send("JOIN java");
+            assertEquals(":User0 JOIN java", watcher.read(), "Channel outlives the drop");
+            watcher.read();
+
+            try (Client resumed = new Client(port)) {
+                assertTrue(resumed.read().startsWith(":User1 CONNECT "));
+                resumed.send("RESUME " + token);
+                assertEquals(":User1 NICK alice", resumed.read());
+                resumed.send("MESG java :back");
+                assertEquals(":alice MESG java :back", resumed.read());
+                assertEquals(":alice MESG java :back", watcher.read(),
+                    "No QUIT or JOIN was sent for the resumed session");
+
+                resumed.send("RESUME " + token);
+                assertEquals(":alice ERROR 411", resumed.read());
+            }
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testStandbyTakesOverUnderLoad(@TempDir Path dir) throws Exception {
+        ServerConfig primaryConfig = localConfig();
+        primaryConfig.setJournalPath(dir.resolve("primary.journal").toString());
+        primaryConfig.setReplicationPort(0);
+        primaryConfig.setResumeGraceSeconds(30);
+        ServerLauncher primary = startServer(primaryConfig);
+        int port = primary.getPort();
+
+        ServerConfig standbyConfig = new ServerConfig();
+        standbyConfig.setPort(port);
+        standbyConfig.setBindAddress("127.0.0.1");
+        standbyConfig.setJournalPath(dir.resolve("standby.journal").toString());
+        standbyConfig.setReplicateFrom("127.0.0.1:" + primary.getReplicationPort());
+        StandbyServer standby = new StandbyServer(standbyConfig);
+        standby.start();
+
+        Client client = new Client(port);
+        String token = client.read();
+        assertTrue(token.startsWith(":User0 CONNECT "));
+        token = token.substring(token.lastIndexOf(' ') + 1);
+        client.send("NICK alice");
+        assertEquals(":User0 NICK alice", client.read());
+        client.send("CREATE java 0");
+        assertEquals(":alice CREATE java 0", client.read());
+
+        Thread load = new Thread(() -> {
+            try {
+                for (int i = 0; client.read() != null; i++) {
+                    client.send("CREATE c" + i + " 0");
+                }
+            } catch (IOException iox) {
+                // The primary went away
+            }
+        });
+        client.send("MESG java :load");
+        load.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (standby.getAppliedPosition() < 4096 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(standby.getAppliedPosition() >= 4096, "Standby follows the primary");
+
+        stopServer(primary);
+        client.close();
+        load.join();
+        assertEquals(port, standby.awaitPromotion(5, TimeUnit.SECONDS), "Standby takes over");
+
+        try (Client reconnected = new Client(port)) {
+            String connect = reconnected.read();
+            String user = connect.substring(1, connect.indexOf(' '));
+            reconnected.send("NICK alice");
+            assertEquals(":" + user + " ERROR 500", reconnected.read(), "The nickname is held");
+            reconnected.send("RESUME " + token);
+            assertEquals(":" + user + " NICK alice", reconnected.read(), "Session is resumable");
+            reconnected.send("MESG java :back");
+            assertEquals(":alice MESG java :back", reconnected.read());
+            reconnected.send("MESG c0 :back");
+            assertEquals(":alice MESG c0 :back", reconnected.read(), "Channels made under load");
+        }
+        standby.stop();
+        assertTrue(standby.awaitTermination(5, TimeUnit.SECONDS), "Standby stops");
+    }
+
+    @Test
+    public void testShardedChannelsAndNicknames() throws Exception {
+        checkChannelsAndNicknames(ServerConfig.BackendMode.SHARDED);
+    }
+
+    @Test
+    public void testActorChannelsAndNicknames() throws Exception {
+        checkChannelsAndNicknames(ServerConfig.BackendMode.ACTOR);
+    }
+
+    private void checkChannelsAndNicknames(ServerConfig.BackendMode mode) throws Exception {
+        ServerConfig config = localConfig();
+        config.setBackendMode(mode);
+        config.setModelShards(4);
+        ServerLauncher launcher = startServer(config);
+        try (Client alice = new Client(launcher.getPort());
+             Client bob = new Client(launcher.getPort())) {
+            assertEquals(":User0 CONNECT", alice.read());
+            assertEquals(":User1 CONNECT", bob.read());
+
+            alice.send("NICK alice");
+            assertEquals(":User0 NICK alice", alice.read());
+            bob.send("NICK alice");
+            assertEquals(":User1 ERROR " + ServerResponse.NAME_ALREADY_IN_USE.getCode(),
+                bob.read(), "Nicknames are unique across threads");
+            bob.send("NICK bob");
+            assertEquals(":User1 NICK bob", bob.read());
+
+            for (int i = 0; i < 8; i++) {
+                alice.send("CREATE c" + i + " 0");
+                assertEquals(":alice CREATE c" + i + " 0", alice.read());
+                bob.send("JOIN c" + i);
+                assertEquals(":bob JOIN c" + i, bob.read());
+                assertEquals(":bob NAMES c" + i + " :@alice bob", bob.read());
+                assertEquals(":bob JOIN c" + i, alice.read());
+            }
+            alice.send("CREATE c5 0");
+            assertEquals(":alice ERROR " + ServerResponse.CHANNEL_ALREADY_EXISTS.getCode(),
+                alice.read());
+
+            alice.send("NICK alicia");
+            assertEquals(":alice NICK alicia", alice.read());
+            alice.send("MESG c3 :renamed");
+            assertEquals(":alice NICK alicia", bob.read());
+            assertEquals(":alicia MESG c3 :renamed", bob.read(),
+                "Friends in several channels are told once");
+            bob.send("NICK alice");
+            assertEquals(":bob NICK alice", bob.read(), "The old nickname is freed");
+            bob.send("NICK bob");
+            assertEquals(":alice NICK bob", bob.read());
+
+            bob.send("LEAVE c1");
+            assertEquals(":bob LEAVE c1", bob.read());
+            bob.socket.shutdownOutput();
+            assertEquals(":alicia MESG c3 :renamed", alice.read());
+            assertEquals(":bob NICK alice", alice.read());
+            assertEquals(":alice NICK bob", alice.read());
+            assertEquals(":bob LEAVE c1", alice.read());
+            assertEquals(":bob QUIT", alice.read());
+            alice.send("MESG c7 :alone");
+            assertEquals(":alicia MESG c7 :alone", alice.read(), "QUIT is sent once");
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testChannelRings() throws Exception {
+        ServerConfig config = localConfig();
+        config.setChannelRingSize(4);
+        ServerLauncher launcher = startServer(config);
+        try (Client alice = new Client(launcher.getPort());
+             Client bob = new Client(launcher.getPort())) {
+            assertEquals(":User0 CONNECT", alice.read());
+            assertEquals(":User1 CONNECT", bob.read());
+
+            for (String channel : new String[] {"c0", "c1"}) {
+                alice.send("CREATE " + channel + " 0");
+                assertEquals(":User0 CREATE " + channel + " 0", alice.read());
+                join(channel, "User1", bob, alice);
+            }
+            for (int i = 0; i < 3; i++) {
+                alice.send("MESG c" + (i % 2) + " :m" + i);
+            }
+            alice.send("LEAVE c0");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(":User0 MESG c" + (i % 2) + " :m" + i, alice.read());
+                assertEquals(":User0 MESG c" + (i % 2) + " :m" + i, bob.read(),
+                    "Messages across channels arrive in the order they were sent");
+            }
+            assertEquals(":User0 LEAVE c0", bob.read(), "Ring messages go first");
+            assertEquals(":User0 LEAVE c0", alice.read());
+
+            alice.send("CREATE c0 0");
+            assertEquals(":User0 CREATE c0 0", alice.read());
+            alice.send("MESG c0 :private");
+            assertEquals(":User0 MESG c0 :private", alice.read());
+            alice.send("MESG c1 :shared");
+            assertEquals(":User0 MESG c1 :shared", bob.read(),
+                "A new channel of the same name gets a new ring");
+
+            bob.send("LEAVE c1");
+            assertEquals(":User1 LEAVE c1", bob.read());
+            assertEquals(":User0 MESG c1 :shared", alice.read());
+            assertEquals(":User1 LEAVE c1", alice.read());
+            alice.send("MESG c1 :alone");
+            assertEquals(":User0 MESG c1 :alone", alice.read());
+            bob.send("MESG c1 :gone");
+            assertEquals(":User1 ERROR " + ServerResponse.USER_NOT_IN_CHANNEL.getCode(),
+                bob.read(), "Nothing more from a channel that was left");
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testAnnounceReachesEveryConnection() throws Exception {
+        ServerConfig config = localConfig();
+        config.setOperatorKey("s3cret");
+        ServerLauncher launcher = startServer(config);
+        Client[] clients = new Client[3];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new Client(launcher.getPort());
+                assertEquals(":User" + i + " CONNECT", clients[i].read());
+            }
+            clients[1].send("ANNOUNCE guess :not me");
+            assertEquals(":User1 ERROR " + ServerResponse.NOT_OPERATOR.getCode(),
+                clients[1].read());
+
+            clients[0].send("ANNOUNCE s3cret :restarting at noon");
+            for (Client client : clients) {
+                assertEquals(":User0 ANNOUNCE :restarting at noon", client.read(),
+                    "Users in no channel hear it too");
+            }
+        } finally {
+            for (Client client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testPrivateMessages() throws Exception {
+        ServerLauncher launcher = startServer(localConfig());
+        try (Client alice = new Client(launcher.getPort());
+             Client bob = new Client(launcher.getPort())) {
+            assertEquals(":User0 CONNECT", alice.read());
+            assertEquals(":User1 CONNECT", bob.read());
+
+            alice.send("PRIVMSG User1 :psst");
+            assertEquals(":User0 PRIVMSG User1 :psst", bob.read());
+            bob.send("PRIVMSG User0 :what?");
+            assertEquals(":User1 PRIVMSG User0 :what?", alice.read(),
+                "Only the target is written to");
+            alice.send("PRIVMSG carol :hello?");
+            assertEquals(":User0 ERROR " + ServerResponse.NO_SUCH_RECIPIENT.getCode(),
+                alice.read());
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testNoticesQueuedForParkedUser(@TempDir Path dir) throws Exception {
+        ServerConfig config = localConfig();
+        config.setResumeGraceSeconds(30);
+        config.setOfflineQueuePath(dir.toString());
+        checkNoticesQueuedForParkedUser(config);
+    }
+
+    @Test
+    public void testNoticesQueuedForParkedUserWithFanout(@TempDir Path dir) throws Exception {
+        ServerConfig config = localConfig();
+        config.setResumeGraceSeconds(30);
+        config.setOfflineQueuePath(dir.toString());
+        // Every broadcast goes to the fanout threads, which hand the notices
+        // they find no socket for back to the model thread
+        config.setFanoutThreads(2);
+        config.setFanoutThreshold(1);
+        checkNoticesQueuedForParkedUser(config);
+    }
+
+    private void checkNoticesQueuedForParkedUser(ServerConfig config) throws Exception {
+        ServerLauncher launcher = startServer(config);
+        int port = launcher.getPort();
+        try (Client alice = new Client(port)) {
+            assertTrue(alice.read().startsWith(":User0 CONNECT "));
+            alice.send("CREATE java 1");
+            assertEquals(":User0 CREATE java 1", alice.read());
+
+            String token;
+            try (Client dropped = new Client(port)) {
+                String connect = dropped.read();
+                token = connect.substring(connect.lastIndexOf(' ') + 1);
+            }
+            // Parking is only seen as the user being unreachable; a message
+            // to the channel ends each probe, since nothing comes back from
+            // a PRIVMSG that is delivered
+            String reply;
+            do {
+                alice.send("PRIVMSG User1 :there?");
+                alice.send("MESG java :probe");
+                reply = alice.read();
+            } while (reply.equals(":User0 MESG java :probe"));
+            assertEquals(":User0 ERROR " + ServerResponse.RECIPIENT_NOT_CONNECTED.getCode(),
+                reply);
+            assertEquals(":User0 MESG java :probe", alice.read());
+            alice.send("INVITE java User1");
+            assertEquals(":User0 INVITE java User1", alice.read());
+
+            try (Client resumed = new Client(port)) {
+                assertTrue(resumed.read().startsWith(":User2 CONNECT "));
+                resumed.send("RESUME " + token);
+                assertEquals(":User2 NICK User1", resumed.read());
+                assertEquals(":User0 INVITE java User1", resumed.read(),
+                    "The notice waited for the session to resume");
+            }
+        }
+        stopServer(launcher);
+    }
+
+    private static Socket connectWithSmallBuffer(int port) throws IOException {
+        Socket socket = new Socket();
+        // Must be set before connecting to bound the window offered
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        return socket;
+    }
+
+    @Test
+    public void testStalledRingConsumerDisconnected() throws Exception {
+        ServerConfig config = localConfig();
+        config.setLogLevel(ServerLog.Level.WARN);
+        config.setChannelRingSize(8);
+        config.setRingWriteTimeoutMillis(200);
+        ServerLauncher launcher = startServer(config);
+        int port = launcher.getPort();
+        try (Client alice = new Client(port);
+             Client bob = new Client(port);
+             // Carl joins, then never reads again
+             Client carl = new Client(connectWithSmallBuffer(port))) {
+            assertEquals(":User0 CONNECT", alice.read());
+            assertEquals(":User1 CONNECT", bob.read());
+            assertEquals(":User2 CONNECT", carl.read());
+
+            alice.send("CREATE java 0");
+            assertEquals(":User0 CREATE java 0", alice.read());
+            join("java", "User1", bob, alice);
+            join("java", "User2", carl, alice);
+            assertEquals(":User2 JOIN java", bob.read());
+
+            // Far more than the socket buffers hold, one message at a time,
+            // so that the ring is never lapped and only the stalled write
+            // can give Carl away
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                text.append('x');
+            }
+            boolean[] quit = new boolean[2];
+            for (int i = 0; i < 12000; i++) {
+                String line = ":User0 MESG java :" + i + text;
+                alice.send("MESG java :" + i + text);
+                String seen = alice.read();
+                if (seen.equals(":User2 QUIT")) {
+                    quit[0] = true;
+                    seen = alice.read();
+                }
+                assertEquals(line, seen);
+                seen = bob.read();
+                if (seen.equals(":User2 QUIT")) {
+                    quit[1] = true;
+                    seen = bob.read();
+                }
+                assertEquals(line, seen, "Bob is not held up by Carl");
+            }
+            assertTrue(quit[0] && quit[1], "Carl's QUIT was sent to the channel");
+            int received = 0;
+            try {
+                while (carl.read() != null) {
+                    received++;
+                }
+            } catch (SocketException sx) {
+                // Reset by the server
+            }
+            assertTrue(received < 12000, "Carl was disconnected");
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testChunkedMessages() throws Exception {
+        for (int ringSize : new int[] {0, 4}) {
+            ServerConfig config = localConfig();
+            config.setMessageChunkSize(4);
+            config.setChannelRingSize(ringSize);
+            ServerLauncher launcher = startServer(config);
+            try (Client alice = new Client(launcher.getPort());
+                 Client bob = new Client(launcher.getPort())) {
+                assertEquals(":User0 CONNECT", alice.read());
+                assertEquals(":User1 CONNECT", bob.read());
+                alice.send("CREATE java 0");
+                assertEquals(":User0 CREATE java 0", alice.read());
+                join("java", "User1", bob, alice);
+
+                alice.send("MESG java :hello world");
+                for (Client client : new Client[] {alice, bob}) {
+                    assertEquals(":User0 MESG+ java :hell", client.read(),
+                        "Every piece but the last is marked as continued");
+                    assertEquals(":User0 MESG+ java :o wo", client.read());
+                    assertEquals(":User0 MESG java :rld", client.read());
+                }
+                alice.send("MESG java :hi");
+                assertEquals(":User0 MESG java :hi", bob.read(),
+                    "A short message is one line");
+                alice.send("CREATE chatroom 0");
+                assertEquals(":User0 MESG java :hi", alice.read());
+                assertEquals(":User0 CREATE chatroom 0", alice.read(),
+                    "Only MESG lines are chunked");
+            }
+            stopServer(launcher);
+        }
+    }
+
+    @Test
+    public void testResumeTokensNotLogged() throws Exception {
+        ServerConfig config = localConfig();
+        config.setResumeGraceSeconds(30);
+        ByteArrayOutputStream logged = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        // The server logs to standard output
+        System.setOut(new PrintStream(logged, true, "UTF-8"));
+        String token;
+        try {
+            ServerLauncher launcher = startServer(config);
+            int port = launcher.getPort();
+            try (Client dropped = new Client(port)) {
+                String connect = dropped.read();
+                token = connect.substring(connect.lastIndexOf(' ') + 1);
+            }
+            try (Client resumed = new Client(port)) {
+                assertTrue(resumed.read().startsWith(":User1 CONNECT "));
+                // The token is refused until the drop has been seen
+                String reply;
+                do {
+                    resumed.send("RESUME " + token);
+                    reply = resumed.read();
+                } while (reply.equals(":User1 ERROR "
+                    + ServerResponse.INVALID_RESUME_TOKEN.getCode()));
+                assertEquals(":User1 NICK User0", reply);
+            }
+            stopServer(launcher);
+        } finally {
+            System.setOut(stdout);
+        }
+        String log = logged.toString("UTF-8");
+        assertTrue(log.contains(" INFO request user=1 type=RESUME "), log);
+        assertTrue(log.contains(" text=\":User0 CONNECT\""), log);
+        assertFalse(log.contains(token), "No resume token reaches the log");
+    }
+
+    @Test
+    public void testReplicationNeedsKey(@TempDir Path dir) throws Exception {
+        ServerConfig open = localConfig();
+        open.setJournalPath(dir.resolve("open.journal").toString());
+        open.setReplicationPort(0);
+        open.setReplicationBindAddress(null);
+        assertThrows(IOException.class, () -> startServer(open),
+            "Replication beyond loopback needs a key");
+
+        ServerConfig config = localConfig();
+        config.setJournalPath(dir.resolve("primary.journal").toString());
+        config.setReplicationPort(0);
+        config.setReplicationKey("s3cret");
+        ServerLauncher launcher = startServer(config);
+        for (String key : new String[] {"", "guess", "s3cret"}) {
+            try (Socket standby = new Socket("127.0.0.1", launcher.getReplicationPort())) {
+                standby.setSoTimeout(5000);
+                DataOutputStream out = new DataOutputStream(standby.getOutputStream());
+                out.writeUTF(key);
+                out.flush();
+                int first;
+                try {
+                    first = standby.getInputStream().read();
+                } catch (SocketException sx) {
+                    first = -1;
+                }
+                if (key.equals("s3cret")) {
+                    assertEquals(ReplicationSource.SNAPSHOT, first, "A keyed standby is synced");
+                } else {
+                    assertEquals(-1, first, "A standby without the key is sent nothing");
+                }
+            }
+        }
+        stopServer(launcher);
+    }
+
+    @Test
+    public void testRestartWithJournalReclaimsUser(@TempDir Path dir) throws Exception {
+        ServerConfig config = localConfig();
+        config.setJournalPath(dir.resolve("server.journal").toString());
+        assertEquals(ServerConfig.DEFAULT_JOURNAL_RESUME_GRACE_SECONDS,
+            config.getResumeGraceSeconds(), "A journal turns resume tokens on");
+        ServerLauncher launcher = startServer(config);
+        String token;
+        try (Client alice = new Client(launcher.getPort())) {
+            String connect = alice.read();
+            assertTrue(connect.startsWith(":User0 CONNECT "));
+            token = connect.substring(connect.lastIndexOf(' ') + 1);
+            alice.send("NICK alice");
+            assertEquals(":User0 NICK alice", alice.read());
+            alice.send("CREATE java 0");
+            assertEquals(":alice CREATE java 0", alice.read());
+            stopServer(launcher);
+        }
+
+        launcher = startServer(config);
+        try (Client alice = new Client(launcher.getPort())) {
+            String connect = alice.read();
+            String user = connect.substring(1, connect.indexOf(' '));
+            alice.send("RESUME " + token);
+            assertEquals(":" + user + " NICK alice", alice.read(), "Restored user reclaimed");
+            alice.send("MESG java :back");
+            assertEquals(":alice MESG java :back", alice.read(), "Its channel was restored too");
+        }
+        stopServer(launcher);
+
+        ServerConfig untokened = localConfig();
+        untokened.setJournalPath(dir.resolve("other.journal").toString());
+        untokened.setResumeGraceSeconds(0);
+        assertThrows(IOException.class, () -> startServer(untokened),
+            "Restored users could never be claimed");
+    }
+
+    @Test
+    public void testStalledRingConsumerDoesNotBlockModel() throws Exception {
+        ServerConfig config = localConfig();
+        config.setLogLevel(ServerLog.Level.WARN);
+        config.setChannelRingSize(8);
+        config.setRingWriteTimeoutMillis(200);
+        ServerLauncher launcher = startServer(config);
+        int port = launcher.getPort();
+        try (Client alice = new Client(port);
+             // Carl joins, then never reads again
+             Client carl = new Client(connectWithSmallBuffer(port))) {
+            assertEquals(":User0 CONNECT", alice.read());
+            assertEquals(":User1 CONNECT", carl.read());
+            alice.send("CREATE java 0");
+            assertEquals(":User0 CREATE java 0", alice.read());
+            join("java", "User1", carl, alice);
+
+            // Private messages are not ring messages, but are written by
+            // Carl's ring reader, whose stalled write gives him away, rather
+            // than by the model thread, which would wait on it for good
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                text.append('x');
+            }
+            boolean quit = false;
+            for (int batch = 0; batch < 120; batch++) {
+                for (int i = 0; i < 100; i++) {
+                    alice.send("PRIVMSG User1 :" + text);
+                }
+                alice.send("MESG java :probe" + batch);
+                String seen;
+                while (!(seen = alice.read()).equals(":User0 MESG java :probe" + batch)) {
+                    if (seen.equals(":User1 QUIT")) {
+                        quit = true;
+                    } else {
+                        // Carl is gone
+                        assertEquals(":User0 ERROR "
+                            + ServerResponse.NO_SUCH_RECIPIENT.getCode(), seen);
+                    }
+                }
+            }
+            assertTrue(quit, "Carl was disconnected");
+        }
+        stopServer(launcher);
+    }
+}
@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Tests level filtering, sampling, rate limiting, formatting and draining of
+ * a {@link ServerLog}.
+ */
+public class ServerLogTest {
+    private ByteArrayOutputStream bytes;
+    private PrintStream out;
+
+    @BeforeEach
+    public void setUp() throws UnsupportedEncodingException {
+        bytes = new ByteArrayOutputStream();
+        out = new PrintStream(bytes, true, "UTF-8");
+    }
+
+    private String[] lines() throws UnsupportedEncodingException {
+        String text = bytes.toString("UTF-8");
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    @Test
+    public void testLevelFilter() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.WARN, 1, 100, 16, out);
+        assertFalse(log.isEnabled(ServerLog.Level.INFO));
+        assertTrue(log.isEnabled(ServerLog.Level.ERROR));
+        log.log(ServerLog.Level.DEBUG, "debug", -1, "hidden");
+        log.log(ServerLog.Level.INFO, "info", -1, "hidden");
+        log.log(ServerLog.Level.WARN, "warn", 3, "shown");
+        log.sample(ServerLog.Level.INFO, "response", 3, null, 5, "hidden");
+        log.log(ServerLog.Level.ERROR, "error", -1, (String) null);
+        log.close();
+
+        String[] lines = lines();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" WARN warn user=3 text=\"shown\""), lines[0]);
+        assertTrue(lines[1].endsWith(" ERROR error"), lines[1]);
+    }
+
+    @Test
+    public void testSampling() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 3, 100, 16, out);
+        for (int i = 0; i < 9; i++) {
+            log.sample(ServerLog.Level.INFO, "response", 0, CommandType.MESG, i, null);
+        }
+        log.close();
+
+        String[] lines = lines();
+        assertEquals(3, lines.length, "One in every three is kept");
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].endsWith(" INFO response user=0 type=MESG bytes=" + (3 * i)),
+                lines[i]);
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 1, 5, 64, out);
+        for (int i = 0; i < 40; i++) {
+            log.sample(ServerLog.Level.INFO, "response", 0, null, i, null);
+        }
+        log.log(ServerLog.Level.INFO, "other", -1, "not limited");
+        log.close();
+
+        String[] lines = lines();
+        // The events may straddle the start of a second, and so two windows
+        assertTrue(lines.length >= 5 + 1 && lines.length <= 10 + 1,
+            lines.length + " lines");
+        assertTrue(lines[lines.length - 1].endsWith(" INFO other text=\"not limited\""),
+            "Events logged outside sampling are not limited");
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    public void testCloseDrainsRecords() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 1, 0, 1024, out);
+        for (int i = 0; i < 1000; i++) {
+            log.log(ServerLog.Level.INFO, "event", i, (String) null);
+        }
+        log.close();
+        log.log(ServerLog.Level.INFO, "late", -1, (String) null);
+
+        String[] lines = lines();
+        assertEquals(1000, lines.length, "Every record logged before close is written");
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].endsWith(" INFO event user=" + i), lines[i]);
+        }
+    }
+
+    @Test
+    public void testOverflowDropsAndReports() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 1, 0, 1, out);
+        for (int i = 0; i < 1000; i++) {
+            log.log(ServerLog.Level.INFO, "event", i, (String) null);
+        }
+        long dropped = log.getDropped();
+        log.close();
+
+        assertTrue(dropped > 0, "A full ring buffer drops records");
+        assertTrue(lines().length > 0);
+        assertTrue(String.join("\n", lines()).contains(" WARN log-overflow dropped="));
+    }
+
+    @Test
+    public void testFreeTextEscaped() throws UnsupportedEncodingException {
+        ServerLog log = new ServerLog(ServerLog.Level.INFO, 1, 100, 16, out);
+        log.log(ServerLog.Level.INFO, "request", 1,
+            "MESG java :hi\" user=0\n0 ERROR forged\\\t\u0007");
+        log.close();
+
+        String[] lines = lines();
+        assertEquals(1, lines.length, "A request cannot break a record across lines");
+        assertTrue(lines[0].endsWith(" INFO request user=1 text="
+            + "\"MESG java :hi\\\" user=0\\n0 ERROR forged\\\\\\t\\u0007\""), lines[0]);
+    }
+}
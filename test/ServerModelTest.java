@@ -1,6 +1,10 @@
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 public class ServerModelTest {
     private ServerModel model;
@@ -737,6 +741,252 @@ public class ServerModelTest {
         assertFalse(model.getChannels().contains("disney"));
     }
     
+    @Test
+    public void testValidateRejectsInvalidNickname() {
+        Command nick = new NicknameCommand(0, "User0", "!nv@l!d!");
+        assertEquals(ServerResponse.INVALID_NAME, nick.validate());
+    }
+    
+    @Test
+    public void testValidateAcceptsValidChannel() {
+        Command create = new CreateCommand(0, "User0", "disney", false);
+        assertEquals(ServerResponse.OKAY, create.validate());
+    }
+    
+    @Test
+    public void testParseWithoutSenderThenBind() {
+        enlistUsers();
+        Command create = CommandParser.parse(0, null, "CREATE disney 0");
+        create.bindSender("User0");
+        assertEquals(new CreateCommand(0, "User0", "disney", false), create);
+    }
+    
+    @Test
+    public void testParseMissingParameter() {
+        assertThrows(IllegalArgumentException.class, 
+            () -> CommandParser.parse(0, null, "JOIN"));
+    }
+    
+    @Test
+    public void testParseMissingPayload() {
+        assertThrows(IllegalArgumentException.class, 
+            () -> CommandParser.parse(0, null, "MESG disney"));
+    }
+    
+    @Test
+    public void testSlowCommandSetsLimit() {
+        enlistUsers();
+        createDisney();
+        Command slow = new SlowCommand(0, "User0", "disney", 6);
+        Broadcast expected = Broadcast.okay(slow, Collections.singleton("User0"));
+        assertEquals(expected, slow.updateServerModel(model));
+        assertEquals(6, model.getSlowMode("disney"));
+    }
+    
+    @Test
+    public void testSlowCommandNotOwner() {
+        enlistUsers();
+        createDisney();
+        Command slow = new SlowCommand(1, "User1", "disney", 6);
+        Broadcast expected = Broadcast.error(slow, ServerResponse.USER_NOT_OWNER);
+        assertEquals(expected, slow.updateServerModel(model));
+        assertEquals(0, model.getSlowMode("disney"));
+    }
+    
+    @Test
+    public void testSlowModeLimitsMessages() {
+        enlistUsers();
+        createDisney();
+        new SlowCommand(0, "User0", "disney", 6).updateServerModel(model);
+        Command first = new MessageCommand(1, "User1", "disney", "hi");
+        Command second = new MessageCommand(0, "User0", "disney", "hey");
+        assertEquals(Broadcast.okay(first, model.getUsersInChannel("disney")),
+            first.updateServerModel(model));
+        assertEquals(Broadcast.error(second, ServerResponse.RATE_LIMITED),
+            second.updateServerModel(model));
+    }
+    
+    @Test
+    public void testFanoutBudgetThrottlesLargestChannel() {
+        enlistUsers();
+        createDisney();
+        new CreateCommand(2, "User2", "espn", false).updateServerModel(model);
+        model.setFanoutBudget(new RateLimit(0.001, 4));
+        Command big = new MessageCommand(0, "User0", "disney", "hi");
+        Command small = new MessageCommand(2, "User2", "espn", "hi");
+        assertEquals(Broadcast.okay(big, model.getUsersInChannel("disney")),
+            big.updateServerModel(model));
+        assertEquals(Broadcast.error(big, ServerResponse.RATE_LIMITED),
+            big.updateServerModel(model), "Two recipients need four tokens");
+        assertEquals(Broadcast.okay(small, Collections.singleton("User2")),
+            small.updateServerModel(model), "One recipient still fits");
+    }
+    
+    @Test
+    public void testJoinReplaysBacklog() {
+        enlistUsers();
+        createDisney();
+        model.setHistory(new ChannelHistory(1024, 4096, 2));
+        Command first = new MessageCommand(0, "User0", "disney", "one");
+        Command second = new MessageCommand(1, "User1", "disney", "two");
+        Command third = new MessageCommand(0, "User0", "disney", "three");
+        first.updateServerModel(model);
+        second.updateServerModel(model);
+        third.updateServerModel(model);
+        Command join = new JoinCommand(2, "User2", "disney");
+        Collection<String> recipients = new TreeSet<String>(model.getUsersInChannel("disney"));
+        recipients.add("User2");
+        Broadcast expected = Broadcast.names(join, recipients, "User0",
+            Arrays.asList(second.toString(), third.toString()));
+        assertEquals(expected, join.updateServerModel(model));
+    }
+    
+    @Test
+    public void testBacklogCommandSetsReplayLength() {
+        enlistUsers();
+        createDisney();
+        model.setHistory(new ChannelHistory(1024, 4096, 2));
+        Command backlog = new BacklogCommand(0, "User0", "disney", 1);
+        assertEquals(Broadcast.okay(backlog, Collections.singleton("User0")),
+            backlog.updateServerModel(model));
+        new MessageCommand(0, "User0", "disney", "one").updateServerModel(model);
+        Command last = new MessageCommand(0, "User0", "disney", "two");
+        last.updateServerModel(model);
+        assertEquals(Arrays.asList(last.toString()), model.getBacklogMessages("disney"));
+        Command notOwner = new BacklogCommand(1, "User1", "disney", 5);
+        assertEquals(Broadcast.error(notOwner, ServerResponse.USER_NOT_OWNER),
+            notOwner.updateServerModel(model));
+    }
+    
+    @Test
+    public void testHistoryRequiresMembership(@TempDir Path dir) throws IOException {
+        enlistUsers();
+        createDisney();
+        Command member = new HistoryCommand(1, "User1", "disney", 0, 20);
+        assertEquals(Broadcast.error(member, ServerResponse.FEATURE_DISABLED),
+            member.updateServerModel(model), "No message log is kept");
+        ServerLog log = new ServerLog(ServerLog.Level.ERROR, 1, 0, 16, System.out);
+        MessageLog messageLog = new MessageLog(dir, StandardCharsets.UTF_8, 64 * 1024, 0, 0, log);
+        model.setMessageLog(messageLog);
+        assertEquals(Broadcast.deferred(), member.updateServerModel(model),
+            "Accepted pages are sent by the backend");
+        Command outsider = new HistoryCommand(2, "User2", "disney", 0, 20);
+        assertEquals(Broadcast.error(outsider, ServerResponse.USER_NOT_IN_CHANNEL),
+            outsider.updateServerModel(model));
+        Command missing = new HistoryCommand(1, "User1", "pixar", 0, 20);
+        assertEquals(Broadcast.error(missing, ServerResponse.NO_SUCH_CHANNEL),
+            missing.updateServerModel(model));
+        assertThrows(IllegalArgumentException.class,
+            () -> CommandParser.parse(1, "User1", "HISTORY disney 0 0"));
+        log.close();
+    }
+    
+    @Test
+    public void testSearchRequiresMembership() {
+        enlistUsers();
+        createDisney();
+        Command search = CommandParser.parse(1, "User1", "SEARCH disney :mickey mouse");
+        assertEquals(new SearchCommand(1, "User1", "disney", "mickey mouse").toString(),
+            search.toString());
+        assertEquals(Broadcast.error(search, ServerResponse.FEATURE_DISABLED),
+            search.updateServerModel(model), "Messages are not indexed");
+        ServerLog log = new ServerLog(ServerLog.Level.ERROR, 1, 0, 16, System.out);
+        MessageIndex index = new MessageIndex(1024 * 1024, 1024, log);
+        model.setMessageIndex(index);
+        assertEquals(Broadcast.deferred(), search.updateServerModel(model),
+            "Accepted searches are answered by the backend");
+        Command outsider = new SearchCommand(2, "User2", "disney", "mickey");
+        assertEquals(Broadcast.error(outsider, ServerResponse.USER_NOT_IN_CHANNEL),
+            outsider.updateServerModel(model));
+        assertThrows(IllegalArgumentException.class,
+            () -> CommandParser.parse(1, "User1", "SEARCH disney"));
+        index.close();
+        log.close();
+    }
+    
+    @Test
+    public void testParkedUserNeedsResumeToken() {
+        enlistUsers();
+        createDisney();
+        model.setResumeToken(0, "secret");
+        assertTrue(model.parkUser(0));
+        assertFalse(model.parkUser(1), "Users without a token are not parked");
+        model.registerUser(3);
+        Command steal = new NicknameCommand(3, "User3", "User0");
+        assertEquals(Broadcast.error(steal, ServerResponse.NAME_ALREADY_IN_USE),
+            steal.updateServerModel(model));
+        Command wrong = new ResumeCommand(3, "User3", "guess");
+        assertEquals(Broadcast.error(wrong, ServerResponse.INVALID_RESUME_TOKEN),
+            wrong.updateServerModel(model));
+        Command resume = new ResumeCommand(3, "User3", "secret");
+        assertEquals(Broadcast.okay(new NicknameCommand(3, "User3", "User0"),
+            Collections.singleton("User0")), resume.updateServerModel(model));
+        assertEquals("User0", model.getNickname(3));
+        assertEquals("User0", model.getOwner("disney"));
+        assertFalse(model.isDetached(3));
+    }
+
+    @Test
+    public void testSnapshotKeepsItsMoment() {
+        enlistUsers();
+        createDisney();
+        ModelView before = model.snapshot();
+        new NicknameCommand(1, "User1", "pat").updateServerModel(model);
+        new LeaveCommand(0, "User0", "disney").updateServerModel(model);
+        assertEquals(Arrays.asList("User0", "User1"),
+            new ArrayList<>(before.getUsersInChannel("disney")), "Old view is unchanged");
+        assertEquals("User0", before.getOwner("disney"));
+        assertEquals(1, before.getUserId("User1"));
+        ModelView after = model.snapshot();
+        assertFalse(after.doesChannelExist("disney"));
+        assertEquals(1, after.getUserId("pat"));
+        assertEquals(-1, after.getUserId("User1"));
+        assertEquals(model.getRegisteredUsers(), after.getRegisteredUsers());
+    }
+
+    @Test
+    public void testSnapshotFollowsAdoption() {
+        model.restoreUser(0, "alice");
+        model.addBoss(0, "java", false);
+        model.registerUser(5);
+        assertTrue(model.adoptUser(0, 5));
+        ModelView view = model.snapshot();
+        assertEquals(5, view.getUserId("alice"));
+        assertNull(view.getNickname(0));
+        assertEquals("alice", view.getOwner("java"));
+        assertEquals(Collections.singleton("alice"), view.getUsersInChannel("java"));
+        assertEquals(1, view.getUserCount(), "The claimant's default user is gone");
+    }
+    
+    @Test
+    public void testParseAnnounceLeavesKeyOut() {
+        enlistUsers();
+        Command announce = CommandParser.parse(0, null, "ANNOUNCE s3cret :back at noon");
+        announce.bindSender("User0");
+        assertEquals("s3cret", ((AnnounceCommand) announce).getKey());
+        assertEquals(":User0 ANNOUNCE :back at noon", announce.toString());
+        assertEquals(Broadcast.deferred(), announce.updateServerModel(model),
+            "Announcements are sent by the backend");
+        assertThrows(IllegalArgumentException.class,
+            () -> CommandParser.parse(0, null, "ANNOUNCE s3cret"));
+    }
+    
+    @Test
+    public void testPrivateMessage() {
+        enlistUsers();
+        Command message = CommandParser.parse(0, null, "PRIVMSG User1 :just us");
+        message.bindSender("User0");
+        assertEquals(new PrivateMessageCommand(0, "User0", "User1", "just us"), message);
+        assertEquals(Broadcast.okay(message, Collections.singleton("User1")),
+            message.updateServerModel(model));
+        assertTrue(model.getChannels().isEmpty(), "No channel is made");
+        Command unknown = new PrivateMessageCommand(0, "User0", "nobody", "hello?");
+        assertEquals(Broadcast.error(unknown, ServerResponse.NO_SUCH_RECIPIENT),
+            unknown.updateServerModel(model));
+        assertThrows(IllegalArgumentException.class,
+            () -> CommandParser.parse(0, null, "PRIVMSG User1"));
+    }
+    
   
     
     
@@ -0,0 +1,30 @@
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the refill arithmetic of {@link TokenBucket}, using explicit clock
+ * values rather than the real clock.
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstThenWait() {
+        TokenBucket bucket = new TokenBucket(new RateLimit(10, 2), 0);
+        assertEquals(0, bucket.nanosUntilToken(0));
+        bucket.take();
+        assertEquals(0, bucket.nanosUntilToken(0));
+        bucket.take();
+        assertEquals(100000000L, bucket.nanosUntilToken(0), "One token per 100ms");
+    }
+
+    @Test
+    public void testRefillCappedAtBurst() {
+        TokenBucket bucket = new TokenBucket(new RateLimit(10, 2), 0);
+        bucket.take();
+        bucket.take();
+        assertEquals(0, bucket.nanosUntilToken(5000000000L));
+        bucket.take();
+        bucket.take();
+        assertTrue(bucket.nanosUntilToken(5000000000L) > 0, "Only burst refilled");
+    }
+}